@@ -0,0 +1,358 @@
+package ca.jason.morphimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Supplies decoded frames to the frame display while holding only a small window of them. Frames
+ * are decoded on a background thread at roughly the size they are shown, a few frames ahead of
+ * the current one in the direction of playback. The least recently shown frames are evicted once
+ * the window is full, and their bitmaps are decoded into again rather than allocated anew, so
+ * memory use does not depend on the number of frames. The bitmap on screen is never decoded
+ * into, even once evicted, until the display has moved on from it.
+ */
+
+public class FrameProvider {
+    public static final int WINDOW = 7;
+    public static final int PREFETCH = 3;
+    private static final int POOL = 2;
+
+    private final Source source;
+    private final int targetWidth, targetHeight;
+    private final Listener listener;
+    private final ExecutorService decoder;
+    private final LinkedHashMap<Integer, Bitmap> window = new LinkedHashMap<>(WINDOW + 1, 0.75f, true);
+    private final List<Bitmap> pool = new ArrayList<>();
+    private final Set<Integer> queued = new HashSet<>();
+    private int sampleSize;
+    private int current, direction = 1;
+    // Bitmap the display is drawing, and an evicted one waiting for the display to leave it
+    private Bitmap displayed, retired;
+
+    /**
+     * Where frames are decoded from.
+     */
+    public interface Source {
+        int getFrameCount();
+
+        /**
+         * Decodes a frame as BitmapFactory would, honouring inJustDecodeBounds, inSampleSize and
+         * inBitmap in the options.
+         *
+         * @return The frame, or null if it is not available or only bounds were requested
+         */
+        Bitmap decode(int frame, BitmapFactory.Options options) throws IOException;
+    }
+
+    /**
+     * Notified on the decode thread when a frame becomes available.
+     */
+    public interface Listener {
+        void onFrameReady(FrameProvider provider, int frame, Bitmap bitmap);
+    }
+
+    /**
+     * @param source Frames to show
+     * @param targetWidth Width the frames are shown at, in pixels
+     * @param targetHeight Height the frames are shown at, in pixels
+     * @param listener Notified as frames are decoded
+     */
+    public FrameProvider(Source source, int targetWidth, int targetHeight, Listener listener) {
+        this.source = source;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.listener = listener;
+        decoder = Executors.newSingleThreadExecutor();
+    }
+
+    public int getFrameCount() {
+        return source.getFrameCount();
+    }
+
+    /**
+     * Moves the window to a frame and prefetches the frames that follow it in the given direction.
+     *
+     * @param frame Frame about to be shown
+     * @param direction 1 when playing forwards, -1 when playing backwards
+     * @return The frame if it is already decoded, otherwise null; the listener is told when it is
+     */
+    public synchronized Bitmap show(int frame, int direction) {
+        current = frame;
+        this.direction = direction;
+        Bitmap b = window.get(frame);
+        request(frame);
+        int f = frame, d = direction;
+        for (int i = 0; i < PREFETCH; i++) {
+            // Follow the ping-pong of playback at either end
+            if (f + d < 0 || f + d >= getFrameCount())
+                d = -d;
+            f += d;
+            request(f);
+        }
+        return b;
+    }
+
+    /**
+     * Tells the provider which bitmap is on screen, so it is not decoded into while drawn. Call
+     * whenever the display changes bitmap.
+     *
+     * @param bitmap Bitmap now shown, or null
+     */
+    public synchronized void setDisplayed(Bitmap bitmap) {
+        if (retired != null && retired != bitmap) {
+            recycle(retired);
+            retired = null;
+        }
+        displayed = bitmap;
+    }
+
+    /**
+     * @return Whether a frame can be shown without waiting
+     */
+    public synchronized boolean isReady(int frame) {
+        return window.containsKey(frame);
+    }
+
+    /**
+     * Drops a frame whose source has changed, decoding it again if it is in the window.
+     */
+    public synchronized void invalidate(int frame) {
+        // The old bitmap may still be on screen, so it is not reused
+        if (window.remove(frame) != null || frame == current)
+            request(frame);
+    }
+
+    /**
+     * Stops decoding and releases every bitmap not on screen.
+     */
+    public synchronized void shutdown() {
+        decoder.shutdownNow();
+        pool.clear();
+        window.clear();
+        retired = null;
+    }
+
+    private void request(final int frame) {
+        if (frame < 0 || frame >= getFrameCount() || decoder.isShutdown()
+                || window.containsKey(frame) || !queued.add(frame))
+            return;
+        decoder.execute(new Runnable() {
+            public void run() {
+                decode(frame);
+            }
+        });
+    }
+
+    /**
+     * Runs on the decode thread.
+     */
+    private void decode(int frame) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        synchronized (this) {
+            queued.remove(frame);
+            if (!inWindow(frame) || window.containsKey(frame))
+                return;
+            if (!pool.isEmpty())
+                options.inBitmap = pool.remove(pool.size() - 1);
+        }
+        Bitmap b = null;
+        try {
+            if (sampleSize == 0)
+                sampleSize = sampleSize(frame);
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            try {
+                b = source.decode(frame, options);
+            } catch (IllegalArgumentException e) {
+                // Reused bitmap was too small for this frame
+                options.inBitmap = null;
+                b = source.decode(frame, options);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't decode frame " + frame + ": " + e.getMessage());
+        }
+        if (b == null)
+            return;
+
+        synchronized (this) {
+            window.put(frame, b);
+            evict();
+        }
+        listener.onFrameReady(this, frame, b);
+    }
+
+    /**
+     * Smallest power of two reduction that keeps the frame at least as large as the target.
+     */
+    private int sampleSize(int frame) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        source.decode(frame, bounds);
+        int size = 1;
+        if (targetWidth > 0 && targetHeight > 0)
+            while (bounds.outWidth / (size * 2) >= targetWidth && bounds.outHeight / (size * 2) >= targetHeight)
+                size *= 2;
+        return size;
+    }
+
+    /**
+     * Evicts the least recently shown frames beyond the window size, never the current one. The
+     * previous frame stays on screen while the next decodes, so a bitmap still displayed is only
+     * pooled once the display leaves it.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Integer, Bitmap>> it = window.entrySet().iterator();
+        while (window.size() > WINDOW && it.hasNext()) {
+            Map.Entry<Integer, Bitmap> e = it.next();
+            if (e.getKey() == current)
+                continue;
+            it.remove();
+            if (e.getValue() == displayed)
+                retired = e.getValue();
+            else
+                recycle(e.getValue());
+        }
+    }
+
+    /**
+     * Keeps an evicted bitmap no longer on screen for decoding into, if there is room.
+     */
+    private void recycle(Bitmap b) {
+        if (pool.size() < POOL && b.isMutable())
+            pool.add(b);
+    }
+
+    /**
+     * Whether a frame is still among those wanted around the current one.
+     */
+    private boolean inWindow(int frame) {
+        int f = current, d = direction;
+        if (frame == f)
+            return true;
+        for (int i = 0; i < PREFETCH; i++) {
+            if (f + d < 0 || f + d >= getFrameCount())
+                d = -d;
+            f += d;
+            if (frame == f)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Frames stored as separate image files.
+     */
+    public static Source files(final String[] paths) {
+        return new Source() {
+            public int getFrameCount() {
+                return paths.length;
+            }
+
+            public Bitmap decode(int frame, BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(paths[frame], options);
+            }
+        };
+    }
+
+    /**
+     * Frames of an APNG or MJPEG AVI animation.
+     */
+    public static Source animation(final AnimationReader reader) {
+        return new Source() {
+            public int getFrameCount() {
+                return reader.getFrameCount();
+            }
+
+            public Bitmap decode(int frame, BitmapFactory.Options options) throws IOException {
+                byte[] data = reader.readFrame(frame);
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        };
+    }
+
+    /**
+     * Frames of a raw frame store. Each one is copied from its mapped slot into the bitmap, with
+     * no decoding; they are kept at full size.
+     */
+    public static Source raw(final RawFrameStore store) {
+        return new Source() {
+            public int getFrameCount() {
+                return store.getFrameCount();
+            }
+
+            public Bitmap decode(int frame, BitmapFactory.Options options) throws IOException {
+                options.outWidth = store.getWidth();
+                options.outHeight = store.getHeight();
+                if (options.inJustDecodeBounds)
+                    return null;
+                Bitmap b = options.inBitmap;
+                if (b == null || b.getWidth() != store.getWidth() || b.getHeight() != store.getHeight())
+                    b = Bitmap.createBitmap(store.getWidth(), store.getHeight(), Bitmap.Config.ARGB_8888);
+                b.copyPixelsFromBuffer(store.frame(frame));
+                return b;
+            }
+        };
+    }
+
+    /**
+     * Frames of a progressive preview, as far as it has rendered them. They are already reduced,
+     * so no sample size applies.
+     */
+    public static Source preview(final ProgressiveMorph morph) {
+        return new Source() {
+            public int getFrameCount() {
+                return morph.getFrameCount();
+            }
+
+            public Bitmap decode(int frame, BitmapFactory.Options options) {
+                return toBitmap(morph.getFrame(frame), options);
+            }
+        };
+    }
+
+    /**
+     * Frames of a morph held in memory, copied into bitmaps with no decoding.
+     */
+    public static Source repository(final FrameRepository repository) {
+        return new Source() {
+            public int getFrameCount() {
+                return repository.getFrameCount();
+            }
+
+            public Bitmap decode(int frame, BitmapFactory.Options options) {
+                return toBitmap(repository.get(frame), options);
+            }
+        };
+    }
+
+    /**
+     * Copies pixels into the bitmap offered by the options if it has the same size, otherwise
+     * into a new one.
+     *
+     * @return The bitmap, or null if there is no image or only bounds were requested
+     */
+    private static Bitmap toBitmap(PixelImage image, BitmapFactory.Options options) {
+        if (image == null)
+            return null;
+        options.outWidth = image.width;
+        options.outHeight = image.height;
+        if (options.inJustDecodeBounds)
+            return null;
+        Bitmap b = options.inBitmap;
+        if (b == null || b.getWidth() != image.width || b.getHeight() != image.height)
+            b = Bitmap.createBitmap(image.width, image.height, Bitmap.Config.ARGB_8888);
+        b.setPixels(image.pixels, 0, image.width, 0, 0, image.width, image.height);
+        return b;
+    }
+}
@@ -1,62 +1,58 @@
 package ca.jason.morphimage;
 
-import android.graphics.Bitmap;
 import android.os.Environment;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 /**
  * Created by jason on 2017-04-08.
  */
 
-public class ImageExport implements Runnable {
-    private int     i;
-    private String  fileName, baseName;
-    private Bitmap bmp;
-    private boolean complete;
+public class ImageExport implements MorphScheduler.FrameEncoder {
+    private String  baseName;
+    private PngWriter writer;
+    private MorphMetrics metrics;
 
-    public ImageExport(int i, Bitmap bmp, String baseName) {
-        this.i = i;
-        this.bmp = bmp;
-        this.baseName = baseName;
-        complete = false;
-    }
-
-    public void run() {
-        fileName = exportImageToFile(baseName + "_" + i, bmp);
-        bmp = null;
-        complete = true;
+    public ImageExport(String baseName) {
+        this(baseName, PngWriter.DEFAULT_LEVEL);
     }
 
-    public String getFileName() {
-        return fileName;
+    /**
+     * @param baseName Prefix of every exported file name
+     * @param level PNG compression level, 0 to 9
+     */
+    public ImageExport(String baseName, int level) {
+        this.baseName = baseName;
+        writer = new PngWriter(level);
     }
 
-    public int getI() {
-        return i;
+    /**
+     * Records compressing and writing each frame.
+     *
+     * @param metrics Metrics of the job, or null
+     */
+    public void setMetrics(MorphMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    public boolean isComplete() {
-        return complete;
+    public String encode(int i, PixelImage image) {
+        return exportImageToFile(baseName + "_" + i, image, i);
     }
 
     /**
-     * Exports given bitmap to a PNG file in the application directory on external storage.
+     * Exports given image to a PNG file in the application directory on external storage.
      *
      * @param fn Filename to save to
-     * @param bmp Bitmap to save
+     * @param image Image to save
+     * @param frame Frame number for metrics
      * @return String Absolute path to saved file
      */
-    private String exportImageToFile(String fn, Bitmap bmp) {
+    private String exportImageToFile(String fn, PixelImage image, int frame) {
         File f = new File(Environment.getExternalStorageDirectory() + MainActivity.APP_DIRECTORY
                 + File.separator + fn + ".png");
         try {
-            f.createNewFile();
-            FileOutputStream fo = new FileOutputStream(f);
-            bmp.compress(Bitmap.CompressFormat.PNG, 100, fo);
-            fo.close();
+            writer.write(image, f, metrics, frame);
         } catch (IOException e) {
             System.out.println("Couldn't create file: " + f.getAbsolutePath());
         }
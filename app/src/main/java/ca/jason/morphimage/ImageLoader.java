@@ -0,0 +1,97 @@
+package ca.jason.morphimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes photos off the UI thread straight to the size they are edited at. The file's bounds are
+ * read first, so the decoder can skip whole powers of two of resolution, and only the remainder
+ * is scaled. At most one full bitmap per photo exists at any time.
+ */
+
+public class ImageLoader {
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Notified on the loader thread when a decode finishes.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap Decoded image, or null if the file could not be read
+         * @param sourceWidth Width of the image in the file
+         * @param sourceHeight Height of the image in the file
+         */
+        void onImageLoaded(Bitmap bitmap, int sourceWidth, int sourceHeight);
+    }
+
+    /**
+     * Queues a decode.
+     *
+     * @param path Image file
+     * @param boxWidth Width of the area the image is fitted into
+     * @param boxHeight Height of the area the image is fitted into
+     * @param callback Receives the image
+     */
+    public static void load(final String path, final int boxWidth, final int boxHeight, final Callback callback) {
+        loader.execute(new Runnable() {
+            public void run() {
+                int[] size = new int[2];
+                Bitmap bitmap = decode(path, boxWidth, boxHeight, size);
+                callback.onImageLoaded(bitmap, size[0], size[1]);
+            }
+        });
+    }
+
+    /**
+     * Decodes an image scaled to fit a box, keeping its aspect ratio.
+     *
+     * @param sourceSize Receives the width and height of the image in the file
+     * @return The image at exactly its fitted size, or null if the file could not be read
+     */
+    public static Bitmap decode(String path, int boxWidth, int boxHeight, int[] sourceSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        sourceSize[0] = options.outWidth;
+        sourceSize[1] = options.outHeight;
+        int[] size = fit(options.outWidth, options.outHeight, boxWidth, boxHeight);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= size[0]
+                && options.outHeight / (options.inSampleSize * 2) >= size[1])
+            options.inSampleSize *= 2;
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+        if (decoded == null || (decoded.getWidth() == size[0] && decoded.getHeight() == size[1]))
+            return decoded;
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, size[0], size[1], true);
+        if (scaled != decoded)
+            decoded.recycle();
+        return scaled;
+    }
+
+    /**
+     * Largest size with the image's aspect ratio that fits a box.
+     *
+     * @return Width and height
+     */
+    public static int[] fit(int width, int height, int boxWidth, int boxHeight) {
+        double cRatio = (double) boxWidth / boxHeight;
+        double iRatio = (double) width / height;
+        if (iRatio > cRatio)
+            return new int[]{boxWidth, Math.max(1, (int) (boxWidth / iRatio))};
+        return new int[]{Math.max(1, (int) (boxHeight * iRatio)), boxHeight};
+    }
+}
@@ -7,7 +7,6 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.util.AttributeSet;
-import android.util.Pair;
 import android.widget.ImageView;
 
 import java.util.ArrayList;
@@ -19,10 +18,14 @@ import java.util.ArrayList;
 public class ImageViewEdit extends ImageView {
     private Paint pLine, pCircle;
     private ArrayList<LineController> cLines;
+    private PointIndex points;
     private Bitmap original;
     private int selectedLine;
     private boolean showLines;
     private int lastLine;
+    private int loads;
+    private String sourcePath;
+    private int sourceWidth, sourceHeight;
     public int leftBound, topBound, rightBound, bottomBound;
 
     public ImageViewEdit(Context context) {
@@ -53,18 +56,29 @@ public class ImageViewEdit extends ImageView {
         pCircle = new Paint(Paint.ANTI_ALIAS_FLAG);
         pCircle.setColor(Color.RED);
         cLines = new ArrayList<>();
+        points = new PointIndex(PointIndex.DEFAULT_CELL_SIZE);
+        points.resize(getWidth(), getHeight());
         lastLine = -1;
         selectedLine = -1;
         showLines = true;
     }
 
     public void resetView() {
+        // Drops any load still in flight
+        loads++;
         original = null;
+        sourcePath = null;
         init();
         this.setImageResource(0);
         this.setBackgroundResource(R.drawable.iv_background);
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldW, int oldH) {
+        super.onSizeChanged(w, h, oldW, oldH);
+        points.resize(w, h);
+    }
+
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         if(showLines) {
@@ -81,33 +95,75 @@ public class ImageViewEdit extends ImageView {
         }
     }
 
+    /**
+     * Fits a bitmap to the view. The fitted bitmap is both shown and morphed, so the view holds a
+     * single copy of the pixels; a bitmap that already fits is used as is.
+     */
     public void setImageBitmap(Bitmap bmp) {
+        sourcePath = null;
         int oHeight = this.getHeight();
         int oWidth = this.getWidth();
-        int inHeight = bmp.getHeight();
-        int inWidth = bmp.getWidth();
-        double cRatio = (double)oWidth / oHeight;
-        double iRatio = (double)inWidth / (double)inHeight;
-        int newHeight, newWidth;
-        if(iRatio > cRatio) {
-            newWidth = oWidth;
-            newHeight = (int)(oWidth / iRatio);
-        } else {
-            newWidth = (int)(oHeight * iRatio);
-            newHeight = oHeight;
-        }
-        original = Bitmap.createScaledBitmap(bmp, newWidth, newHeight, true);
+        int[] size = ImageLoader.fit(bmp.getWidth(), bmp.getHeight(), oWidth, oHeight);
+        int newWidth = size[0], newHeight = size[1];
+        if (bmp.getWidth() == newWidth && bmp.getHeight() == newHeight)
+            original = bmp;
+        else
+            original = Bitmap.createScaledBitmap(bmp, newWidth, newHeight, true);
         leftBound = (oWidth - newWidth) / 2;
         rightBound = oWidth - leftBound;
         topBound = (oHeight - newHeight) / 2;
         bottomBound = oHeight - topBound;
-        super.setImageBitmap(bmp);
+        super.setImageBitmap(original);
+    }
+
+    /**
+     * Decodes a photo on a background thread at the size it is shown at, then sets it. Only the
+     * latest load of a view is applied.
+     *
+     * @param path Image file
+     * @param onLoaded Run on the UI thread once the image is set, or null
+     */
+    public void loadImage(final String path, final Runnable onLoaded) {
+        final int load = ++loads;
+        ImageLoader.load(path, getWidth(), getHeight(), new ImageLoader.Callback() {
+            public void onImageLoaded(final Bitmap bitmap, final int width, final int height) {
+                post(new Runnable() {
+                    public void run() {
+                        if (load != loads || bitmap == null) {
+                            if (bitmap == null)
+                                System.out.println("Couldn't load image");
+                            return;
+                        }
+                        setImageBitmap(bitmap);
+                        sourcePath = path;
+                        sourceWidth = width;
+                        sourceHeight = height;
+                        if (onLoaded != null)
+                            onLoaded.run();
+                    }
+                });
+            }
+        });
     }
 
     public Bitmap getBitmap() {
         return original;
     }
 
+    /**
+     * @return File the shown image was loaded from, or null if it was set as a bitmap
+     */
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    /**
+     * @return Pixels of the source file per pixel of the view, 1 if there is no source file
+     */
+    public float getSourceScale() {
+        return sourcePath == null || original == null ? 1 : (float) sourceWidth / original.getWidth();
+    }
+
     public void showLines() {
         showLines = true;
         this.invalidate();
@@ -124,18 +180,31 @@ public class ImageViewEdit extends ImageView {
     }
 
     public void addLine(Point s, Point e) {
-        cLines.add(new LineController(s, e));
-        ++lastLine;
+        addLine(new LineController(s, e));
     }
 
     public void addLine(LineController l) {
         cLines.add(l);
+        points.addLine(l.getStart().x, l.getStart().y, l.getEnd().x, l.getEnd().y);
         ++lastLine;
     }
 
+    /**
+     * Moves one endpoint of a line, keeping the hit-testing index current. Lines should only be
+     * edited through here.
+     *
+     * @param index Line to edit
+     * @param point LineController.START_POINT or END_POINT
+     */
+    public void movePoint(int index, int point, int x, int y) {
+        cLines.get(index).setPoint(point, new Point(x, y));
+        points.move(index * 2 + point, x, y);
+    }
+
     public void deleteLine(int index) {
         if(index < cLines.size() && index >= 0) {
             cLines.remove(index);
+            points.removeLine(index);
             lastLine--;
             invalidate();
         }
@@ -144,6 +213,7 @@ public class ImageViewEdit extends ImageView {
     public void deleteSelected() {
         if(selectedLine != -1){
             cLines.remove(selectedLine);
+            points.removeLine(selectedLine);
             lastLine--;
             selectedLine = -1;
             invalidate();
@@ -166,22 +236,12 @@ public class ImageViewEdit extends ImageView {
         return lastLine;
     }
 
-    public Pair<Integer, Integer> getClosestPointIndex(int x, int y) {
-        int closestD = distance(x, y, cLines.get(0).getStart().x, cLines.get(0).getStart().y);
-        Pair<Integer, Integer> closest = new Pair<>(0, 0);
-        for(int i = 0; i < cLines.size(); i++){
-            for(int j = 0; j < 2; j++) {
-                int thisD = distance(x, y, cLines.get(i).getPoint(j).x, cLines.get(i).getPoint(j).y);
-                if(thisD < closestD) {
-                    closest = new Pair<>(i, j);
-                    closestD = thisD;
-                }
-            }
-        }
-        return closest;
-    }
-
-    private int distance(int x, int y, int x2, int y2) {
-        return (int) Math.sqrt(Math.pow(x2 - x, 2) + Math.pow(y2 - y, 2));
+    /**
+     * Finds the line endpoint closest to a position.
+     *
+     * @return Line index * 2 + LineController.START_POINT or END_POINT, or -1 if there are no lines
+     */
+    public int getClosestPoint(int x, int y) {
+        return points.closest(x, y);
     }
-}
\ No newline at end of file
+}
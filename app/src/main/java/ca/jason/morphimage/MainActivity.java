@@ -5,13 +5,12 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.NavigationView;
@@ -23,7 +22,7 @@ import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.ActionBarDrawerToggle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
-import android.util.Pair;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -35,34 +34,65 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity
         implements NavigationView.OnNavigationItemSelectedListener {
 
     public final static String PHOTO_PATH = "ca.jason.morphimage.FILE_PATHS";
     public final static String APP_DIRECTORY = File.separator + "MorthImage";
+    private final static String TAG = "MorphImage";
 
     private final static int CAMERA_IMG_REQUEST = 1;
     private final static int GALLERY_IMG_REQUEST = 2;
     private final static int PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 1;
-
-    private Bitmap[] warpComplete, crossComplete;
-    private ImageExport[] imageExports;
+    private final static boolean LINEAR_DISSOLVE = false;
+    private final static Sampler.Kind SAMPLER = Sampler.Kind.BILINEAR;
+    private final static LineWeight LINE_WEIGHT = LineWeight.DEFAULT;
+    // Share of the heap that evaluated displacement fields may occupy
+    private final static int FIELD_CACHE_DIVISOR = 8;
+    // How a finished morph is saved: one PNG per frame, or a single animated file
+    private final static int OUTPUT_FRAMES = 0;
+    private final static int OUTPUT_APNG = 1;
+    private final static int OUTPUT_MJPEG = 2;
+    private final static int OUTPUT_FORMAT = OUTPUT_APNG;
+    private final static int JPEG_QUALITY = 90;
+    // Also keep frames uncompressed, for playback and scrubbing without decoding
+    private final static boolean RAW_FRAMES = true;
+    // Export frames at the resolution of the original photos, rendered tile by tile
+    private final static boolean FULL_RESOLUTION = false;
+    // Progress reaches the UI at most this often, apart from the final update
+    private final static long PROGRESS_INTERVAL_MS = 100;
+    // Log the time spent in each stage of every morph, to find what bounds it on a device
+    private final static boolean LOG_METRICS = BuildConfig.DEBUG;
+
+    private MorphScheduler scheduler;
+    private DisplacementCache fieldCache;
+    private ResultCache resultCache;
+    private LivePreview livePreview;
+    private ImageView liveView;
     private ImageView selectedView;
-    private Pair<Integer, Integer> selectedLine;
+    private int                     selectedPoint = -1;
     private ProgressBar progressBar;
     private TextView progressText;
     private String[]                filePaths;
+    private String                  animationPath;
+    private String                  rawPath;
+    private FrameRepository         repository;
+    private volatile boolean        displayed;
     private String                  baseName;
-    private ArrayList<Thread>       exportThreads;
-    private int                     progress;
-    private int                     currFrame;
+    private volatile int            progress;
+    private volatile int            progressRendered, progressEncoded, progressTotal;
+    private volatile long           lastProgressPost;
+    private final AtomicBoolean     progressPending = new AtomicBoolean();
+    private volatile MorphMetrics   metrics;
+    private int                     morphCount;
     private int                     frames;
     private boolean                 isDrawingLine = false;
     private boolean                 isMorphing = false;
@@ -109,10 +139,32 @@ public class MainActivity extends AppCompatActivity
         np.setValue(1);
         progressBar = (ProgressBar) findViewById(R.id.progress_bar);
         progressText = (TextView) findViewById(R.id.text_view_progress);
+        liveView = (ImageView) findViewById(R.id.image_view_live);
         state = 'a';
         File folder = new File(Environment.getExternalStorageDirectory() + APP_DIRECTORY);
         if (!folder.exists())
             folder.mkdir();
+        scheduler = new MorphScheduler(ParallelRows.THREADS, ParallelRows.THREADS);
+        MorphMetrics.setCpuClock(new MorphMetrics.CpuClock() {
+            public long threadCpuNanos() {
+                return Debug.threadCpuTimeNanos();
+            }
+        });
+        fieldCache = new DisplacementCache(Runtime.getRuntime().maxMemory() / FIELD_CACHE_DIVISOR);
+        resultCache = new ResultCache(new File(folder, ResultCache.DIRECTORY), ResultCache.DEFAULT_BUDGET);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        stopLivePreview();
+        scheduler.shutdown();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        fieldCache.clear();
     }
 
     @Override
@@ -203,19 +255,22 @@ public class MainActivity extends AppCompatActivity
                     findViewById(R.id.image_view_right) : findViewById(R.id.image_view_left));
             switch (e.getAction()) {
                 case MotionEvent.ACTION_DOWN:
-                    if (selectedLine == null) {
-                        selectedLine = dv.getClosestPointIndex((int) e.getX(), (int) e.getY());
-                        dv.setSelectedLine(selectedLine.first);
-                        opposite.setSelectedLine(selectedLine.first);
+                    if (selectedPoint == -1) {
+                        // -1 when there are no lines to pick
+                        selectedPoint = dv.getClosestPoint((int) e.getX(), (int) e.getY());
+                        int line = selectedPoint != -1 ? selectedPoint / 2 : -1;
+                        dv.setSelectedLine(line);
+                        opposite.setSelectedLine(line);
                     }
                     break;
                 case MotionEvent.ACTION_MOVE:
-                    if (selectedLine != null) {
-                        dv.getLine(selectedLine.first).setPoint(selectedLine.second, new Point((int) e.getX(), (int) e.getY()));
+                    if (selectedPoint != -1) {
+                        dv.movePoint(selectedPoint / 2, selectedPoint % 2, (int) e.getX(), (int) e.getY());
+                        updateLivePreview();
                     }
                     break;
                 case MotionEvent.ACTION_UP:
-                    selectedLine = null;
+                    selectedPoint = -1;
                     break;
             }
             dv.invalidate();
@@ -233,7 +288,7 @@ public class MainActivity extends AppCompatActivity
                     break;
                 case MotionEvent.ACTION_MOVE:
                     if (isDrawingLine)
-                        dv.getLine(dv.getLastLine()).setEnd(new Point((int) e.getX(), (int) e.getY()));
+                        dv.movePoint(dv.getLastLine(), LineController.END_POINT, (int) e.getX(), (int) e.getY());
                     break;
                 case MotionEvent.ACTION_UP:
                     if (isDrawingLine) {
@@ -261,6 +316,7 @@ public class MainActivity extends AppCompatActivity
                 dvRight.setOnTouchListener(editTouchListener);
                 dvLeft.setBackgroundResource(R.drawable.iv_edit);
                 dvRight.setBackgroundResource(R.drawable.iv_edit);
+                startLivePreview(dvLeft, dvRight);
             }
             Toast.makeText(getApplicationContext(),
                     "Edit Mode ENABLED", Toast.LENGTH_SHORT).show();
@@ -270,6 +326,7 @@ public class MainActivity extends AppCompatActivity
             dvRight.setOnTouchListener(lineTouchListener);
             dvLeft.setBackgroundResource(0);
             dvRight.setBackgroundResource(0);
+            stopLivePreview();
             Toast.makeText(getApplicationContext(),
                     "Edit Mode DISABLED", Toast.LENGTH_SHORT).show();
             state = 'a';
@@ -309,124 +366,34 @@ public class MainActivity extends AppCompatActivity
             isMorphing = true;
             NumberPicker np = (NumberPicker) findViewById(R.id.number_picker_frames);
             frames = np.getValue();
-            filePaths = new String[frames + 2];
-            exportThreads = new ArrayList<>();
             SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd-hhmmss");
             baseName = simpleDateFormat.format(new Date());
 
-            // Exports source and destination images
-            Thread eStartEnd = new Thread(new Runnable() {
-                public void run() {
-                    ImageViewEdit lView = (ImageViewEdit) findViewById(R.id.image_view_left),
-                            rView = (ImageViewEdit) findViewById(R.id.image_view_right);
-                    filePaths[0] = exportImageToFile(baseName + "_0", lView.getBitmap());
-                    filePaths[frames + 1] = exportImageToFile(baseName + "_" + (frames + 1), rView.getBitmap());
-                }
-            });
-            eStartEnd.start();
-            exportThreads.add(eStartEnd);
-
-            // Initializes progress bar
-            imageExports = new ImageExport[frames];
+            // Initializes progress bar, one step per frame for rendering and one for export
             progress = 0;
+            progressTotal = 0;
             progressBar.setProgress(progress);
-            progressBar.setMax(frames + 1);
+            progressBar.setMax((frames + 2) * 2);
             progressBar.setVisibility(View.VISIBLE);
             progressText.setText("Preparing for Warp...");
             progressText.setVisibility(View.VISIBLE);
 
-            // Creates new running thread for computation
+            // Creates new running thread to prepare the morph and wait for its frames
             new Thread(new Runnable() {
                 public void run() {
-                    ImageViewEdit lView = (ImageViewEdit) findViewById(R.id.image_view_left),
+                    final ImageViewEdit lView = (ImageViewEdit) findViewById(R.id.image_view_left),
                             rView = (ImageViewEdit) findViewById(R.id.image_view_right);
-                    LineController[] lLines = lView.getLineArray(),
-                            rLines = rView.getLineArray();
-
-                    // Interpolating intermediate line arrays for each frame
-                    LineController[][] midLines = new LineController[frames][rLines.length];
-                    for (int i = 0; i < rLines.length; i++) {
-                        double stepX1 = (rLines[i].getStart().x - lLines[i].getStart().x) / (frames + 1),
-                                stepY1 = (rLines[i].getStart().y - lLines[i].getStart().y) / (frames + 1),
-                                stepX2 = (rLines[i].getEnd().x - lLines[i].getEnd().x) / (frames + 1),
-                                stepY2 = (rLines[i].getEnd().y - lLines[i].getEnd().y) / (frames + 1),
-                                x1 = lLines[i].getStart().x,
-                                y1 = lLines[i].getStart().y,
-                                x2 = lLines[i].getEnd().x,
-                                y2 = lLines[i].getEnd().y;
-                        for (int j = 0; j < frames; j++) {
-                            x1 += stepX1;
-                            y1 += stepY1;
-                            x2 += stepX2;
-                            y2 += stepY2;
-                            midLines[j][i] = new LineController(new Point((int) x1, (int) y1), new Point((int) x2, (int) y2));
-                        }
-                    }
-
-                    // Initializes arrays to hold completed bitmaps
-                    warpComplete = new Bitmap[frames * 2];
-                    crossComplete = new Bitmap[frames];
-                    progressBar.post(new Runnable() {
-                        public void run() {
-                            progressBar.setMax(4);
-                        }
-                    });
-
-                    // Frame processing loop
-                    for (currFrame = 0; currFrame < frames; currFrame++) {
-                        progress = 0;
-                        updateProgress();
-                        progressText.post(new Runnable() {
-                            public void run() {
-                                progressText.setText("Processing Frame " + (currFrame + 1) + "/" + frames);
-                            }
-                        });
-
-                        // Warp source to intermediate frame
-                        warpSingleFrame(lLines, midLines[currFrame], lView, currFrame * 2);
-                        incrementProgress();
-                        // Warp destination to intermediate frame
-                        warpSingleFrame(rLines, midLines[currFrame], rView, currFrame * 2 + 1);
-                        incrementProgress();
-
-                        // Cross-dissolve the results of the warp
-                        crossFrame(warpComplete[currFrame * 2], warpComplete[currFrame * 2 + 1], currFrame);
-                        incrementProgress();
-                        // Clear result of warp to allow Garbage Collector to free up memory
-                        warpComplete[currFrame * 2] = null;
-                        warpComplete[currFrame * 2 + 1] = null;
-
-                        // Start export to PNG process on cross-dissolved result
-                        imageExports[currFrame] = new ImageExport(currFrame + 1, crossComplete[currFrame], baseName);
-                        crossComplete[currFrame] = null; // Cleaning up memory
-                        Thread eFrame = new Thread(imageExports[currFrame]);
-                        eFrame.start();
-                        exportThreads.add(eFrame);
-                    }
-
-                    // Setting up progress bar for export phase
-                    progressText.post(new Runnable() {
-                        public void run() {
-                            progressText.setText("Finishing Exports...");
-                        }
-                    });
-                    progress = 0;
-                    updateProgress();
-                    progressBar.post(new Runnable() {
-                        public void run() {
-                            progressBar.setMax(frames);
-                        }
-                    });
-
-                    // Wait for Export Workers to finish exporting to PNG
-                    for (ImageExport ie : imageExports) {
-                        while (!ie.isComplete()) ;
-                        filePaths[ie.getI()] = ie.getFileName();
-                        incrementProgress();
-                    }
-
-                    // Open FrameDisplayActivity to show final results
-                    openFrameDisplay();
+                    filePaths = null;
+                    animationPath = null;
+                    rawPath = null;
+                    displayed = false;
+                    MorphMetrics jobMetrics = metrics = new MorphMetrics(++morphCount);
+
+                    // Full-resolution frames are streamed from the photos, never rendered at screen size
+                    if (FULL_RESOLUTION && lView.getSourcePath() != null && rView.getSourcePath() != null)
+                        morphFullResolution(lView, rView, jobMetrics);
+                    else
+                        morphScaled(lView, rView, jobMetrics);
 
                     // Hide ProgressBar once complete
                     progressBar.post(new Runnable() {
@@ -447,184 +414,417 @@ public class MainActivity extends AppCompatActivity
                     "Already Morphing. Please Wait...", Toast.LENGTH_SHORT);
     }
 
-    private void warpSingleFrame(LineController[] l, LineController[] r, ImageViewEdit dv, int frameID) {
-        int numLines = l.length;
-        int arrSize = numLines * 2;
-        LineController[] sLines = l;
-        LineController[] dLines = r;
-        float[] pP = new float[arrSize]; // Point P
-        float[] pQ = new float[arrSize]; // Point Q
-        float[] pP2 = new float[arrSize]; // Point P'
-        float[] pQ2 = new float[arrSize]; // Point Q'
-        float[] vPQ = new float[arrSize]; // Vector PQ
-        float[] vN = new float[arrSize]; // Vector Normal to PQ
-        float[] vPQ2 = new float[arrSize]; // Vector P'Q'
-        float[] vN2 = new float[arrSize]; // Vector Normal to P'Q'
-
-        for (int i = 0; i < numLines; i++) {
-            int x = i * 2, y = i * 2 + 1;
-            pP[x] = dLines[i].getStart().x;
-            pP[y] = dLines[i].getStart().y;
-            pQ[x] = dLines[i].getEnd().x;
-            pQ[y] = dLines[i].getEnd().y;
-            pP2[x] = sLines[i].getStart().x;
-            pP2[y] = sLines[i].getStart().y;
-            pQ2[x] = sLines[i].getEnd().x;
-            pQ2[y] = sLines[i].getEnd().y;
-
-            vPQ[x] = pQ[x] - pP[x];
-            vPQ[y] = pQ[y] - pP[y];
-            vN[x] = vPQ[y] * -1;
-            vN[y] = vPQ[x];
-            vPQ2[x] = pQ2[x] - pP2[x];
-            vPQ2[y] = pQ2[y] - pP2[y];
-            vN2[x] = vPQ2[y] * -1;
-            vN2[y] = vPQ2[x];
+    /**
+     * Renders the morph from the photos at their original resolution and opens the display on the
+     * saved frames.
+     */
+    private void morphFullResolution(ImageViewEdit lView, ImageViewEdit rView, MorphMetrics jobMetrics) {
+        try {
+            exportFullResolution(lView, rView, jobMetrics);
+            if (LOG_METRICS)
+                Log.d(TAG, "Morph " + jobMetrics);
+            openFrameDisplay();
+        } catch (IOException e) {
+            System.err.println("Morph failed: " + e);
         }
+    }
+
+    /**
+     * Renders the morph from the images on screen, reusing results cached from an identical morph.
+     */
+    private void morphScaled(ImageViewEdit lView, ImageViewEdit rView, MorphMetrics jobMetrics) {
+        final MorphRenderer morph = createRenderer(lView, rView);
+        morph.setMetrics(jobMetrics);
+
+        // Finished frames are kept in memory, so the display can open before they are saved
+        if (repository != null)
+            FrameRepository.release(repository.getId());
+        final FrameRepository frameRepository = repository = FrameRepository.create(frames + 2);
+
+        MorphScheduler.FrameRenderer renderer = new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                PixelImage image = morph.render(frame, frames);
+                frameRepository.put(frame, image);
+                return image;
+            }
+        };
+
+        // Hashes every pixel, so taken once per run
+        String digest = morph.digest();
 
-        Bitmap inBmp = dv.getBitmap();
-        Bitmap outBmp = Bitmap.createBitmap(inBmp.getWidth(), inBmp.getHeight(), Bitmap.Config.ARGB_8888);
-
-        // Initialize RenderScript object
-        //RenderScript rs = RenderScript.create(this);
-        //ScriptC_warp warpScript = new ScriptC_warp(rs);
-
-        // Allocate non-movable memory for Bitmaps
-        //Allocation inAlloc = Allocation.createFromBitmap(rs, inBmp);
-        //Allocation outAlloc = Allocation.createFromBitmap(rs, outBmp);
-
-        // Allocate non-movable memory for float arrays
-        //Allocation apP = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //apP.copyFrom(pP);
-        //Allocation apQ = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //apQ.copyFrom(pQ);
-        //Allocation apP2 = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //apP2.copyFrom(pP2);
-        //Allocation apQ2 = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //apQ2.copyFrom(pQ2);
-        //Allocation avPQ = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //avPQ.copyFrom(vPQ);
-        //Allocation avN = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //avN.copyFrom(vN);
-        //Allocation avPQ2 = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //avPQ2.copyFrom(vPQ2);
-        //Allocation avN2 = Allocation.createSized(rs, Element.F32(rs), arrSize);
-        //avN2.copyFrom(vN2);
-
-        // Assign variables
-        //warpScript.set_apP(apP);
-        //warpScript.set_apQ(apQ);
-        //warpScript.set_apP2(apP2);
-        //warpScript.set_apQ2(apQ2);
-        //warpScript.set_avPQ(avPQ);
-        //warpScript.set_avN(avN);
-        //warpScript.set_avPQ2(avPQ2);
-        //warpScript.set_avN2(avN2);
-        //warpScript.set_inImage(inAlloc);
-        //warpScript.set_height(inBmp.getHeight());
-        //warpScript.set_width(inBmp.getWidth());
-        //warpScript.set_xOff(dv.leftBound);
-        //warpScript.set_yOff(dv.topBound);
-        //warpScript.set_num_lines(numLines);
-
-        // Iterate per pixel on Bitmap
-        //warpScript.forEach_root(outAlloc, outAlloc);
-        // Point outBmp to allocated output
-        //outAlloc.copyTo(outBmp);
-
-        // Place in completed frame array
-        warpComplete[frameID] = outBmp;
-    }
-
-    private void crossFrame(Bitmap img1, Bitmap img2, int frameID) {
-        int w1 = img1.getWidth(),
-                h1 = img1.getHeight(),
-                w2 = img2.getWidth(),
-                h2 = img2.getHeight();
-
-        int width = w1 > w2 ? w1 : w2;
-        int height = h1 > h2 ? h1 : h2;
-
-        // Create new bitmaps that will fit both source images
-        Bitmap fullBmp1 = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Bitmap fullBmp2 = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-
-        Canvas c1 = new Canvas(fullBmp1);
-        c1.drawColor(Color.WHITE);
-        c1.drawBitmap(img1, (width - w1) / 2, (height - h1) / 2, null);
-
-        Canvas c2 = new Canvas(fullBmp2);
-        c2.drawColor(Color.WHITE);
-        c2.drawBitmap(img2, (width - w2) / 2, (height - h2) / 2, null);
-
-        // Calculate fade weighting
-        float cross2 = (float) (frameID + 1) / (frames + 1);
-        float cross = 1 - cross2;
-
-        Bitmap crossBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-
-        // Initialize RenderScript object
-        //RenderScript rs = RenderScript.create(this);
-        //ScriptC_crossDissolve crossScript = new ScriptC_crossDissolve(rs);
-
-        // Allocate non-movable memory for both inputs and output bitmap
-        //Allocation inAlloc1 = Allocation.createFromBitmap(rs, fullBmp1);
-        //Allocation inAlloc2 = Allocation.createFromBitmap(rs, fullBmp2);
-        //Allocation outAlloc = Allocation.createFromBitmap(rs, crossBitmap);
-
-        // Set variables for RenderScript
-        //crossScript.set_lWeight(cross);
-        //crossScript.set_rWeight(cross2);
-        //crossScript.set_right_image(inAlloc2);
-
-        // Iterate pixel by pixel
-        //crossScript.forEach_root(inAlloc1, outAlloc);
-        // Point crossBitmap to the allocated output Bitmap
-        //outAlloc.copyTo(crossBitmap);
-
-        // Add finished bitmap to output array
-        crossComplete[frameID] = crossBitmap;
-    }
-
-    private String exportImageToFile(String fn, Bitmap bmp) {
-        File f = new File(Environment.getExternalStorageDirectory() + APP_DIRECTORY
-                + File.separator + fn + ".png");
+        // Raw frames of an identical morph may still be in the result cache
+        String rawKey = digest + "_" + frames;
+        File raw = RAW_FRAMES ? resultCache.lookup(rawKey, RawFrameStore.EXTENSION) : null;
+        RawFrameExport rawExport = RAW_FRAMES && raw == null ? createRawExport(morph) : null;
+        if (rawExport != null)
+            rawExport.setMetrics(jobMetrics);
+
+        // Wait for every frame to be rendered and exported
         try {
-            f.createNewFile();
-            FileOutputStream fo = new FileOutputStream(f);
-            bmp.compress(Bitmap.CompressFormat.PNG, 100, fo);
-            fo.close();
+            if (OUTPUT_FORMAT == OUTPUT_FRAMES)
+                exportFrames(digest, renderer, rawExport);
+            else
+                exportAnimation(morph, digest, renderer, rawExport);
+            rawPath = finishRawExport(rawExport, rawKey, raw);
+            if (LOG_METRICS)
+                Log.d(TAG, "Morph " + jobMetrics);
+            // Open FrameDisplayActivity to show final results, unless it already shows them
+            if (!displayed)
+                openFrameDisplay();
+        } catch (ExecutionException e) {
+            System.err.println("Morph failed: " + e.getCause());
         } catch (IOException e) {
-            System.err.println("Couldn't create file: " + f.getAbsolutePath());
+            System.err.println("Morph failed: " + e);
+        } catch (InterruptedException e) {
+            // Frames not yet started were cancelled by the export
+        } finally {
+            if (rawExport != null) {
+                rawExport.close();
+                if (!rawExport.isComplete())
+                    rawExport.getFile().delete();
+            }
+            // A display showing the frames from memory releases them when it closes
+            if (!displayed)
+                FrameRepository.release(frameRepository.getId());
         }
-        return f.getAbsolutePath();
     }
 
-    private void openFrameDisplay() {
+    /**
+     * Saves every frame as its own PNG. Frames from an earlier run with identical inputs are reused
+     * from the result cache.
+     *
+     * @param digest MorphRenderer.digest() of the morph
+     */
+    private void exportFrames(String digest, MorphScheduler.FrameRenderer renderer, RawFrameExport raw)
+            throws ExecutionException, InterruptedException {
+        ImageExport images = new ImageExport(baseName);
+        images.setMetrics(metrics);
+        CachedExport export = new CachedExport(resultCache, CachedExport.keys(digest, frames),
+                renderer, images);
+        MorphScheduler.Job job = scheduler.submit(frames + 2, export, withRaw(export, raw), progressListener, metrics);
+        try {
+            showWhenRendered(job);
+            filePaths = job.awaitEncoded();
+            animationPath = null;
+        } catch (InterruptedException e) {
+            job.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams every frame into a single animated file as it finishes. The whole file is kept in the
+     * result cache, so an identical morph is not rendered again.
+     *
+     * @param digest MorphRenderer.digest() of the morph
+     */
+    private void exportAnimation(MorphRenderer morph, String digest, MorphScheduler.FrameRenderer renderer,
+                                 RawFrameExport raw) throws IOException, ExecutionException, InterruptedException {
+        String extension = OUTPUT_FORMAT == OUTPUT_MJPEG ? ".avi" : ".png";
+        String key = digest + "_" + frames + "_" + OUTPUT_FORMAT;
+        File cached = resultCache.lookup(key, extension);
+        if (cached == null) {
+            File file = new File(Environment.getExternalStorageDirectory() + APP_DIRECTORY
+                    + File.separator + baseName + extension);
+            AnimationExport export = new AnimationExport(
+                    createAnimationWriter(file, morph.getWidth(), morph.getHeight()));
+            export.setMetrics(metrics);
+            MorphScheduler.Job job = scheduler.submit(frames + 2, renderer, withRaw(export, raw), progressListener,
+                    metrics);
+            try {
+                showWhenRendered(job);
+                job.awaitEncoded();
+            } catch (InterruptedException e) {
+                job.cancel();
+                throw e;
+            } finally {
+                export.close();
+            }
+            cached = resultCache.store(key, extension, file);
+        }
+        animationPath = cached.getAbsolutePath();
+        filePaths = null;
+    }
+
+    /**
+     * Renders every frame at the resolution of the original photos and streams it to a PNG a band
+     * at a time. Neither photo nor any whole frame is ever held in memory.
+     */
+    private void exportFullResolution(ImageViewEdit lView, ImageViewEdit rView, MorphMetrics jobMetrics)
+            throws IOException {
+        RegionSource left = new RegionSource(lView.getSourcePath());
+        RegionSource right = null;
+        try {
+            right = new RegionSource(rView.getSourcePath());
+            TiledMorph morph = new TiledMorph(
+                    left, packLines(lView.getLineArray()), lView.leftBound, lView.topBound, lView.getSourceScale(),
+                    right, packLines(rView.getLineArray()), rView.leftBound, rView.topBound, rView.getSourceScale());
+            morph.setSampler(SAMPLER);
+            morph.setLineWeight(LINE_WEIGHT);
+            morph.setLinearDissolve(LINEAR_DISSOLVE);
+            morph.setMetrics(jobMetrics);
+
+            PngWriter png = new PngWriter(PngWriter.DEFAULT_LEVEL);
+            String[] paths = new String[frames + 2];
+            for (int i = 0; i < paths.length; i++) {
+                File f = new File(Environment.getExternalStorageDirectory() + APP_DIRECTORY
+                        + File.separator + baseName + "_" + i + ".png");
+                PngWriter.Output out = png.open(f, morph.getWidth(), morph.getHeight(), false);
+                out.setMetrics(jobMetrics, i);
+                try {
+                    morph.render(i, frames, out);
+                } finally {
+                    out.close();
+                }
+                paths[i] = f.getAbsolutePath();
+
+                // Each frame is rendered and exported in one pass
+                progressRendered = progressEncoded = i + 1;
+                progressTotal = paths.length;
+                progress = (i + 1) * 2;
+                updateProgress(i + 1 == paths.length);
+            }
+            filePaths = paths;
+        } finally {
+            left.close();
+            if (right != null)
+                right.close();
+        }
+    }
+
+    /**
+     * Opens the frame display as soon as every frame is rendered, showing them from memory while
+     * they are still being saved. Frames reused from the result cache are never rendered, so such
+     * runs wait for their files instead.
+     */
+    private void showWhenRendered(MorphScheduler.Job job) throws ExecutionException, InterruptedException {
+        job.awaitRendered();
+        if (repository.isComplete()) {
+            displayed = true;
+            openFrameDisplay();
+        }
+    }
+
+    private static MorphScheduler.FrameEncoder withRaw(MorphScheduler.FrameEncoder encoder, RawFrameExport raw) {
+        return raw == null ? encoder : new CompositeExport(encoder, raw);
+    }
+
+    /**
+     * @return Export of raw frames next to the morph's output, or null if the file can't be created
+     */
+    private RawFrameExport createRawExport(MorphRenderer morph) {
+        File file = new File(Environment.getExternalStorageDirectory() + APP_DIRECTORY
+                + File.separator + baseName + RawFrameStore.EXTENSION);
+        try {
+            return new RawFrameExport(file, morph.getWidth(), morph.getHeight(), frames + 2);
+        } catch (IOException e) {
+            System.out.println("Couldn't create file: " + file.getAbsolutePath());
+            return null;
+        }
+    }
+
+    /**
+     * Moves a completed raw export into the result cache. An export missing frames, because those
+     * came from the cache as encoded files, is not kept.
+     *
+     * @param export Raw export of this run, or null
+     * @param key Cache key of the raw frames
+     * @param cached Raw frames found in the cache before the run, or null
+     * @return Path of the raw frames, or null if there are none
+     */
+    private String finishRawExport(RawFrameExport export, String key, File cached) {
+        if (export == null)
+            return cached != null ? cached.getAbsolutePath() : null;
+        export.close();
+        if (!export.isComplete())
+            return null;
+        File f = resultCache.store(key, RawFrameStore.EXTENSION, export.getFile());
+        return f.exists() ? f.getAbsolutePath() : null;
+    }
+
+    private static AnimationWriter createAnimationWriter(File file, int width, int height) throws IOException {
+        if (OUTPUT_FORMAT == OUTPUT_MJPEG)
+            return new AviWriter(file, width, height, AviWriter.DEFAULT_FPS, new AviWriter.Compressor() {
+                public byte[] compress(PixelImage image) {
+                    Bitmap b = Bitmap.createBitmap(image.pixels, image.width, image.height,
+                            Bitmap.Config.ARGB_8888);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    b.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                    b.recycle();
+                    return out.toByteArray();
+                }
+            });
+        return new ApngWriter(file, width, height, ApngWriter.DEFAULT_DELAY_MS, PngWriter.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Derives progress from the frame futures of the running morph.
+     */
+    private MorphScheduler.Listener progressListener = new MorphScheduler.Listener() {
+        public void onFrameRendered(MorphScheduler.Job job, int frame) {
+            updateProgress(job);
+        }
+
+        public void onFrameEncoded(MorphScheduler.Job job, int frame) {
+            updateProgress(job);
+        }
+
+        private void updateProgress(MorphScheduler.Job job) {
+            int rendered = job.getRenderedCount(), encoded = job.getEncodedCount(), total = job.getFrames();
+            progressRendered = rendered;
+            progressEncoded = encoded;
+            progressTotal = total;
+            progress = rendered + encoded;
+            MainActivity.this.updateProgress(encoded == total);
+        }
+    };
+
+    /**
+     * Shows the middle frame of the morph at reduced resolution and keeps it current while lines
+     * are dragged.
+     */
+    private void startLivePreview(ImageViewEdit lView, ImageViewEdit rView) {
+        if (lView.getBitmap() == null || rView.getBitmap() == null)
+            return;
+        stopLivePreview();
+        livePreview = new LivePreview(createRenderer(lView, rView), LivePreview.DEFAULT_SCALE,
+                new LivePreview.Listener() {
+                    public void onPreviewRendered(final LivePreview preview, PixelImage image) {
+                        final Bitmap b = Bitmap.createBitmap(image.pixels, image.width, image.height,
+                                Bitmap.Config.ARGB_8888);
+                        liveView.post(new Runnable() {
+                            public void run() {
+                                if (preview == livePreview)
+                                    liveView.setImageBitmap(b);
+                            }
+                        });
+                    }
+                });
+        livePreview.start();
+        liveView.setVisibility(View.VISIBLE);
+    }
+
+    private void stopLivePreview() {
+        if (livePreview == null)
+            return;
+        livePreview.stop();
+        livePreview = null;
+        liveView.setImageBitmap(null);
+        liveView.setVisibility(View.INVISIBLE);
+    }
+
+    /**
+     * Hands the current line geometry to the live preview. Calls faster than the preview renders
+     * are coalesced by the preview itself.
+     */
+    private void updateLivePreview() {
+        if (livePreview == null)
+            return;
+        ImageViewEdit lView = (ImageViewEdit) findViewById(R.id.image_view_left),
+                rView = (ImageViewEdit) findViewById(R.id.image_view_right);
+        livePreview.update(packLines(lView.getLineArray()), packLines(rView.getLineArray()));
+    }
+
+    /**
+     * Renders the morph at increasing resolutions and opens the frame display straight away, so the
+     * sequence can be watched while it sharpens.
+     */
+    public void startPreview(View v) {
+        NumberPicker np = (NumberPicker) findViewById(R.id.number_picker_frames);
+        ImageViewEdit lView = (ImageViewEdit) findViewById(R.id.image_view_left),
+                rView = (ImageViewEdit) findViewById(R.id.image_view_right);
+        if (lView.getBitmap() == null || rView.getBitmap() == null) {
+            Toast.makeText(getApplicationContext(),
+                    "Select Two Images First", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ProgressiveMorph preview = new ProgressiveMorph(createRenderer(lView, rView), np.getValue());
+        // Held from the start for the display, which may open after a short preview has finished
+        preview.attach();
+        preview.start();
         Intent intent = new Intent(this, MorphDisplay.class);
-        intent.putExtra(PHOTO_PATH, filePaths);
+        intent.putExtra(MorphDisplay.PREVIEW_ID, preview.getId());
         startActivity(intent);
     }
 
     /**
-     * Posts an asynchronous update to the progress bar.
+     * Builds a renderer from the images and lines of both views. Lines stay in view coordinates,
+     * offset by where each view draws its image. Fields are shared through the cache, so re-running
+     * a morph with unchanged lines only samples.
      */
-    private void updateProgress() {
-        progressBar.post(new Runnable() {
-            public void run() {
-                progressBar.setProgress(progress);
-            }
-        });
+    private MorphRenderer createRenderer(ImageViewEdit lView, ImageViewEdit rView) {
+        MorphRenderer renderer = new MorphRenderer(
+                toPixelImage(lView.getBitmap()), packLines(lView.getLineArray()), lView.leftBound, lView.topBound,
+                toPixelImage(rView.getBitmap()), packLines(rView.getLineArray()), rView.leftBound, rView.topBound);
+        renderer.setLinearDissolve(LINEAR_DISSOLVE);
+        renderer.setSampler(SAMPLER);
+        renderer.setLineWeight(LINE_WEIGHT);
+        renderer.setCache(fieldCache);
+        return renderer;
+    }
+
+    /**
+     * Packs line endpoints as (x1, y1, x2, y2) per line.
+     *
+     * @param lines Lines to pack
+     * @return Packed endpoints
+     */
+    private static float[] packLines(LineController[] lines) {
+        float[] packed = new float[lines.length * 4];
+        for (int i = 0; i < lines.length; i++) {
+            packed[i * 4] = lines[i].getStart().x;
+            packed[i * 4 + 1] = lines[i].getStart().y;
+            packed[i * 4 + 2] = lines[i].getEnd().x;
+            packed[i * 4 + 3] = lines[i].getEnd().y;
+        }
+        return packed;
+    }
+
+    private static PixelImage toPixelImage(Bitmap bmp) {
+        PixelImage img = new PixelImage(bmp.getWidth(), bmp.getHeight());
+        bmp.getPixels(img.pixels, 0, img.width, 0, 0, img.width, img.height);
+        return img;
+    }
+
+    private void openFrameDisplay() {
+        Intent intent = new Intent(this, MorphDisplay.class);
+        if (displayed)
+            intent.putExtra(MorphDisplay.JOB_ID, repository.getId());
+        if (rawPath != null)
+            intent.putExtra(MorphDisplay.RAW_PATH, rawPath);
+        if (animationPath != null)
+            intent.putExtra(MorphDisplay.ANIMATION_PATH, animationPath);
+        else if (filePaths != null)
+            intent.putExtra(PHOTO_PATH, filePaths);
+        startActivity(intent);
     }
 
     /**
-     * Increments progress variable then asynchronously updates the progress bar.
+     * Posts the current progress to the UI, at most once every PROGRESS_INTERVAL_MS. Only one
+     * update is queued at a time, and it shows the latest figures when it runs.
+     *
+     * @param last Whether this is the final update, which is always posted
      */
-    private void incrementProgress() {
-        progress++;
-        updateProgress();
+    private void updateProgress(boolean last) {
+        long now = SystemClock.uptimeMillis();
+        if (!last && now - lastProgressPost < PROGRESS_INTERVAL_MS)
+            return;
+        lastProgressPost = now;
+        if (progressPending.compareAndSet(false, true))
+            progressBar.post(progressUpdate);
     }
 
+    private final Runnable progressUpdate = new Runnable() {
+        public void run() {
+            progressPending.set(false);
+            progressBar.setProgress(progress);
+            int total = progressTotal;
+            if (total > 0)
+                progressText.setText("Rendered " + progressRendered + "/" + total
+                        + ", Exported " + progressEncoded + "/" + total);
+        }
+    };
+
     /**
      * Gets the absolute path to an image from its URI
      *
@@ -676,9 +876,14 @@ public class MainActivity extends AppCompatActivity
                 if (resultCode == RESULT_OK) {
                     Uri selectedImage = data.getData();
 
-                    selectedView.setImageBitmap(BitmapFactory.decodeFile(getRealPath(selectedImage)));
-                    selectedView.setBackgroundResource(0);
-                    selectedView.setOnTouchListener(lineTouchListener);
+                    // Decoded off the UI thread, straight to the size the view shows it at
+                    final ImageView view = selectedView;
+                    ((ImageViewEdit) view).loadImage(getRealPath(selectedImage), new Runnable() {
+                        public void run() {
+                            view.setBackgroundResource(0);
+                            view.setOnTouchListener(lineTouchListener);
+                        }
+                    });
                 }
                 break;
         }
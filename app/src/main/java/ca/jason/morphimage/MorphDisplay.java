@@ -2,9 +2,9 @@ package ca.jason.morphimage;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.Handler;
+import android.util.DisplayMetrics;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.ImageButton;
@@ -12,14 +12,24 @@ import android.widget.ImageView;
 import android.widget.NumberPicker;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Created by jason on 2017-04-08.
  */
 
 public class MorphDisplay extends AppCompatActivity {
     public static final int MAX_ANIMATION_SPEED = 10;
+    public static final String PREVIEW_ID = "ca.jason.morphimage.PREVIEW_ID";
+    public static final String ANIMATION_PATH = "ca.jason.morphimage.ANIMATION_PATH";
+    public static final String RAW_PATH = "ca.jason.morphimage.RAW_PATH";
+    public static final String JOB_ID = "ca.jason.morphimage.JOB_ID";
 
-    private Bitmap[]        bmp;
+    private FrameProvider   frames;
+    private AnimationReader animation;
+    private RawFrameStore raw;
+    private FrameRepository repository;
     private int             currIndex;
     private ImageView imageView;
     private int             direction;
@@ -27,6 +37,7 @@ public class MorphDisplay extends AppCompatActivity {
     private boolean         playing;
     private Toast frameNumber;
     private Handler timerHandler;
+    private ProgressiveMorph preview;
 
 
     /**
@@ -39,21 +50,46 @@ public class MorphDisplay extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_morph_display);
 
-        // Get file paths to images from intent data
-        String[] filePaths;
+        imageView = (ImageView) findViewById(R.id.image_view_display);
+
+        // Get file paths to images from intent data, or attach to a running preview
         Intent intent = getIntent();
-        filePaths = intent.getStringArrayExtra(MainActivity.PHOTO_PATH);
-        bmp = new Bitmap[filePaths.length];
-        for(int i = 0; i < filePaths.length; i++)
-            bmp[i] = BitmapFactory.decodeFile(filePaths[i]);
+        FrameProvider.Source source;
+        preview = ProgressiveMorph.find(intent.getIntExtra(PREVIEW_ID, -1));
+        repository = FrameRepository.find(intent.getIntExtra(JOB_ID, -1));
+        if (intent.hasExtra(RAW_PATH))
+            raw = openRaw(intent.getStringExtra(RAW_PATH));
+        if (preview != null) {
+            // The hold MainActivity took before starting the preview passes to this display
+            // Reduced frames are stretched to fill the same area as the final ones
+            imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            source = FrameProvider.preview(preview);
+        } else if (repository != null) {
+            // Frames handed over in memory, still being saved in the background
+            source = FrameProvider.repository(repository);
+        } else if (raw != null) {
+            // Raw frames are copied straight into bitmaps, with no decoding
+            source = FrameProvider.raw(raw);
+        } else if (intent.hasExtra(ANIMATION_PATH)) {
+            source = openAnimation(intent.getStringExtra(ANIMATION_PATH));
+        } else {
+            String[] filePaths = intent.getStringArrayExtra(MainActivity.PHOTO_PATH);
+            source = FrameProvider.files(filePaths != null ? filePaths : new String[0]);
+        }
+
+        // Frames are decoded at about the size of the screen, only a few at a time
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        frames = new FrameProvider(source, metrics.widthPixels, metrics.heightPixels, frameListener);
+        if (preview != null)
+            preview.addListener(previewListener);
 
         np = (NumberPicker) findViewById(R.id.number_picker_speed);
         np.setMaxValue(MAX_ANIMATION_SPEED);
         np.setMinValue(1);
-        imageView = (ImageView) findViewById(R.id.image_view_display);
-        imageView.setImageBitmap(bmp[0]);
         currIndex = 0;
         direction = 1;
+        // Shown by the frame listener as soon as it is decoded
+        display(frames.show(0, direction));
         playing = false;
         timerHandler = new Handler();
 
@@ -63,7 +99,7 @@ public class MorphDisplay extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 prevImage();
-                frameNumber.setText("Frame " + (currIndex + 1) + "/" + bmp.length);
+                frameNumber.setText("Frame " + (currIndex + 1) + "/" + frames.getFrameCount());
                 frameNumber.show();
             }
         });
@@ -74,7 +110,7 @@ public class MorphDisplay extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 nextImage();
-                frameNumber.setText("Frame " + (currIndex + 1) + "/" + bmp.length);
+                frameNumber.setText("Frame " + (currIndex + 1) + "/" + frames.getFrameCount());
                 frameNumber.show();
             }
         });
@@ -88,7 +124,6 @@ public class MorphDisplay extends AppCompatActivity {
                 if(!playing) {
                     playing = true;
                     //b.setImageResource(R.drawable.stop_icon);
-                    imageView.setImageBitmap(bmp[0]);
                     timerHandler.postDelayed(playAnimation, 0);
                 } else {
                     playing = false;
@@ -103,22 +138,120 @@ public class MorphDisplay extends AppCompatActivity {
                 "", Toast.LENGTH_SHORT);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        timerHandler.removeCallbacks(playAnimation);
+        if (preview != null) {
+            preview.removeListener(previewListener);
+            // Kept across configuration changes like the repository below
+            if (isFinishing()) {
+                preview.cancel();
+                preview.release();
+            }
+        }
+        frames.shutdown();
+        // Kept across configuration changes, which recreate the activity with the same intent
+        if (repository != null && isFinishing())
+            FrameRepository.release(repository.getId());
+        try {
+            if (animation != null)
+                animation.close();
+            if (raw != null)
+                raw.close();
+        } catch (IOException e) {
+            System.out.println("Couldn't close frames: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Shows a frame once it is decoded, if it is still the one wanted.
+     */
+    private FrameProvider.Listener frameListener = new FrameProvider.Listener() {
+        public void onFrameReady(FrameProvider provider, final int frame, final Bitmap bitmap) {
+            imageView.post(new Runnable() {
+                public void run() {
+                    if (frame == currIndex)
+                        display(bitmap);
+                }
+            });
+        }
+    };
+
+    /**
+     * Replaces frames with sharper versions as the preview refines them.
+     */
+    private ProgressiveMorph.Listener previewListener = new ProgressiveMorph.Listener() {
+        public void onFrameUpdated(ProgressiveMorph morph, int frame, PixelImage image, int scale) {
+            frames.invalidate(frame);
+        }
+    };
+
+    /**
+     * Opens the raw frames of a morph.
+     *
+     * @return The store, or null if it can't be read
+     */
+    private static RawFrameStore openRaw(String path) {
+        try {
+            return RawFrameStore.open(new File(path));
+        } catch (IOException e) {
+            System.out.println("Couldn't read raw frames: " + path);
+            return null;
+        }
+    }
+
+    /**
+     * Opens an animation written by the morph export.
+     *
+     * @param path Path to an APNG or MJPEG AVI file
+     * @return Its frames, or no frames if the file can't be read
+     */
+    private FrameProvider.Source openAnimation(String path) {
+        try {
+            animation = new AnimationReader(new File(path));
+            return FrameProvider.animation(animation);
+        } catch (IOException e) {
+            System.out.println("Couldn't read animation: " + path);
+            return FrameProvider.files(new String[0]);
+        }
+    }
+
     /**
      * Sets displayed image to the previous frame.
      */
     private void prevImage() {
         if(--currIndex == -1)
-            currIndex = bmp.length - 1;
-        imageView.setImageBitmap(bmp[currIndex]);
+            currIndex = frames.getFrameCount() - 1;
+        showCurrent(-1);
     }
 
     /**
      * Advances displayed image to the next frame.
      */
     private void nextImage() {
-        if(++currIndex == bmp.length)
+        if(++currIndex == frames.getFrameCount())
             currIndex = 0;
-        imageView.setImageBitmap(bmp[currIndex]);
+        showCurrent(1);
+    }
+
+    /**
+     * Shows the current frame, keeping the previous one on screen until it is decoded.
+     *
+     * @param step Direction the frames are being stepped through
+     */
+    private void showCurrent(int step) {
+        Bitmap b = frames.show(currIndex, step);
+        if (b != null)
+            display(b);
+    }
+
+    /**
+     * Puts a bitmap on screen, telling the provider so it doesn't decode into it while drawn.
+     */
+    private void display(Bitmap b) {
+        imageView.setImageBitmap(b);
+        frames.setDisplayed(b);
     }
 
     /**
@@ -127,11 +260,18 @@ public class MorphDisplay extends AppCompatActivity {
     Runnable playAnimation = new Runnable() {
         public void run () {
             int speed = ((MAX_ANIMATION_SPEED + 1) - np.getValue()) * 100;
+            // Hold the current frame while the next one is still decoding
+            int next = currIndex + direction;
+            if (next >= 0 && next < frames.getFrameCount() && !frames.isReady(next)) {
+                frames.show(currIndex, direction);
+                timerHandler.postDelayed(this, speed / 4);
+                return;
+            }
             if(direction > 0)
                 nextImage();
             else
                 prevImage();
-            if(currIndex == 0 || currIndex == bmp.length - 1) {
+            if(currIndex == 0 || currIndex == frames.getFrameCount() - 1) {
                 timerHandler.postDelayed(this, speed * 3);
                 direction *= -1;
             } else
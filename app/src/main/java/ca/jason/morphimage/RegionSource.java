@@ -0,0 +1,48 @@
+package ca.jason.morphimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Reads rectangles of a photo file at full resolution through BitmapRegionDecoder, so the photo
+ * is never decoded whole.
+ */
+
+public class RegionSource implements TiledMorph.Source {
+    private final BitmapRegionDecoder decoder;
+
+    public RegionSource(String path) throws IOException {
+        decoder = BitmapRegionDecoder.newInstance(path, false);
+    }
+
+    public int getWidth() {
+        return decoder.getWidth();
+    }
+
+    public int getHeight() {
+        return decoder.getHeight();
+    }
+
+    public PixelImage read(int left, int top, int right, int bottom) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap b;
+        synchronized (decoder) {
+            b = decoder.decodeRegion(new Rect(left, top, right, bottom), options);
+        }
+        if (b == null)
+            throw new IOException("Couldn't decode region " + left + "," + top + "-" + right + "," + bottom);
+        PixelImage image = new PixelImage(b.getWidth(), b.getHeight());
+        b.getPixels(image.pixels, 0, image.width, 0, 0, image.width, image.height);
+        b.recycle();
+        return image;
+    }
+
+    public void close() {
+        decoder.recycle();
+    }
+}
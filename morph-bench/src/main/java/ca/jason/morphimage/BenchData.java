@@ -0,0 +1,86 @@
+package ca.jason.morphimage;
+
+import java.util.Random;
+
+/**
+ * Deterministic inputs shared by the benchmarks, so results from different builds measure the
+ * same work.
+ */
+
+final class BenchData {
+    private BenchData() {
+    }
+
+    /**
+     * @param megapixels Image area in millions of pixels
+     * @return Width of a 4:3 image of that area
+     */
+    static int width(double megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+    }
+
+    /**
+     * @param megapixels Image area in millions of pixels
+     * @return Height of a 4:3 image of that area
+     */
+    static int height(double megapixels) {
+        return width(megapixels) * 3 / 4;
+    }
+
+    /**
+     * Builds an opaque 4:3 image of smooth gradients with a little noise, which compresses and
+     * samples more like a photo than pure noise does.
+     *
+     * @param megapixels Image area in millions of pixels
+     * @param seed Seed of the noise
+     */
+    static PixelImage image(double megapixels, int seed) {
+        int w = width(megapixels), h = height(megapixels);
+        PixelImage image = new PixelImage(w, h);
+        Random random = new Random(seed);
+        int[] px = image.pixels;
+        for (int y = 0, i = 0; y < h; y++) {
+            for (int x = 0; x < w; x++, i++) {
+                int n = random.nextInt(16);
+                int r = (x * 255 / w + n) & 0xFF, g = (y * 255 / h + n) & 0xFF, b = ((x + y + seed * 64) >> 2) & 0xFF;
+                px[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Builds random lines of 2% to 20% of the image size, packed as (x1, y1, x2, y2).
+     *
+     * @param count Number of lines
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param seed Seed of the line positions
+     */
+    static float[] lines(int count, int width, int height, int seed) {
+        Random random = new Random(seed);
+        float[] lines = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            float x = random.nextFloat() * width, y = random.nextFloat() * height;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            float len = (0.02f + random.nextFloat() * 0.18f) * Math.max(width, height);
+            lines[i * 4] = x;
+            lines[i * 4 + 1] = y;
+            lines[i * 4 + 2] = x + (float) Math.cos(angle) * len;
+            lines[i * 4 + 3] = y + (float) Math.sin(angle) * len;
+        }
+        return lines;
+    }
+
+    /**
+     * Moves every endpoint of a set of lines by up to the given distance, giving the matching
+     * lines on the other image of a morph.
+     */
+    static float[] jitter(float[] lines, float distance, int seed) {
+        Random random = new Random(seed);
+        float[] moved = new float[lines.length];
+        for (int i = 0; i < lines.length; i++)
+            moved[i] = lines[i] + (random.nextFloat() * 2 - 1) * distance;
+        return moved;
+    }
+}
@@ -0,0 +1,52 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cross-dissolving two whole images, in gamma space and in linear light.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class DissolveBenchmark {
+    @Param({"0.3", "2", "8", "24"})
+    public double megapixels;
+
+    @Param({"false", "true"})
+    public boolean linear;
+
+    private int[] a, b, out;
+    private CrossDissolve dissolve;
+
+    @Setup
+    public void setup() {
+        a = BenchData.image(megapixels, 1).pixels;
+        b = BenchData.image(megapixels, 2).pixels;
+        out = new int[a.length];
+        dissolve = new CrossDissolve(0.4f, linear);
+    }
+
+    @Benchmark
+    public int[] blend() {
+        CrossDissolve d = dissolve;
+        for (int i = 0; i < out.length; i++)
+            out[i] = d.blend(a[i], b[i]);
+        return out;
+    }
+}
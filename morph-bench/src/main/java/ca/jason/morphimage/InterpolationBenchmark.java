@@ -0,0 +1,59 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame line setup for a whole morph: interpolating the lines of every frame, and building
+ * the three line fields each frame is warped with.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InterpolationBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int lines;
+
+    @Param({"10", "60", "240"})
+    public int frames;
+
+    private float[] leftLines, rightLines;
+
+    @Setup
+    public void setup() {
+        leftLines = BenchData.lines(lines, 1600, 1200, 3);
+        rightLines = BenchData.jitter(leftLines, 32, 4);
+    }
+
+    @Benchmark
+    public void interpolate(Blackhole bh) {
+        for (int i = 1; i <= frames; i++)
+            bh.consume(MorphRenderer.interpolate(leftLines, rightLines, (float) i / (frames + 1)));
+    }
+
+    @Benchmark
+    public void fields(Blackhole bh) {
+        LineField left = new LineField(leftLines, 0, 0, LineWeight.DEFAULT);
+        LineField right = new LineField(rightLines, 0, 0, LineWeight.DEFAULT);
+        for (int i = 1; i <= frames; i++) {
+            float[] mid = MorphRenderer.interpolate(leftLines, rightLines, (float) i / (frames + 1));
+            bh.consume(new FieldWarp(new LineField(mid, 0, 0, LineWeight.DEFAULT), left, right));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding one frame to PNG in memory, filtering and compressing in parallel pieces.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PngBenchmark {
+    @Param({"0.3", "2", "8", "24"})
+    public double megapixels;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private PixelImage image;
+    private PngWriter writer;
+
+    @Setup
+    public void setup() {
+        image = BenchData.image(megapixels, 1);
+        writer = new PngWriter(level);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return writer.compress(image, false);
+    }
+}
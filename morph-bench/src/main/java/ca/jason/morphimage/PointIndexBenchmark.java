@@ -0,0 +1,59 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the endpoint closest to a touch among many lines on a phone-sized view, as every touch
+ * down on the editor does.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PointIndexBenchmark {
+    private static final int WIDTH = 720, HEIGHT = 960, QUERIES = 1024;
+
+    @Param({"10", "200", "2000"})
+    public int lines;
+
+    private PointIndex index;
+    private int[] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(3);
+        index = new PointIndex(PointIndex.DEFAULT_CELL_SIZE);
+        index.resize(WIDTH, HEIGHT);
+        for (int i = 0; i < lines; i++)
+            index.addLine(r.nextInt(WIDTH), r.nextInt(HEIGHT), r.nextInt(WIDTH), r.nextInt(HEIGHT));
+        queries = new int[QUERIES * 2];
+        for (int i = 0; i < queries.length; i += 2) {
+            queries[i] = r.nextInt(WIDTH);
+            queries[i + 1] = r.nextInt(HEIGHT);
+        }
+    }
+
+    @Benchmark
+    public int closest() {
+        int i = next;
+        next = (i + 2) & (queries.length - 1);
+        return index.closest(queries[i], queries[i + 1]);
+    }
+}
@@ -0,0 +1,69 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resampling an image through a slight rotation and zoom, one sample per output pixel, so every
+ * sample lands between source pixels as it does in a warp.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class SamplerBenchmark {
+    @Param({"0.3", "2", "8", "24"})
+    public double megapixels;
+
+    @Param({"NEAREST", "BILINEAR", "BICUBIC"})
+    public Sampler.Kind kind;
+
+    private Sampler sampler;
+    private int[] out;
+    private int width, height;
+    // Source step per output pixel along a row and down a column, in 24.8 fixed point
+    private int dxx, dxy, dyx, dyy;
+
+    @Setup
+    public void setup() {
+        PixelImage image = BenchData.image(megapixels, 1);
+        width = image.width;
+        height = image.height;
+        sampler = kind.create(image);
+        out = new int[width * height];
+        double angle = Math.toRadians(3), scale = 0.95;
+        dxx = (int) Math.round(Math.cos(angle) * scale * Sampler.ONE);
+        dxy = (int) Math.round(Math.sin(angle) * scale * Sampler.ONE);
+        dyx = -dxy;
+        dyy = dxx;
+    }
+
+    @Benchmark
+    public int[] sample() {
+        Sampler s = sampler;
+        int[] px = out;
+        for (int y = 0, i = 0; y < height; y++) {
+            int fx = y * dyx, fy = y * dyy;
+            for (int x = 0; x < width; x++, i++) {
+                px[i] = s.sample(fx, fy);
+                fx += dxx;
+                fy += dxy;
+            }
+        }
+        return px;
+    }
+}
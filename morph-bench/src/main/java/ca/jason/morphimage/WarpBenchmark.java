@@ -0,0 +1,78 @@
+package ca.jason.morphimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Field warp of one middle frame: evaluating the field alone, warping and dissolving both images
+ * through it with samplers built once, and a whole frame as MorphRenderer draws it, with line
+ * culling.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class WarpBenchmark {
+    @Param({"0.3", "2", "8", "24"})
+    public double megapixels;
+
+    @Param({"1", "10", "100", "1000"})
+    public int lines;
+
+    private PixelImage left, right, out;
+    private float[] midLines;
+    private FieldWarp warp;
+    private Sampler leftSampler, rightSampler;
+    private MorphRenderer renderer;
+    private CrossDissolve dissolve;
+
+    @Setup
+    public void setup() {
+        left = BenchData.image(megapixels, 1);
+        right = BenchData.image(megapixels, 2);
+        int w = left.width, h = left.height;
+        float[] leftLines = BenchData.lines(lines, w, h, 3);
+        float[] rightLines = BenchData.jitter(leftLines, 0.02f * w, 4);
+        midLines = MorphRenderer.interpolate(leftLines, rightLines, 0.5f);
+
+        warp = new FieldWarp(new LineField(midLines, 0, 0, LineWeight.DEFAULT),
+                new LineField(leftLines, 0, 0, LineWeight.DEFAULT), new LineField(rightLines, 0, 0, LineWeight.DEFAULT));
+        warp.setSampler(Sampler.Kind.BILINEAR);
+        leftSampler = Sampler.Kind.BILINEAR.create(left);
+        rightSampler = Sampler.Kind.BILINEAR.create(right);
+        renderer = new MorphRenderer(left, leftLines, 0, 0, right, rightLines, 0, 0);
+        renderer.setSampler(Sampler.Kind.BILINEAR);
+        dissolve = new CrossDissolve(0.5f, false);
+        out = new PixelImage(w, h);
+    }
+
+    @Benchmark
+    public FieldMap field() {
+        return warp.map(out.width, out.height);
+    }
+
+    @Benchmark
+    public PixelImage warpDissolve() {
+        warp.warpDissolve(leftSampler, 0, 0, rightSampler, 0, 0, dissolve, out, 0, 0, out.width, out.height);
+        return out;
+    }
+
+    @Benchmark
+    public PixelImage frame() {
+        return renderer.render(midLines, 0.5f);
+    }
+}
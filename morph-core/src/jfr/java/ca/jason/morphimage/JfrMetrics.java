@@ -0,0 +1,110 @@
+package ca.jason.morphimage;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits morph metrics as Flight Recorder events, so stages show up in a recording next to GC and
+ * thread activity. Events cost next to nothing unless a recording is enabled for them.
+ *
+ * Each stage event begins when the stage starts and ends when it is recorded, so its duration in
+ * the recording is the stage's. Stages of a frame run one after another on one thread, which holds
+ * at most one open event at a time.
+ *
+ * Needs a JVM with jdk.jfr and never loads on Android. Lives in its own source set so morph-core
+ * still compiles for Java 7; MorphBatch loads it by name through create(), which returns null where
+ * Flight Recorder is missing.
+ */
+
+public class JfrMetrics implements MorphMetrics.Listener {
+    @Name("ca.jason.morphimage.Stage")
+    @Label("Morph Stage")
+    @Category("Morph")
+    static class StageEvent extends Event {
+        @Label("Job")
+        int job;
+        @Label("Frame")
+        int frame;
+        @Label("Stage")
+        String stage;
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTime;
+        @Label("Bytes Written")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+
+    @Name("ca.jason.morphimage.QueueDepth")
+    @Label("Morph Queue Depth")
+    @Category("Morph")
+    static class QueueEvent extends Event {
+        @Label("Job")
+        int job;
+        @Label("Render Queue")
+        int renderQueue;
+        @Label("Encode Queue")
+        int encodeQueue;
+    }
+
+    /**
+     * @return A listener emitting events, or null if this JVM has no Flight Recorder
+     */
+    public static MorphMetrics.Listener create() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return new JfrMetrics();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private final ThreadLocal<StageEvent> open = new ThreadLocal<>();
+
+    public void onStageBegin(MorphMetrics metrics, int frame, MorphMetrics.Stage stage) {
+        StageEvent e = new StageEvent();
+        if (!e.isEnabled())
+            return;
+        e.job = metrics.getJob();
+        e.frame = frame;
+        e.stage = stage.name();
+        e.begin();
+        open.set(e);
+    }
+
+    public void onStage(MorphMetrics metrics, int frame, MorphMetrics.Stage stage,
+                        long wallNanos, long cpuNanos, long bytes) {
+        StageEvent e = open.get();
+        // Recording may have been enabled partway through the stage
+        if (e == null || e.job != metrics.getJob() || e.frame != frame || !e.stage.equals(stage.name()))
+            return;
+        open.remove();
+        e.end();
+        if (!e.shouldCommit())
+            return;
+        e.wallTime = wallNanos;
+        e.cpuTime = cpuNanos;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    /**
+     * Queue depths are a sample at one instant, so their events have no duration.
+     */
+    public void onQueueDepth(MorphMetrics metrics, int renderQueue, int encodeQueue) {
+        QueueEvent e = new QueueEvent();
+        if (!e.isEnabled())
+            return;
+        e.job = metrics.getJob();
+        e.renderQueue = renderQueue;
+        e.encodeQueue = encodeQueue;
+        e.commit();
+    }
+}
@@ -0,0 +1,78 @@
+package ca.jason.morphimage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the frames of a morph into one animated file. Frames are compressed on the encode
+ * threads as they finish, in whatever order that is, and appended to the file in frame order.
+ * A frame that finishes ahead of its predecessors waits compressed, never as pixels.
+ */
+
+public class AnimationExport implements MorphScheduler.FrameEncoder {
+    private final AnimationWriter writer;
+    private final Map<Integer, byte[]> pending = new HashMap<>();
+    private int next;
+    private MorphMetrics metrics;
+
+    public AnimationExport(AnimationWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Records compression of each frame as ENCODE and appending it as WRITE.
+     *
+     * @param metrics Metrics of the job, or null
+     */
+    public void setMetrics(MorphMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Path of the animation, the same for every frame
+     */
+    public String encode(int frame, PixelImage image) throws IOException {
+        MorphMetrics m = metrics;
+        if (m != null)
+            m.begin(frame, MorphMetrics.Stage.ENCODE);
+        long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+        byte[] data = writer.compress(image);
+        if (m != null)
+            m.record(frame, MorphMetrics.Stage.ENCODE, startWall, startCpu, 0);
+        synchronized (pending) {
+            pending.put(frame, data);
+            while ((data = pending.remove(next)) != null) {
+                if (m != null)
+                    m.begin(next, MorphMetrics.Stage.WRITE);
+                startWall = System.nanoTime();
+                startCpu = MorphMetrics.cpuTime();
+                writer.append(data);
+                if (m != null)
+                    m.record(next, MorphMetrics.Stage.WRITE, startWall, startCpu, data.length);
+                next++;
+            }
+        }
+        return writer.getFile().getAbsolutePath();
+    }
+
+    /**
+     * Completes the file once every frame has been encoded.
+     */
+    public void close() throws IOException {
+        synchronized (pending) {
+            if (!pending.isEmpty())
+                System.out.println("Animation closed with " + pending.size() + " frames after a missing frame");
+            writer.close();
+        }
+    }
+
+    /**
+     * @return Number of frames appended to the file so far
+     */
+    public int getAppended() {
+        synchronized (pending) {
+            return next;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads frames back from a file written by ApngWriter or AviWriter. Opening the file only walks
+ * its chunk headers to find each frame; a frame's data is read when it is asked for and returned
+ * as a standalone PNG or JPEG image that the platform decoder understands.
+ */
+
+public class AnimationReader {
+    private final RandomAccessFile file;
+    private final boolean png;
+    // Per frame: offsets and lengths of its data chunks
+    private final List<long[]> frames = new ArrayList<>();
+    private byte[] header;
+    private int delay;
+
+    public AnimationReader(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        byte[] magic = new byte[12];
+        file.readFully(magic);
+        png = startsWith(magic, 0, PngWriter.SIGNATURE);
+        try {
+            if (png)
+                indexPng();
+            else if (startsWith(magic, 0, "RIFF".getBytes("US-ASCII")) && startsWith(magic, 8, "AVI ".getBytes("US-ASCII")))
+                indexAvi();
+            else
+                throw new IOException("Not an animation: " + f.getAbsolutePath());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * @return Display time of each frame in milliseconds
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * Reads one frame as a complete image file.
+     *
+     * @param frame Index of the frame
+     * @return PNG or JPEG image
+     */
+    public synchronized byte[] readFrame(int frame) throws IOException {
+        long[] chunks = frames.get(frame);
+        int length = 0;
+        for (int i = 1; i < chunks.length; i += 2)
+            length += (int) chunks[i];
+        if (!png) {
+            byte[] jpeg = new byte[length];
+            file.seek(chunks[0]);
+            file.readFully(jpeg);
+            return jpeg;
+        }
+
+        // Signature, IHDR, the frame's data as one IDAT, IEND
+        byte[] out = new byte[8 + header.length + 12 + length + 12];
+        System.arraycopy(PngWriter.SIGNATURE, 0, out, 0, 8);
+        System.arraycopy(header, 0, out, 8, header.length);
+        int o = 8 + header.length;
+        PngWriter.putInt(out, o, length);
+        out[o + 4] = 'I';
+        out[o + 5] = 'D';
+        out[o + 6] = 'A';
+        out[o + 7] = 'T';
+        int p = o + 8;
+        for (int i = 0; i < chunks.length; i += 2) {
+            file.seek(chunks[i]);
+            file.readFully(out, p, (int) chunks[i + 1]);
+            p += (int) chunks[i + 1];
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out, o + 4, length + 4);
+        PngWriter.putInt(out, p, (int) crc.getValue());
+        p += 4;
+        PngWriter.putInt(out, p, 0);
+        out[p + 4] = 'I';
+        out[p + 5] = 'E';
+        out[p + 6] = 'N';
+        out[p + 7] = 'D';
+        crc.reset();
+        crc.update(out, p + 4, 4);
+        PngWriter.putInt(out, p + 8, (int) crc.getValue());
+        return out;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void indexPng() throws IOException {
+        long pos = 8, end = file.length();
+        List<Long> current = null;
+        byte[] head = new byte[8];
+        while (pos + 12 <= end) {
+            file.seek(pos);
+            file.readFully(head);
+            int length = getInt(head, 0);
+            String type = new String(head, 4, 4, "US-ASCII");
+            if (type.equals("IHDR")) {
+                header = new byte[length + 12];
+                file.seek(pos);
+                file.readFully(header);
+            } else if (type.equals("fcTL")) {
+                if (current != null)
+                    addFrame(current);
+                current = new ArrayList<>();
+                byte[] control = new byte[length];
+                file.readFully(control);
+                int num = ((control[20] & 0xFF) << 8) | (control[21] & 0xFF);
+                int den = ((control[22] & 0xFF) << 8) | (control[23] & 0xFF);
+                delay = num * 1000 / (den == 0 ? 100 : den);
+            } else if (type.equals("IDAT") || type.equals("fdAT")) {
+                // A plain PNG has no fcTL and is a single frame
+                if (current == null)
+                    current = new ArrayList<>();
+                int skip = type.equals("fdAT") ? 4 : 0;
+                current.add(pos + 8 + skip);
+                current.add((long) (length - skip));
+            } else if (type.equals("IEND")) {
+                break;
+            }
+            pos += length + 12;
+        }
+        if (current != null)
+            addFrame(current);
+        if (header == null)
+            throw new IOException("PNG without IHDR");
+    }
+
+    private void indexAvi() throws IOException {
+        byte[] head = new byte[12];
+        long pos = 12, end = file.length();
+        while (pos + 8 <= end) {
+            file.seek(pos);
+            file.readFully(head, 0, 8);
+            String id = new String(head, 0, 4, "US-ASCII");
+            int length = Integer.reverseBytes(getInt(head, 4));
+            if (id.equals("LIST")) {
+                file.readFully(head, 8, 4);
+                String list = new String(head, 8, 4, "US-ASCII");
+                // Descend into hdrl, strl and movi
+                if (list.equals("hdrl") || list.equals("strl") || list.equals("movi")) {
+                    pos += 12;
+                    continue;
+                }
+            } else if (id.equals("avih")) {
+                byte[] b = new byte[4];
+                file.readFully(b);
+                delay = Integer.reverseBytes(getInt(b, 0)) / 1000;
+            } else if (id.endsWith("dc")) {
+                List<Long> chunk = new ArrayList<>();
+                chunk.add(pos + 8);
+                chunk.add((long) length);
+                addFrame(chunk);
+            }
+            pos += 8 + length + (length & 1);
+        }
+    }
+
+    private void addFrame(List<Long> chunks) {
+        long[] a = new long[chunks.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = chunks.get(i);
+        frames.add(a);
+    }
+
+    private static int getInt(byte[] b, int o) {
+        return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+    }
+
+    private static boolean startsWith(byte[] b, int o, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++)
+            if (b[o + i] != prefix[i])
+                return false;
+        return true;
+    }
+}
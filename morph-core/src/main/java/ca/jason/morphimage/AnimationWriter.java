@@ -0,0 +1,34 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Streams the frames of a morph into a single animated file. Compressing a frame is independent of
+ * the others and may run on any thread; compressed frames are appended one at a time, in order,
+ * and the file's header and index are completed when it is closed.
+ */
+
+public interface AnimationWriter {
+    /**
+     * Compresses a frame. Safe to call from several threads at once.
+     *
+     * @param image Frame to compress, of the animation's size
+     * @return Compressed frame, to be passed to append
+     */
+    byte[] compress(PixelImage image) throws IOException;
+
+    /**
+     * Appends the next frame to the file.
+     *
+     * @param frame Result of compress
+     */
+    void append(byte[] frame) throws IOException;
+
+    /**
+     * Patches the header and index for the frames appended and closes the file.
+     */
+    void close() throws IOException;
+
+    File getFile();
+}
@@ -0,0 +1,105 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes an animated PNG. The first frame is stored as the regular image data, so viewers without
+ * APNG support still show it; later frames follow as fdAT chunks. The frame count in the acTL
+ * chunk is written as zero and patched when the file is closed.
+ *
+ * Frames are stored as RGBA, since every frame has to share the colour type of the header.
+ */
+
+public class ApngWriter implements AnimationWriter {
+    public static final int DEFAULT_DELAY_MS = 100;
+
+    // Offset of the acTL chunk, after the signature and the 25 bytes of IHDR
+    private static final int ACTL_OFFSET = 8 + 25;
+
+    private final File file;
+    private final int width, height, delay;
+    private final PngWriter png;
+    private final FileOutputStream fo;
+    private final PngWriter.ChunkWriter out;
+    private int frames, sequence;
+
+    /**
+     * @param file File to write, replaced if it exists
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @param delay Display time of each frame in milliseconds
+     * @param level Deflate level, 0 to 9
+     */
+    public ApngWriter(File file, int width, int height, int delay, int level) throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.delay = delay;
+        png = new PngWriter(level);
+        fo = new FileOutputStream(file);
+        out = new PngWriter.ChunkWriter(fo.getChannel());
+        out.put(PngWriter.SIGNATURE, 0, PngWriter.SIGNATURE.length);
+        out.chunk("IHDR", PngWriter.header(width, height, true), 0, 13);
+        out.chunk("acTL", animationControl(0), 0, 8);
+    }
+
+    public byte[] compress(PixelImage image) {
+        if (image.width != width || image.height != height)
+            throw new IllegalArgumentException("Frame is " + image.width + "x" + image.height
+                    + ", animation is " + width + "x" + height);
+        return png.compress(image, true);
+    }
+
+    public synchronized void append(byte[] frame) throws IOException {
+        byte[] control = new byte[26];
+        PngWriter.putInt(control, 0, sequence++);
+        PngWriter.putInt(control, 4, width);
+        PngWriter.putInt(control, 8, height);
+        // Offset 0, 0; delay in milliseconds; no disposal, frame replaces the canvas
+        control[20] = (byte) (delay >> 8);
+        control[21] = (byte) delay;
+        control[22] = (byte) (1000 >> 8);
+        control[23] = (byte) 1000;
+        out.chunk("fcTL", control, 0, control.length);
+
+        if (frames == 0) {
+            out.chunk("IDAT", frame, 0, frame.length);
+        } else {
+            byte[] data = new byte[frame.length + 4];
+            PngWriter.putInt(data, 0, sequence++);
+            System.arraycopy(frame, 0, data, 4, frame.length);
+            out.chunk("fdAT", data, 0, data.length);
+        }
+        frames++;
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            out.chunk("IEND", new byte[0], 0, 0);
+            out.patchChunk(ACTL_OFFSET, "acTL", animationControl(frames), 0, 8);
+        } finally {
+            fo.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Number of frames appended so far
+     */
+    public synchronized int getFrames() {
+        return frames;
+    }
+
+    private static byte[] animationControl(int frames) {
+        byte[] control = new byte[8];
+        PngWriter.putInt(control, 0, frames);
+        // Loop forever
+        PngWriter.putInt(control, 4, 0);
+        return control;
+    }
+}
@@ -0,0 +1,195 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes Motion JPEG frames into an AVI file. The headers are written up front with placeholder
+ * sizes and counts, frames are appended to the movi list as they arrive, and the idx1 index is
+ * written and the headers patched when the file is closed. Only the index, 8 bytes per frame,
+ * is kept in memory.
+ *
+ * JPEG compression is supplied by the caller, since it depends on the platform.
+ */
+
+public class AviWriter implements AnimationWriter {
+    public static final int DEFAULT_FPS = 10;
+
+    // Offsets of the fields patched on close
+    private static final int RIFF_SIZE = 4, TOTAL_FRAMES = 48, MAX_BYTES_PER_SEC = 36,
+            AVIH_BUFFER_SIZE = 60, STREAM_LENGTH = 140, STRH_BUFFER_SIZE = 144, MOVI_SIZE = 216, MOVI = 220;
+    private static final int KEYFRAME = 0x10, HAS_INDEX = 0x10;
+
+    private final File file;
+    private final int width, height, fps;
+    private final Compressor compressor;
+    private final FileOutputStream fo;
+    private final ChannelWriter out;
+    private int[] index = new int[32];
+    private int frames, maxFrame;
+
+    /**
+     * Compresses a frame to a complete JPEG image.
+     */
+    public interface Compressor {
+        byte[] compress(PixelImage image) throws IOException;
+    }
+
+    /**
+     * @param file File to write, replaced if it exists
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @param fps Frames per second
+     * @param compressor Encodes each frame as JPEG
+     */
+    public AviWriter(File file, int width, int height, int fps, Compressor compressor) throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.compressor = compressor;
+        fo = new FileOutputStream(file);
+        out = new ChannelWriter(fo.getChannel());
+        out.put(header(), 0, MOVI + 4);
+    }
+
+    public byte[] compress(PixelImage image) throws IOException {
+        if (image.width != width || image.height != height)
+            throw new IllegalArgumentException("Frame is " + image.width + "x" + image.height
+                    + ", animation is " + width + "x" + height);
+        return compressor.compress(image);
+    }
+
+    public synchronized void append(byte[] frame) throws IOException {
+        if (frames * 2 == index.length) {
+            int[] grown = new int[index.length * 2];
+            System.arraycopy(index, 0, grown, 0, index.length);
+            index = grown;
+        }
+        index[frames * 2] = (int) (out.position() - MOVI);
+        index[frames * 2 + 1] = frame.length;
+        frames++;
+        maxFrame = Math.max(maxFrame, frame.length);
+
+        byte[] head = new byte[8];
+        putFourCC(head, 0, "00dc");
+        putInt(head, 4, frame.length);
+        out.put(head, 0, 8);
+        out.put(frame, 0, frame.length);
+        // Chunks are padded to an even length
+        if ((frame.length & 1) != 0)
+            out.put(new byte[1], 0, 1);
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            long moviEnd = out.position();
+            byte[] idx = new byte[8 + frames * 16];
+            putFourCC(idx, 0, "idx1");
+            putInt(idx, 4, frames * 16);
+            for (int i = 0; i < frames; i++) {
+                int o = 8 + i * 16;
+                putFourCC(idx, o, "00dc");
+                putInt(idx, o + 4, KEYFRAME);
+                putInt(idx, o + 8, index[i * 2]);
+                putInt(idx, o + 12, index[i * 2 + 1]);
+            }
+            out.put(idx, 0, idx.length);
+            long end = out.position();
+
+            patchInt(RIFF_SIZE, (int) (end - 8));
+            patchInt(MAX_BYTES_PER_SEC, maxFrame * fps);
+            patchInt(TOTAL_FRAMES, frames);
+            patchInt(AVIH_BUFFER_SIZE, maxFrame + 8);
+            patchInt(STREAM_LENGTH, frames);
+            patchInt(STRH_BUFFER_SIZE, maxFrame + 8);
+            patchInt(MOVI_SIZE, (int) (moviEnd - MOVI));
+        } finally {
+            fo.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Number of frames appended so far
+     */
+    public synchronized int getFrames() {
+        return frames;
+    }
+
+    /**
+     * RIFF header, the hdrl list with one video stream and the start of the movi list. Sizes and
+     * counts not known yet are zero.
+     */
+    private byte[] header() {
+        byte[] h = new byte[MOVI + 4];
+        putFourCC(h, 0, "RIFF");
+        putFourCC(h, 8, "AVI ");
+        putFourCC(h, 12, "LIST");
+        putInt(h, 16, 192);
+        putFourCC(h, 20, "hdrl");
+
+        putFourCC(h, 24, "avih");
+        putInt(h, 28, 56);
+        putInt(h, 32, 1000000 / fps);
+        putInt(h, 44, HAS_INDEX);
+        putInt(h, 56, 1);
+        putInt(h, 64, width);
+        putInt(h, 68, height);
+
+        putFourCC(h, 88, "LIST");
+        putInt(h, 92, 116);
+        putFourCC(h, 96, "strl");
+        putFourCC(h, 100, "strh");
+        putInt(h, 104, 56);
+        putFourCC(h, 108, "vids");
+        putFourCC(h, 112, "MJPG");
+        putInt(h, 128, 1);
+        putInt(h, 132, fps);
+        putInt(h, 148, -1);
+        putShort(h, 160, width);
+        putShort(h, 162, height);
+
+        putFourCC(h, 164, "strf");
+        putInt(h, 168, 40);
+        putInt(h, 172, 40);
+        putInt(h, 176, width);
+        putInt(h, 180, height);
+        putShort(h, 184, 1);
+        putShort(h, 186, 24);
+        putFourCC(h, 188, "MJPG");
+        putInt(h, 192, width * height * 3);
+
+        putFourCC(h, 212, "LIST");
+        putFourCC(h, MOVI, "movi");
+        return h;
+    }
+
+    private void patchInt(long position, int v) throws IOException {
+        byte[] b = new byte[4];
+        putInt(b, 0, v);
+        out.patch(position, b, 0, 4);
+    }
+
+    private static void putFourCC(byte[] b, int o, String fourcc) {
+        for (int i = 0; i < 4; i++)
+            b[o + i] = (byte) fourcc.charAt(i);
+    }
+
+    // RIFF is little-endian
+    private static void putInt(byte[] b, int o, int v) {
+        b[o] = (byte) v;
+        b[o + 1] = (byte) (v >> 8);
+        b[o + 2] = (byte) (v >> 16);
+        b[o + 3] = (byte) (v >> 24);
+    }
+
+    private static void putShort(byte[] b, int o, int v) {
+        b[o] = (byte) v;
+        b[o + 1] = (byte) (v >> 8);
+    }
+}
@@ -0,0 +1,64 @@
+package ca.jason.morphimage;
+
+/**
+ * Catmull-Rom interpolation over the 4 x 4 pixels around a coordinate. Tap weights for every
+ * 8-bit fraction are tabulated as fixed-point integers summing exactly to one, so rows are
+ * combined in integer arithmetic and only the final channels need clamping.
+ */
+
+public class BicubicSampler extends PaddedSampler {
+    private static final int WEIGHT_BITS = 10;
+    private static final int ROUND = 1 << (WEIGHT_BITS * 2 - 1);
+    private static final int MASK = ONE - 1;
+    private static final int[] WEIGHTS = new int[ONE * 4];
+
+    static {
+        for (int f = 0; f < ONE; f++) {
+            double t = (double) f / ONE;
+            double[] w = {
+                    ((-0.5 * t + 1.0) * t - 0.5) * t,
+                    (1.5 * t - 2.5) * t * t + 1.0,
+                    ((-1.5 * t + 2.0) * t + 0.5) * t,
+                    (0.5 * t - 0.5) * t * t};
+            int sum = 0, largest = 0;
+            for (int k = 0; k < 4; k++) {
+                WEIGHTS[f * 4 + k] = (int) Math.round(w[k] * (1 << WEIGHT_BITS));
+                sum += WEIGHTS[f * 4 + k];
+                if (WEIGHTS[f * 4 + k] > WEIGHTS[f * 4 + largest])
+                    largest = k;
+            }
+            // Rounding error goes to the largest tap so flat regions stay exactly flat
+            WEIGHTS[f * 4 + largest] += (1 << WEIGHT_BITS) - sum;
+        }
+    }
+
+    public BicubicSampler(PixelImage image) {
+        super(image, -1, 2);
+    }
+
+    public int sample(int fx, int fy) {
+        int i = index(fx >> FRACTION_BITS, fy >> FRACTION_BITS) - stride - 1;
+        int wx = (fx & MASK) * 4, wy = (fy & MASK) * 4;
+        int a = 0, r = 0, g = 0, b = 0;
+        for (int j = 0; j < 4; j++, i += stride) {
+            int ra = 0, rr = 0, rg = 0, rb = 0;
+            for (int k = 0; k < 4; k++) {
+                int c = padded[i + k], w = WEIGHTS[wx + k];
+                ra += (c >>> 24) * w;
+                rr += ((c >> 16) & 0xFF) * w;
+                rg += ((c >> 8) & 0xFF) * w;
+                rb += (c & 0xFF) * w;
+            }
+            int w = WEIGHTS[wy + j];
+            a += ra * w;
+            r += rr * w;
+            g += rg * w;
+            b += rb * w;
+        }
+        return (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+    private static int clamp(int v) {
+        return Math.min(255, Math.max(0, (v + ROUND) >> (WEIGHT_BITS * 2)));
+    }
+}
@@ -0,0 +1,22 @@
+package ca.jason.morphimage;
+
+/**
+ * Interpolates the four pixels around a coordinate. Each blend works on two channels per multiply
+ * with the 8-bit fraction of the coordinate as weight, as CrossDissolve does.
+ */
+
+public class BilinearSampler extends PaddedSampler {
+    private static final int MASK = ONE - 1;
+
+    public BilinearSampler(PixelImage image) {
+        super(image, 0, 1);
+    }
+
+    public int sample(int fx, int fy) {
+        int i = index(fx >> FRACTION_BITS, fy >> FRACTION_BITS);
+        int wx = fx & MASK, wy = fy & MASK;
+        int top = CrossDissolve.blend(padded[i], padded[i + 1], wx);
+        int bottom = CrossDissolve.blend(padded[i + stride], padded[i + stride + 1], wx);
+        return CrossDissolve.blend(top, bottom, wy);
+    }
+}
@@ -0,0 +1,70 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+
+/**
+ * Wraps the renderer and encoder of a morph job so frames already in the result cache are neither
+ * rendered nor encoded. A cached frame renders to null, and its encode returns the cached file.
+ * Newly encoded frames are moved into the cache.
+ */
+
+public class CachedExport implements MorphScheduler.FrameRenderer, MorphScheduler.FrameEncoder {
+    private final ResultCache cache;
+    private final String[] keys;
+    private final File[] hits;
+    private final MorphScheduler.FrameRenderer renderer;
+    private final MorphScheduler.FrameEncoder encoder;
+
+    /**
+     * @param cache Cache to read and fill
+     * @param keys Cache key of every frame
+     * @param renderer Renders frames missing from the cache
+     * @param encoder Encodes frames missing from the cache to a file
+     */
+    public CachedExport(ResultCache cache, String[] keys,
+                        MorphScheduler.FrameRenderer renderer, MorphScheduler.FrameEncoder encoder) {
+        this.cache = cache;
+        this.keys = keys;
+        this.renderer = renderer;
+        this.encoder = encoder;
+        hits = new File[keys.length];
+    }
+
+    /**
+     * Builds the key of every frame of a morph. Frames are keyed by their position t rather than
+     * their index, so runs with different frame counts share the frames they have in common.
+     *
+     * @param digest Digest of the morph's inputs, from MorphRenderer.digest
+     * @param frames Number of intermediate frames
+     * @return Keys for frames 0 to frames + 1
+     */
+    public static String[] keys(String digest, int frames) {
+        String[] keys = new String[frames + 2];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = digest + "_" + Integer.toHexString(Float.floatToIntBits((float) i / (frames + 1)));
+        return keys;
+    }
+
+    public PixelImage render(int frame) throws Exception {
+        hits[frame] = cache.lookup(keys[frame]);
+        return hits[frame] != null ? null : renderer.render(frame);
+    }
+
+    public String encode(int frame, PixelImage image) throws Exception {
+        if (image == null)
+            return hits[frame].getAbsolutePath();
+        String path = encoder.encode(frame, image);
+        return cache.store(keys[frame], new File(path)).getAbsolutePath();
+    }
+
+    /**
+     * @return Number of frames served from the cache so far
+     */
+    public int getHits() {
+        int n = 0;
+        for (File f : hits)
+            if (f != null)
+                n++;
+        return n;
+    }
+}
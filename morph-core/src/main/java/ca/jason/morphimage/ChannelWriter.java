@@ -0,0 +1,64 @@
+package ca.jason.morphimage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential writes to a file channel through a fixed buffer. Writes larger than the buffer go to
+ * the channel directly, and earlier bytes can be patched in place once their values are known.
+ */
+
+class ChannelWriter {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    ChannelWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    void put(byte[] data, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length > buffer.capacity()) {
+                write(ByteBuffer.wrap(data, offset, length), -1);
+                return;
+            }
+        }
+        buffer.put(data, offset, length);
+    }
+
+    /**
+     * @return Offset in the file of the next byte put
+     */
+    long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    /**
+     * Overwrites bytes already written, leaving the write position unchanged.
+     *
+     * @param position Offset in the file
+     */
+    void patch(long position, byte[] data, int offset, int length) throws IOException {
+        flush();
+        write(ByteBuffer.wrap(data, offset, length), position);
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        write(buffer, -1);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (position < 0)
+                channel.write(b);
+            else
+                position += channel.write(b, position);
+        }
+    }
+}
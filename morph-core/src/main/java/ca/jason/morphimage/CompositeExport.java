@@ -0,0 +1,21 @@
+package ca.jason.morphimage;
+
+/**
+ * Hands every frame to several encoders in turn, so one morph can be saved in more than one form.
+ * The path reported for a frame is the first encoder's.
+ */
+
+public class CompositeExport implements MorphScheduler.FrameEncoder {
+    private final MorphScheduler.FrameEncoder[] encoders;
+
+    public CompositeExport(MorphScheduler.FrameEncoder... encoders) {
+        this.encoders = encoders;
+    }
+
+    public String encode(int frame, PixelImage image) throws Exception {
+        String path = encoders[0].encode(frame, image);
+        for (int i = 1; i < encoders.length; i++)
+            encoders[i].encode(frame, image);
+        return path;
+    }
+}
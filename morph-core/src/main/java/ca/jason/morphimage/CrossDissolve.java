@@ -0,0 +1,97 @@
+package ca.jason.morphimage;
+
+/**
+ * Blends two ARGB colours with a fixed weight. The weight is held as an 8.8 fixed-point integer
+ * (256 = 1.0) and, by default, red/blue and alpha/green are each blended as a pair of 16-bit lanes
+ * inside one int, so a pixel costs four multiplies and no float conversion.
+ *
+ * Optionally colour channels are blended in linear light through lookup tables, which avoids the
+ * dark fringes of blending gamma-encoded values at the cost of per-channel work.
+ */
+
+public class CrossDissolve {
+    public static final int WHITE = 0xFFFFFFFF;
+    public static final int ONE = 256;
+
+    private static final int LINEAR_BITS = 12;
+    private static final int[] TO_LINEAR = new int[256];
+    private static final int[] FROM_LINEAR = new int[1 << LINEAR_BITS];
+
+    static {
+        int max = (1 << LINEAR_BITS) - 1;
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            double l = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            TO_LINEAR[i] = (int) Math.round(l * max);
+        }
+        for (int i = 0; i <= max; i++) {
+            double l = (double) i / max;
+            double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055;
+            FROM_LINEAR[i] = (int) Math.round(c * 255);
+        }
+    }
+
+    private final int weight;
+    private final boolean linear;
+
+    /**
+     * @param t Weight of the second colour, from 0 to 1
+     * @param linear True to blend colour channels in linear light
+     */
+    public CrossDissolve(float t, boolean linear) {
+        int w = Math.round(t * ONE);
+        weight = w < 0 ? 0 : (w > ONE ? ONE : w);
+        this.linear = linear;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public boolean isLinear() {
+        return linear;
+    }
+
+    /**
+     * Blends two colours with this dissolve's weight.
+     *
+     * @param c1 First colour
+     * @param c2 Second colour
+     * @return Blended colour
+     */
+    public int blend(int c1, int c2) {
+        return linear ? blendLinear(c1, c2, weight) : blend(c1, c2, weight);
+    }
+
+    /**
+     * Blends two colours in gamma space, two channels per multiply.
+     *
+     * @param c1 First colour
+     * @param c2 Second colour
+     * @param weight Weight of the second colour, from 0 to ONE
+     * @return Blended colour
+     */
+    public static int blend(int c1, int c2, int weight) {
+        int inverse = ONE - weight;
+        int rb = ((c1 & 0x00FF00FF) * inverse + (c2 & 0x00FF00FF) * weight + 0x00800080) >>> 8;
+        int ag = ((c1 >>> 8) & 0x00FF00FF) * inverse + ((c2 >>> 8) & 0x00FF00FF) * weight + 0x00800080;
+        return (rb & 0x00FF00FF) | (ag & 0xFF00FF00);
+    }
+
+    /**
+     * Blends two colours with red, green and blue converted to linear light. Alpha is blended as is.
+     *
+     * @param c1 First colour
+     * @param c2 Second colour
+     * @param weight Weight of the second colour, from 0 to ONE
+     * @return Blended colour
+     */
+    public static int blendLinear(int c1, int c2, int weight) {
+        int inverse = ONE - weight;
+        int a = (((c1 >>> 24) * inverse + (c2 >>> 24) * weight + 128) >> 8);
+        int r = FROM_LINEAR[(TO_LINEAR[(c1 >> 16) & 0xFF] * inverse + TO_LINEAR[(c2 >> 16) & 0xFF] * weight + 128) >> 8];
+        int g = FROM_LINEAR[(TO_LINEAR[(c1 >> 8) & 0xFF] * inverse + TO_LINEAR[(c2 >> 8) & 0xFF] * weight + 128) >> 8];
+        int b = FROM_LINEAR[(TO_LINEAR[c1 & 0xFF] * inverse + TO_LINEAR[c2 & 0xFF] * weight + 128) >> 8];
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,141 @@
+package ca.jason.morphimage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps evaluated field maps in memory so a morph re-run with the same lines, for example with a
+ * different frame count, blend or export, only has to sample. Entries are keyed by the line
+ * geometry, image sizes and t, and the least recently used are evicted once the total size of
+ * the maps exceeds a byte budget.
+ */
+
+public class DisplacementCache {
+    private final LinkedHashMap<Key, FieldMap> maps = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budget;
+    private long bytes;
+    private int hits, misses;
+
+    /**
+     * Identifies a field by everything the source coordinates depend on.
+     */
+    public static final class Key {
+        private final float[][] lines;
+        private final int[] sizes;
+        private final float t;
+        private final int hash;
+
+        /**
+         * @param lines Line endpoint arrays and offsets that define the field
+         * @param sizes Image dimensions and any other integer settings of the warp
+         * @param t Interpolation parameter of the frame
+         */
+        public Key(float[][] lines, int[] sizes, float t) {
+            this.lines = lines;
+            this.sizes = sizes;
+            this.t = t;
+            int h = Arrays.hashCode(sizes) * 31 + Float.floatToIntBits(t);
+            for (float[] l : lines)
+                h = h * 31 + Arrays.hashCode(l);
+            hash = h;
+        }
+
+        /**
+         * @return Approximate memory held by the key in bytes
+         */
+        long getBytes() {
+            long b = sizes.length * 4L;
+            for (float[] l : lines)
+                b += l.length * 4L;
+            return b;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return hash == k.hash && Float.floatToIntBits(t) == Float.floatToIntBits(k.t)
+                    && Arrays.equals(sizes, k.sizes) && Arrays.deepEquals(lines, k.lines);
+        }
+    }
+
+    /**
+     * @param budget Largest total size of cached maps in bytes
+     */
+    public DisplacementCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return Cached map for the key, or null
+     */
+    public synchronized FieldMap get(Key key) {
+        FieldMap map = maps.get(key);
+        if (map != null)
+            hits++;
+        else
+            misses++;
+        return map;
+    }
+
+    /**
+     * @return Whether a map of the given size would be kept under the key, rather than dropped
+     * for being larger than the whole budget
+     */
+    public boolean fits(Key key, int width, int height) {
+        return FieldMap.bytes(width, height) + key.getBytes() <= budget;
+    }
+
+    /**
+     * Caches a map, evicting the least recently used maps until the budget is met. Maps larger
+     * than the whole budget are not cached.
+     */
+    public synchronized void put(Key key, FieldMap map) {
+        long size = map.getBytes() + key.getBytes();
+        if (size > budget)
+            return;
+        FieldMap old = maps.put(key, map);
+        if (old != null)
+            bytes -= old.getBytes() + key.getBytes();
+        bytes += size;
+        Iterator<Map.Entry<Key, FieldMap>> it = maps.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<Key, FieldMap> e = it.next();
+            bytes -= e.getValue().getBytes() + e.getKey().getBytes();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        maps.clear();
+        bytes = 0;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return maps.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,109 @@
+package ca.jason.morphimage;
+
+/**
+ * Source coordinates of every output pixel of a two-sided warp, stored as the 24.8 fixed-point
+ * integers samplers read (x, y, x2, y2 per pixel). Once a field has been evaluated, warping
+ * through its map is a plain sampling pass.
+ */
+
+public class FieldMap {
+    final int[] coords;
+    public final int width, height;
+
+    public FieldMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        coords = new int[width * height * 4];
+    }
+
+    /**
+     * @return Approximate memory held by the map in bytes
+     */
+    public long getBytes() {
+        return bytes(width, height);
+    }
+
+    /**
+     * @return Memory a map of the given size holds in bytes, before allocating it
+     */
+    public static long bytes(int width, int height) {
+        return width * (long) height * 16;
+    }
+
+    /**
+     * Stores the source coordinates computed for one row.
+     *
+     * @param y Output row
+     * @param x0 First column to store (inclusive)
+     * @param x1 Last column to store (exclusive)
+     * @param mapX Source x in the first image per column
+     * @param mapY Source y in the first image per column
+     * @param mapX2 Source x in the second image per column
+     * @param mapY2 Source y in the second image per column
+     */
+    void setRow(int y, int x0, int x1, float[] mapX, float[] mapY, float[] mapX2, float[] mapY2) {
+        int o = (y * width + x0) * 4;
+        for (int x = x0; x < x1; x++) {
+            coords[o++] = FieldWarp.fixed(mapX[x]);
+            coords[o++] = FieldWarp.fixed(mapY[x]);
+            coords[o++] = FieldWarp.fixed(mapX2[x]);
+            coords[o++] = FieldWarp.fixed(mapY2[x]);
+        }
+    }
+
+    /**
+     * Samples both source images through the map and cross-dissolves them. Pixels outside an
+     * image are treated as white, as in FieldWarp.warpDissolve.
+     *
+     * @param in First source image
+     * @param x1 Horizontal offset of the first image in the output
+     * @param y1 Vertical offset of the first image in the output
+     * @param in2 Second source image
+     * @param x2 Horizontal offset of the second image in the output
+     * @param y2 Vertical offset of the second image in the output
+     * @param dissolve Blend applied to the two sampled colours
+     * @param sampler Resampling kernel
+     * @param out Output image of the same size as the map
+     */
+    public void dissolve(PixelImage in, int x1, int y1, PixelImage in2, int x2, int y2,
+                         CrossDissolve dissolve, Sampler.Kind sampler, PixelImage out) {
+        dissolve(sampler.create(in), x1, y1, sampler.create(in2), x2, y2, dissolve, out);
+    }
+
+    /**
+     * Samples through the map with samplers built in advance, which frames of the same images
+     * can share instead of each padding its own copies.
+     *
+     * @param s1 Sampler over the first source image
+     * @param x1 Horizontal offset of the first image in the output
+     * @param y1 Vertical offset of the first image in the output
+     * @param s2 Sampler over the second source image
+     * @param x2 Horizontal offset of the second image in the output
+     * @param y2 Vertical offset of the second image in the output
+     * @param dissolve Blend applied to the two sampled colours
+     * @param out Output image of the same size as the map
+     */
+    public void dissolve(final Sampler s1, final int x1, final int y1, final Sampler s2, final int x2, final int y2,
+                         final CrossDissolve dissolve, final PixelImage out) {
+        if (out.width != width || out.height != height)
+            throw new IllegalArgumentException("Map is " + width + "x" + height + ", output is "
+                    + out.width + "x" + out.height);
+        final int w1 = s1.getWidth(), h1 = s1.getHeight(), w2 = s2.getWidth(), h2 = s2.getHeight();
+        ParallelRows.forRows(height, new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                int[] px = out.pixels;
+                for (int y = from; y < to; y++) {
+                    boolean row1 = y >= y1 && y < y1 + h1, row2 = y >= y2 && y < y2 + h2;
+                    int row = y * width, o = row * 4;
+                    for (int x = 0; x < width; x++, o += 4) {
+                        int c1 = row1 && x >= x1 && x < x1 + w1 ?
+                                s1.sample(coords[o], coords[o + 1]) : CrossDissolve.WHITE;
+                        int c2 = row2 && x >= x2 && x < x2 + w2 ?
+                                s2.sample(coords[o + 2], coords[o + 3]) : CrossDissolve.WHITE;
+                        px[row + x] = dissolve.blend(c1, c2);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,582 @@
+package ca.jason.morphimage;
+
+/**
+ * Beier-Neely field warp over ARGB pixel arrays. For every output pixel X the position relative to
+ * each destination line PQ is expressed as (u, v), mapped onto the matching source line P'Q', and
+ * the resulting source positions are averaged with weight (length^p / (a + dist))^b, where a, b
+ * and p come from a LineWeight.
+ *
+ * A warp may carry a second set of source lines. Both sources then share the destination lines,
+ * so u, v and the weights are evaluated once per pixel and line for both images.
+ *
+ * In grid mode the field is only evaluated exactly at the nodes of a coarse grid and at a few probe
+ * points inside each cell. Cells whose corner displacements diverge too quickly, or whose probes
+ * differ from the interpolated value by more than the tolerance, are evaluated exactly; the rest are
+ * filled by bilinear interpolation, so their cost no longer depends on the number of lines.
+ */
+
+public class FieldWarp {
+    public static final float A = 0.01f;
+    public static final float B = 2f;
+    public static final float P = 0f;
+
+    /**
+     * Number of pixels stepped incrementally before u and v are recomputed exactly.
+     */
+    public static final int RESYNC_INTERVAL = 64;
+
+    /**
+     * Fractional positions (x, y) within a grid cell where interpolation is checked.
+     */
+    private static final float[] PROBES = {0.5f, 0.5f, 0.25f, 0.25f, 0.75f, 0.25f, 0.25f, 0.75f, 0.75f, 0.75f};
+
+    private final LineField dst, src, src2;
+    private LineCullIndex cullIndex;
+    private boolean incremental;
+    private int gridCell;
+    private float gridTolerance;
+    private Sampler.Kind sampler = Sampler.Kind.NEAREST;
+    private LineWeight lineWeight = LineWeight.DEFAULT;
+    private float maxError;
+
+    /**
+     * Creates a warp between two sets of matching lines in pixel coordinates.
+     *
+     * @param dst Lines PQ in the output image
+     * @param src Lines P'Q' in the source image
+     */
+    public FieldWarp(LineField dst, LineField src) {
+        this(dst, src, null);
+    }
+
+    /**
+     * Creates a two-sided warp from one set of output lines to two source images.
+     *
+     * @param dst Lines PQ in the output image
+     * @param src Lines P'Q' in the first source image
+     * @param src2 Lines P'Q' in the second source image, or null for a one-sided warp
+     */
+    public FieldWarp(LineField dst, LineField src, LineField src2) {
+        if (dst.numLines != src.numLines || (src2 != null && dst.numLines != src2.numLines))
+            throw new IllegalArgumentException("Line counts differ: " + dst.numLines + " != " + src.numLines
+                    + (src2 == null ? "" : " != " + src2.numLines));
+        this.dst = dst;
+        this.src = src;
+        this.src2 = src2;
+        incremental = false;
+    }
+
+    /**
+     * Enables scanline-incremental evaluation, where u and v are stepped with additions along
+     * each row and recomputed exactly every RESYNC_INTERVAL pixels to limit drift.
+     *
+     * @param incremental True to step u and v along rows
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Restricts each output tile to the lines the index kept for it. The index must have been
+     * built from the same lines and output size as this warp.
+     *
+     * @param cullIndex Index to use, or null to evaluate every line at every pixel
+     */
+    public void setCullIndex(LineCullIndex cullIndex) {
+        this.cullIndex = cullIndex;
+    }
+
+    public LineCullIndex getCullIndex() {
+        return cullIndex;
+    }
+
+    /**
+     * Enables the approximate grid mode.
+     *
+     * @param cellSize Spacing of grid nodes in pixels, or 0 to evaluate every pixel exactly
+     * @param tolerance Largest interpolation error in pixels allowed at a probe point, and largest
+     *                  change in displacement per pixel between the corners of a cell
+     */
+    public void setGrid(int cellSize, float tolerance) {
+        if (cellSize < 0 || cellSize == 1)
+            throw new IllegalArgumentException("Grid cell size must be 0 or at least 2: " + cellSize);
+        gridCell = cellSize;
+        gridTolerance = tolerance;
+    }
+
+    public int getGridCell() {
+        return gridCell;
+    }
+
+    /**
+     * Sets the line weight parameters. The line fields must have been built with the same
+     * parameters, since they hold each line's length term.
+     *
+     * @param lineWeight Weight parameters, LineWeight.DEFAULT unless set
+     */
+    public void setLineWeight(LineWeight lineWeight) {
+        this.lineWeight = lineWeight;
+    }
+
+    public LineWeight getLineWeight() {
+        return lineWeight;
+    }
+
+    /**
+     * Selects the kernel used to read source pixels at the warped coordinates.
+     *
+     * @param sampler Resampling kernel, nearest by default
+     */
+    public void setSampler(Sampler.Kind sampler) {
+        this.sampler = sampler;
+    }
+
+    public Sampler.Kind getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Largest error measured during the last warp. In grid mode the exact field is compared with
+     * the interpolated one at the probe points of every interpolated cell; exact warps report 0.
+     *
+     * @return Measured error in pixels
+     */
+    public synchronized float getMaxError() {
+        return maxError;
+    }
+
+    private synchronized void recordError(float error) {
+        if (error > maxError)
+            maxError = error;
+    }
+
+    private synchronized void resetError() {
+        maxError = 0;
+    }
+
+    /**
+     * Warps an image into an output of the same size, splitting rows across all cores.
+     *
+     * @param in Source pixels
+     * @param out Destination pixels
+     * @param width Width of both images
+     * @param height Height of both images
+     */
+    public void warp(int[] in, final int[] out, final int width, final int height) {
+        final Sampler s = sampler.create(new PixelImage(in, width, height));
+        resetError();
+        ParallelRows.forRows(height, rowStep(), new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                Row r = new Row(width);
+                for (int y = from; y < to; y++) {
+                    mapRow(y, width, height, r);
+                    int row = y * width;
+                    for (int x = 0; x < width; x++)
+                        out[row + x] = s.sample(fixed(r.mapX[x]), fixed(r.mapY[x]));
+                }
+            }
+        });
+    }
+
+    /**
+     * Warps both source images onto the output lines and cross-dissolves them in a single pass,
+     * without intermediate frames. Each image sits at its own offset within the output; pixels
+     * outside an image are treated as white.
+     *
+     * @param in First source image
+     * @param x1 Horizontal offset of the first image in the output
+     * @param y1 Vertical offset of the first image in the output
+     * @param in2 Second source image
+     * @param x2 Horizontal offset of the second image in the output
+     * @param y2 Vertical offset of the second image in the output
+     * @param dissolve Blend applied to the two warped colours
+     * @param out Output image
+     */
+    public void warpDissolve(PixelImage in, int x1, int y1, PixelImage in2, int x2, int y2,
+                             CrossDissolve dissolve, PixelImage out) {
+        warpDissolve(in, x1, y1, in2, x2, y2, dissolve, out, 0, 0, out.width, out.height);
+    }
+
+    /**
+     * Warps and cross-dissolves only the output rectangle [left, right) x [top, bottom), leaving
+     * the rest of the output untouched. In grid mode whole rows are still mapped, since grid
+     * nodes span the full width.
+     *
+     * @param in First source image
+     * @param x1 Horizontal offset of the first image in the output
+     * @param y1 Vertical offset of the first image in the output
+     * @param in2 Second source image
+     * @param x2 Horizontal offset of the second image in the output
+     * @param y2 Vertical offset of the second image in the output
+     * @param dissolve Blend applied to the two warped colours
+     * @param out Output image
+     * @param left First column to render (inclusive)
+     * @param top First row to render (inclusive)
+     * @param right Last column to render (exclusive)
+     * @param bottom Last row to render (exclusive)
+     */
+    public void warpDissolve(PixelImage in, int x1, int y1, PixelImage in2, int x2, int y2,
+                             CrossDissolve dissolve, PixelImage out, int left, int top, int right, int bottom) {
+        warpDissolve(sampler.create(in), x1, y1, sampler.create(in2), x2, y2, dissolve, out, left, top, right, bottom);
+    }
+
+    /**
+     * Warps and cross-dissolves the output rectangle [left, right) x [top, bottom) through samplers
+     * built in advance. The other forms pad a copy of both images on every call; a caller rendering
+     * many frames or regions of the same images builds the samplers once and passes them here.
+     *
+     * @param s1 Sampler over the first source image, of any kind
+     * @param x1 Horizontal offset of the first image in the output
+     * @param y1 Vertical offset of the first image in the output
+     * @param s2 Sampler over the second source image
+     * @param x2 Horizontal offset of the second image in the output
+     * @param y2 Vertical offset of the second image in the output
+     * @param dissolve Blend applied to the two warped colours
+     * @param out Output image
+     */
+    public void warpDissolve(final Sampler s1, final int x1, final int y1,
+                             final Sampler s2, final int x2, final int y2,
+                             final CrossDissolve dissolve, final PixelImage out,
+                             final int left, final int top, final int right, final int bottom) {
+        if (src2 == null)
+            throw new IllegalStateException("Warp has no second source");
+        final int width = out.width, height = out.height;
+        final boolean fullRows = gridCell > 0 || (left == 0 && right == width);
+        final int w1 = s1.getWidth(), h1 = s1.getHeight(), w2 = s2.getWidth(), h2 = s2.getHeight();
+        resetError();
+        ParallelRows.forRows(bottom - top, rowStep(), new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                Row r = new Row(width);
+                int[] px = out.pixels;
+                for (int y = top + from; y < top + to; y++) {
+                    if (fullRows)
+                        mapRow(y, width, height, r);
+                    else
+                        mapSpan(y, left, right, r);
+                    boolean row1 = y >= y1 && y < y1 + h1, row2 = y >= y2 && y < y2 + h2;
+                    int row = y * width;
+                    for (int x = left; x < right; x++) {
+                        int c1 = row1 && x >= x1 && x < x1 + w1 ?
+                                s1.sample(fixed(r.mapX[x]), fixed(r.mapY[x])) : CrossDissolve.WHITE;
+                        int c2 = row2 && x >= x2 && x < x2 + w2 ?
+                                s2.sample(fixed(r.mapX2[x]), fixed(r.mapY2[x])) : CrossDissolve.WHITE;
+                        px[row + x] = dissolve.blend(c1, c2);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Evaluates the two-sided field for every output pixel so it can be sampled again later
+     * without evaluating any lines.
+     *
+     * @param width Width of the output
+     * @param height Height of the output
+     * @return Source coordinates of every output pixel in both images
+     */
+    public FieldMap map(final int width, final int height) {
+        if (src2 == null)
+            throw new IllegalStateException("Warp has no second source");
+        final FieldMap map = new FieldMap(width, height);
+        resetError();
+        ParallelRows.forRows(height, rowStep(), new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                Row r = new Row(width);
+                for (int y = from; y < to; y++) {
+                    mapRow(y, width, height, r);
+                    map.setRow(y, 0, width, r.mapX, r.mapY, r.mapX2, r.mapY2);
+                }
+            }
+        });
+        return map;
+    }
+
+    /**
+     * Evaluates the field exactly for the output rectangle [left, right) x [top, bottom) only,
+     * without reading any pixels. Safe to call from several threads at once.
+     *
+     * @param width Width of the whole output
+     * @return Source coordinates of the rectangle's pixels, indexed from its top left corner
+     */
+    FieldMap mapRegion(int width, int left, int top, int right, int bottom) {
+        if (src2 == null)
+            throw new IllegalStateException("Warp has no second source");
+        FieldMap map = new FieldMap(right - left, bottom - top);
+        Row r = new Row(width);
+        int o = 0;
+        for (int y = top; y < bottom; y++) {
+            mapSpan(y, left, right, r);
+            for (int x = left; x < right; x++) {
+                map.coords[o++] = fixed(r.mapX[x]);
+                map.coords[o++] = fixed(r.mapY[x]);
+                map.coords[o++] = fixed(r.mapX2[x]);
+                map.coords[o++] = fixed(r.mapY2[x]);
+            }
+        }
+        return map;
+    }
+
+    private int rowStep() {
+        return gridCell > 0 ? gridCell : 1;
+    }
+
+    /**
+     * Converts a source coordinate to the fixed point samplers read.
+     */
+    static int fixed(float v) {
+        return Math.round(v * Sampler.ONE);
+    }
+
+    /**
+     * Per-thread scratch space for one output row.
+     */
+    final class Row {
+        final float[] mapX, mapY, mapX2, mapY2, us, vs;
+        // Grid mode: source coordinates (x, y, x2, y2) at the nodes above and below the cell row
+        float[] top, bottom, probe;
+        boolean[] exactCells;
+        int cellRow;
+
+        Row(int width) {
+            mapX = new float[width];
+            mapY = new float[width];
+            mapX2 = src2 == null ? null : new float[width];
+            mapY2 = src2 == null ? null : new float[width];
+            us = new float[dst.numLines];
+            vs = new float[dst.numLines];
+            if (gridCell > 0) {
+                int nodes = nodeCount(width);
+                top = new float[nodes * 4];
+                bottom = new float[nodes * 4];
+                probe = new float[4];
+                exactCells = new boolean[Math.max(1, nodes - 1)];
+                cellRow = -1;
+            }
+        }
+    }
+
+    /**
+     * Computes the source coordinates of a full output row.
+     *
+     * @param y Output row
+     * @param width Width of the output
+     * @param height Height of the output
+     * @param r Receives source coordinates per column
+     */
+    void mapRow(int y, int width, int height, Row r) {
+        if (gridCell > 0 && width > 1 && height > 1)
+            mapGridRow(y, width, height, r);
+        else
+            mapSpan(y, 0, width, r);
+    }
+
+    /**
+     * Computes the source coordinates of output pixels [x0, x1) on row y exactly, using the cull
+     * index if one is set.
+     */
+    private void mapSpan(int y, int x0, int x1, Row r) {
+        if (cullIndex == null) {
+            mapRow(y, x0, x1, null, 0, dst.numLines, r);
+            return;
+        }
+        int tile = cullIndex.getTileSize(), ty = y / tile;
+        int[] lines = cullIndex.getLines();
+        for (int x = x0; x < x1; ) {
+            int tx = x / tile, end = Math.min(x1, (tx + 1) * tile);
+            mapRow(y, x, end, lines, cullIndex.getStart(tx, ty), cullIndex.getEnd(tx, ty), r);
+            x = end;
+        }
+    }
+
+    private int nodeCount(int size) {
+        return (size - 1 + gridCell - 1) / gridCell + 1;
+    }
+
+    /**
+     * Evaluates the exact source coordinates of one point into a packed node array.
+     */
+    private void mapNode(int x, int y, Row r, float[] nodes, int n) {
+        mapSpan(y, x, x + 1, r);
+        nodes[n * 4] = r.mapX[x];
+        nodes[n * 4 + 1] = r.mapY[x];
+        if (src2 != null) {
+            nodes[n * 4 + 2] = r.mapX2[x];
+            nodes[n * 4 + 3] = r.mapY2[x];
+        }
+    }
+
+    private void mapNodeRow(int y, int width, Row r, float[] nodes) {
+        int count = nodeCount(width);
+        for (int n = 0; n < count; n++)
+            mapNode(Math.min(n * gridCell, width - 1), y, r, nodes, n);
+    }
+
+    /**
+     * Evaluates the nodes around a row of cells and decides which cells need exact evaluation.
+     */
+    private void prepareCellRow(int cellRow, int width, int height, Row r) {
+        int y0 = cellRow * gridCell, y1 = Math.min(y0 + gridCell, height - 1);
+        if (r.cellRow == cellRow - 1 && r.cellRow >= 0) {
+            float[] t = r.top;
+            r.top = r.bottom;
+            r.bottom = t;
+        } else {
+            mapNodeRow(y0, width, r, r.top);
+        }
+        mapNodeRow(y1, width, r, r.bottom);
+        r.cellRow = cellRow;
+
+        float[] probe = r.probe;
+        int cells = r.exactCells.length, values = src2 == null ? 2 : 4;
+        for (int c = 0; c < cells; c++) {
+            int x0 = c * gridCell, x1 = Math.min(x0 + gridCell, width - 1);
+            float spread = 0;
+            for (int k = 0; k < values; k++) {
+                float px = (k & 1) == 0 ? 1 : 0;
+                float d00 = r.top[c * 4 + k] - (px * x0 + (1 - px) * y0);
+                float d10 = r.top[c * 4 + 4 + k] - (px * x1 + (1 - px) * y0);
+                float d01 = r.bottom[c * 4 + k] - (px * x0 + (1 - px) * y1);
+                float d11 = r.bottom[c * 4 + 4 + k] - (px * x1 + (1 - px) * y1);
+                float max = Math.max(Math.max(d00, d10), Math.max(d01, d11));
+                float min = Math.min(Math.min(d00, d10), Math.min(d01, d11));
+                spread = Math.max(spread, max - min);
+            }
+            boolean exact = spread > gridTolerance * gridCell;
+            if (!exact) {
+                // Probe points inside the cell, which the corners cannot see
+                float error = 0;
+                for (int p = 0; p < PROBES.length && error <= gridTolerance; p += 2) {
+                    int px = x0 + Math.round((x1 - x0) * PROBES[p]), py = y0 + Math.round((y1 - y0) * PROBES[p + 1]);
+                    mapNode(px, py, r, probe, 0);
+                    float fx = x1 == x0 ? 0 : (float) (px - x0) / (x1 - x0);
+                    float fy = y1 == y0 ? 0 : (float) (py - y0) / (y1 - y0);
+                    for (int k = 0; k < values; k += 2) {
+                        float ex = interpolate(r.top, r.bottom, c, k, fx, fy) - probe[k];
+                        float ey = interpolate(r.top, r.bottom, c, k + 1, fx, fy) - probe[k + 1];
+                        error = Math.max(error, (float) Math.sqrt(ex * ex + ey * ey));
+                    }
+                }
+                exact = error > gridTolerance;
+                if (!exact)
+                    recordError(error);
+            }
+            r.exactCells[c] = exact;
+        }
+    }
+
+    private static float interpolate(float[] top, float[] bottom, int cell, int k, float fx, float fy) {
+        int i = cell * 4 + k;
+        float t = top[i] + (top[i + 4] - top[i]) * fx;
+        float b = bottom[i] + (bottom[i + 4] - bottom[i]) * fx;
+        return t + (b - t) * fy;
+    }
+
+    /**
+     * Computes the source coordinates of a row in grid mode.
+     */
+    private void mapGridRow(int y, int width, int height, Row r) {
+        int cellRow = Math.min(y / gridCell, nodeCount(height) - 2);
+        if (cellRow != r.cellRow)
+            prepareCellRow(cellRow, width, height, r);
+        int y0 = cellRow * gridCell, y1 = Math.min(y0 + gridCell, height - 1);
+        float fy = (float) (y - y0) / (y1 - y0);
+
+        int cells = r.exactCells.length;
+        for (int c = 0; c < cells; c++) {
+            int x0 = c * gridCell, end = c == cells - 1 ? width : x0 + gridCell;
+            if (r.exactCells[c]) {
+                mapSpan(y, x0, end, r);
+                continue;
+            }
+            float span = Math.min(x0 + gridCell, width - 1) - x0;
+            for (int k = 0; k < (src2 == null ? 2 : 4); k++) {
+                float[] map = k == 0 ? r.mapX : (k == 1 ? r.mapY : (k == 2 ? r.mapX2 : r.mapY2));
+                int i = c * 4 + k;
+                float left = r.top[i] + (r.bottom[i] - r.top[i]) * fy;
+                float right = r.top[i + 4] + (r.bottom[i + 4] - r.top[i + 4]) * fy;
+                float step = (right - left) / span;
+                for (int x = x0; x < end; x++)
+                    map[x] = left + step * (x - x0);
+            }
+        }
+    }
+
+    /**
+     * Computes the source coordinates of output pixels [x0, x1) on row y.
+     *
+     * @param y Output row
+     * @param x0 First output column (inclusive)
+     * @param x1 Last output column (exclusive)
+     * @param lines Indices of the lines to evaluate, or null for lines [first, last)
+     * @param first First entry of lines to evaluate
+     * @param last Last entry of lines to evaluate (exclusive)
+     * @param r Receives source coordinates per column
+     */
+    void mapRow(int y, int x0, int x1, int[] lines, int first, int last, Row r) {
+        final float[] d = dst.data, s = src.data, s2 = src2 == null ? null : src2.data;
+        final float[] us = r.us, vs = r.vs;
+        final LineWeight lw = lineWeight;
+        for (int x = x0; x < x1; x++) {
+            boolean exact = !incremental || (x - x0) % RESYNC_INTERVAL == 0;
+            float dSumX = 0, dSumY = 0, dSumX2 = 0, dSumY2 = 0, wSum = 0;
+            for (int k = first; k < last; k++) {
+                int i = lines == null ? k : lines[k];
+                int o = i * LineField.STRIDE;
+                float dx = x - d[o + LineField.PX], dy = y - d[o + LineField.PY];
+                float u, v;
+                if (exact) {
+                    u = (dx * d[o + LineField.VX] + dy * d[o + LineField.VY]) * d[o + LineField.INV_LEN_SQ];
+                    v = dx * d[o + LineField.NX] + dy * d[o + LineField.NY];
+                    us[i] = u;
+                    vs[i] = v;
+                } else {
+                    u = us[i] += d[o + LineField.U_STEP];
+                    v = vs[i] += d[o + LineField.NX];
+                }
+
+                float w = lw.weight(d[o + LineField.LEN_P], distance(u, v, dx, dy, x, y, d, o));
+                wSum += w;
+                dSumX += (s[o + LineField.PX] + u * s[o + LineField.VX] + v * s[o + LineField.NX] - x) * w;
+                dSumY += (s[o + LineField.PY] + u * s[o + LineField.VY] + v * s[o + LineField.NY] - y) * w;
+                if (s2 != null) {
+                    dSumX2 += (s2[o + LineField.PX] + u * s2[o + LineField.VX] + v * s2[o + LineField.NX] - x) * w;
+                    dSumY2 += (s2[o + LineField.PY] + u * s2[o + LineField.VY] + v * s2[o + LineField.NY] - y) * w;
+                }
+            }
+
+            r.mapX[x] = x;
+            r.mapY[x] = y;
+            if (s2 != null) {
+                r.mapX2[x] = x;
+                r.mapY2[x] = y;
+            }
+            if (wSum > 0) {
+                float inv = 1 / wSum;
+                r.mapX[x] += dSumX * inv;
+                r.mapY[x] += dSumY * inv;
+                if (s2 != null) {
+                    r.mapX2[x] += dSumX2 * inv;
+                    r.mapY2[x] += dSumY2 * inv;
+                }
+            }
+        }
+    }
+
+    /**
+     * Distance from X to the segment PQ, given its projection (u, v) and offset from P.
+     */
+    private static float distance(float u, float v, float dx, float dy, float x, float y, float[] d, int o) {
+        if (u < 0)
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        if (u > 1) {
+            float qx = x - d[o + LineField.QX], qy = y - d[o + LineField.QY];
+            return (float) Math.sqrt(qx * qx + qy * qy);
+        }
+        return Math.abs(v);
+    }
+}
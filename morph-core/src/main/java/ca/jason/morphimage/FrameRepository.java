@@ -0,0 +1,87 @@
+package ca.jason.morphimage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the finished frames of a morph in memory so the frame display can show them as soon as
+ * they are rendered, while they are still being saved. Repositories are registered by job ID,
+ * which is what crosses the activity boundary instead of file paths, and live until released.
+ */
+
+public class FrameRepository {
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final Map<Integer, FrameRepository> repositories = new HashMap<>();
+
+    private final int id;
+    private final PixelImage[] images;
+    private int count;
+
+    private FrameRepository(int frames) {
+        id = nextId.incrementAndGet();
+        images = new PixelImage[frames];
+    }
+
+    /**
+     * Creates and registers an empty repository.
+     *
+     * @param frames Number of frames including both end images
+     */
+    public static FrameRepository create(int frames) {
+        FrameRepository repository = new FrameRepository(frames);
+        synchronized (repositories) {
+            repositories.put(repository.id, repository);
+        }
+        return repository;
+    }
+
+    /**
+     * @return The repository registered under an ID, or null if there is none
+     */
+    public static FrameRepository find(int id) {
+        synchronized (repositories) {
+            return repositories.get(id);
+        }
+    }
+
+    /**
+     * Forgets a repository, letting its frames be collected once no holder is left.
+     */
+    public static void release(int id) {
+        synchronized (repositories) {
+            repositories.remove(id);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getFrameCount() {
+        return images.length;
+    }
+
+    /**
+     * Stores a finished frame. Safe to call from the render threads.
+     */
+    public synchronized void put(int frame, PixelImage image) {
+        if (images[frame] == null)
+            count++;
+        images[frame] = image;
+    }
+
+    /**
+     * @return A frame, or null if it has not been stored
+     */
+    public synchronized PixelImage get(int frame) {
+        return images[frame];
+    }
+
+    /**
+     * @return Whether every frame has been stored
+     */
+    public synchronized boolean isComplete() {
+        return count == images.length;
+    }
+}
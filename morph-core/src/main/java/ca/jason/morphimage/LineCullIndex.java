@@ -0,0 +1,256 @@
+package ca.jason.morphimage;
+
+/**
+ * Spatial index assigning each output tile only the lines whose weight can reach epsilon somewhere
+ * inside it. Line lists are stored per tile in a single packed array.
+ *
+ * Each line's displacement X' - X is affine in X, so its largest magnitude over a tile is found at
+ * a corner, as is its largest distance. That gives a bound on the error culling introduces:
+ * dropped / (kept + dropped) weight, times the spread of displacements involved.
+ */
+
+public class LineCullIndex {
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    private final int tileSize, tilesX, tilesY;
+    private final int[] offsets, lines;
+    private final float epsilon;
+    private float maxDroppedFraction, errorBound;
+    private int keptCount;
+
+    /**
+     * Builds the index for an output of the given size.
+     *
+     * @param dst Lines PQ in the output image
+     * @param src Lines P'Q' in the source image
+     * @param width Width of the output
+     * @param height Height of the output
+     * @param tileSize Width and height of each tile in pixels
+     * @param epsilon Smallest weight a line must reach within a tile to be kept
+     */
+    public LineCullIndex(LineField dst, LineField src, int width, int height, int tileSize, float epsilon) {
+        this(dst, src, null, width, height, tileSize, epsilon);
+    }
+
+    /**
+     * Builds the index for a two-sided warp, bounding the error over both source images.
+     *
+     * @param dst Lines PQ in the output image
+     * @param src Lines P'Q' in the first source image
+     * @param src2 Lines P'Q' in the second source image, or null
+     * @param width Width of the output
+     * @param height Height of the output
+     * @param tileSize Width and height of each tile in pixels
+     * @param epsilon Smallest weight a line must reach within a tile to be kept
+     */
+    public LineCullIndex(LineField dst, LineField src, LineField src2, int width, int height,
+                         int tileSize, float epsilon) {
+        this(dst, src, src2, LineWeight.DEFAULT, width, height, tileSize, epsilon);
+    }
+
+    /**
+     * Builds the index for a two-sided warp whose lines are weighted with the given parameters.
+     *
+     * @param dst Lines PQ in the output image
+     * @param src Lines P'Q' in the first source image
+     * @param src2 Lines P'Q' in the second source image, or null
+     * @param weight Line weight parameters of the warp
+     * @param width Width of the output
+     * @param height Height of the output
+     * @param tileSize Width and height of each tile in pixels
+     * @param epsilon Smallest weight a line must reach within a tile to be kept
+     */
+    public LineCullIndex(LineField dst, LineField src, LineField src2, LineWeight weight,
+                         int width, int height, int tileSize, float epsilon) {
+        this.tileSize = tileSize;
+        this.epsilon = epsilon;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        int n = dst.numLines;
+        offsets = new int[tilesX * tilesY + 1];
+        int[] kept = new int[Math.max(16, n * 4)];
+        float[] maxW = new float[n];
+        float[] cx = new float[4], cy = new float[4];
+
+        int count = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                float x0 = tx * tileSize, y0 = ty * tileSize;
+                float x1 = Math.min(width, x0 + tileSize) - 1, y1 = Math.min(height, y0 + tileSize) - 1;
+                cx[0] = x0; cy[0] = y0;
+                cx[1] = x1; cy[1] = y0;
+                cx[2] = x0; cy[2] = y1;
+                cx[3] = x1; cy[3] = y1;
+
+                int strongest = -1;
+                for (int i = 0; i < n; i++) {
+                    int o = i * LineField.STRIDE;
+                    float lenP = dst.data[o + LineField.LEN_P];
+                    maxW[i] = lenP == 0 ? 0 : weight.weight(lenP, rectDistance(dst.data, o, x0, y0, x1, y1));
+                    if (strongest == -1 || maxW[i] > maxW[strongest])
+                        strongest = i;
+                }
+
+                float keptMin = 0, dropped = 0, keptDisp = 0, droppedDisp = 0;
+                int start = count;
+                for (int i = 0; i < n; i++) {
+                    if (maxW[i] == 0)
+                        continue;
+                    int o = i * LineField.STRIDE;
+                    float far = 0, disp = 0;
+                    for (int c = 0; c < 4; c++) {
+                        far = Math.max(far, segmentDistance(dst.data, o, cx[c], cy[c]));
+                        disp = Math.max(disp, displacement(dst.data, src.data, o, cx[c], cy[c]));
+                        if (src2 != null)
+                            disp = Math.max(disp, displacement(dst.data, src2.data, o, cx[c], cy[c]));
+                    }
+                    if (maxW[i] >= epsilon || i == strongest) {
+                        if (count == kept.length) {
+                            int[] grown = new int[kept.length * 2];
+                            System.arraycopy(kept, 0, grown, 0, count);
+                            kept = grown;
+                        }
+                        kept[count++] = i;
+                        keptMin += weight.weight(dst.data[o + LineField.LEN_P], far);
+                        keptDisp = Math.max(keptDisp, disp);
+                    } else {
+                        dropped += maxW[i];
+                        droppedDisp = Math.max(droppedDisp, disp);
+                    }
+                }
+                offsets[ty * tilesX + tx + 1] = count;
+                keptCount += count - start;
+
+                if (dropped > 0) {
+                    float fraction = dropped / (keptMin + dropped);
+                    maxDroppedFraction = Math.max(maxDroppedFraction, fraction);
+                    errorBound = Math.max(errorBound, fraction * (keptDisp + droppedDisp));
+                }
+            }
+        }
+        lines = new int[count];
+        System.arraycopy(kept, 0, lines, 0, count);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return Packed line indices of every tile, sliced by getStart/getEnd
+     */
+    public int[] getLines() {
+        return lines;
+    }
+
+    public int getStart(int tx, int ty) {
+        return offsets[ty * tilesX + tx];
+    }
+
+    public int getEnd(int tx, int ty) {
+        return offsets[ty * tilesX + tx + 1];
+    }
+
+    /**
+     * @return Average number of lines evaluated per tile
+     */
+    public float getAverageLines() {
+        return (float) keptCount / (tilesX * tilesY);
+    }
+
+    /**
+     * @return Largest share of the total weight at any pixel that culling can remove
+     */
+    public float getMaxDroppedFraction() {
+        return maxDroppedFraction;
+    }
+
+    /**
+     * @return Upper bound in pixels on how far culling can move any source coordinate
+     */
+    public float getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Distance from a point to the segment PQ of the line at offset o.
+     */
+    private static float segmentDistance(float[] d, int o, float x, float y) {
+        float dx = x - d[o + LineField.PX], dy = y - d[o + LineField.PY];
+        float u = (dx * d[o + LineField.VX] + dy * d[o + LineField.VY]) * d[o + LineField.INV_LEN_SQ];
+        if (u < 0)
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        if (u > 1) {
+            float qx = x - d[o + LineField.QX], qy = y - d[o + LineField.QY];
+            return (float) Math.sqrt(qx * qx + qy * qy);
+        }
+        return Math.abs(dx * d[o + LineField.NX] + dy * d[o + LineField.NY]);
+    }
+
+    /**
+     * Smallest distance between the segment PQ and the rectangle [x0, x1] x [y0, y1].
+     */
+    private static float rectDistance(float[] d, int o, float x0, float y0, float x1, float y1) {
+        float px = d[o + LineField.PX], py = d[o + LineField.PY];
+        float qx = d[o + LineField.QX], qy = d[o + LineField.QY];
+        if (crosses(px, py, qx, qy, x0, y0, x1, y1))
+            return 0;
+        float best = Math.min(pointRectDistance(px, py, x0, y0, x1, y1), pointRectDistance(qx, qy, x0, y0, x1, y1));
+        best = Math.min(best, segmentDistance(d, o, x0, y0));
+        best = Math.min(best, segmentDistance(d, o, x1, y0));
+        best = Math.min(best, segmentDistance(d, o, x0, y1));
+        return Math.min(best, segmentDistance(d, o, x1, y1));
+    }
+
+    private static float pointRectDistance(float x, float y, float x0, float y0, float x1, float y1) {
+        float dx = x < x0 ? x0 - x : (x > x1 ? x - x1 : 0);
+        float dy = y < y0 ? y0 - y : (y > y1 ? y - y1 : 0);
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Whether the segment PQ touches the rectangle, either by an endpoint inside or by crossing
+     * one of its diagonals.
+     */
+    private static boolean crosses(float px, float py, float qx, float qy,
+                                   float x0, float y0, float x1, float y1) {
+        if (px >= x0 && px <= x1 && py >= y0 && py <= y1)
+            return true;
+        return intersects(px, py, qx, qy, x0, y0, x1, y1) || intersects(px, py, qx, qy, x1, y0, x0, y1);
+    }
+
+    private static boolean intersects(float ax, float ay, float bx, float by,
+                                      float cx, float cy, float dx, float dy) {
+        float d1 = cross(cx, cy, dx, dy, ax, ay), d2 = cross(cx, cy, dx, dy, bx, by);
+        float d3 = cross(ax, ay, bx, by, cx, cy), d4 = cross(ax, ay, bx, by, dx, dy);
+        return ((d1 <= 0 && d2 >= 0) || (d1 >= 0 && d2 <= 0)) && ((d3 <= 0 && d4 >= 0) || (d3 >= 0 && d4 <= 0));
+    }
+
+    private static float cross(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    /**
+     * Magnitude of the displacement X' - X that the line at offset o proposes for point X.
+     */
+    private static float displacement(float[] d, float[] s, int o, float x, float y) {
+        float dx = x - d[o + LineField.PX], dy = y - d[o + LineField.PY];
+        float u = (dx * d[o + LineField.VX] + dy * d[o + LineField.VY]) * d[o + LineField.INV_LEN_SQ];
+        float v = dx * d[o + LineField.NX] + dy * d[o + LineField.NY];
+        float mx = s[o + LineField.PX] + u * s[o + LineField.VX] + v * s[o + LineField.NX] - x;
+        float my = s[o + LineField.PY] + u * s[o + LineField.VY] + v * s[o + LineField.NY] - y;
+        return (float) Math.sqrt(mx * mx + my * my);
+    }
+}
@@ -0,0 +1,71 @@
+package ca.jason.morphimage;
+
+/**
+ * Immutable line geometry for the warp inner loop. Everything the kernel needs per line is
+ * computed once per frame and packed into a single float array, STRIDE entries per line.
+ */
+
+public final class LineField {
+    static final int PX = 0, PY = 1;            // Point P
+    static final int QX = 2, QY = 3;            // Point Q
+    static final int VX = 4, VY = 5;            // Vector PQ
+    static final int NX = 6, NY = 7;            // Unit vector perpendicular to PQ
+    static final int INV_LEN_SQ = 8;            // 1 / |PQ|^2
+    static final int LEN_P = 9;                 // |PQ|^p, zero for degenerate lines
+    static final int U_STEP = 10;               // Change in u per pixel step along x
+    static final int STRIDE = 11;
+
+    final float[] data;
+    final int numLines;
+
+    /**
+     * Builds the field from packed line endpoints, four entries (x1, y1, x2, y2) per line.
+     * The offset is subtracted from every point so lines end up in pixel coordinates.
+     *
+     * @param endpoints Packed line endpoints
+     * @param xOff Horizontal offset of the image within line coordinates
+     * @param yOff Vertical offset of the image within line coordinates
+     * @param p Exponent applied to line length when weighting
+     */
+    public LineField(float[] endpoints, float xOff, float yOff, float p) {
+        this(endpoints, xOff, yOff, p == FieldWarp.P ? LineWeight.DEFAULT : new LineWeight(FieldWarp.A, FieldWarp.B, p));
+    }
+
+    /**
+     * Builds the field from packed line endpoints with the length term of the given weight.
+     *
+     * @param endpoints Packed line endpoints
+     * @param xOff Horizontal offset of the image within line coordinates
+     * @param yOff Vertical offset of the image within line coordinates
+     * @param weight Line weight parameters
+     */
+    public LineField(float[] endpoints, float xOff, float yOff, LineWeight weight) {
+        numLines = endpoints.length / 4;
+        data = new float[numLines * STRIDE];
+        for (int i = 0; i < numLines; i++) {
+            int e = i * 4, o = i * STRIDE;
+            float px = endpoints[e] - xOff, py = endpoints[e + 1] - yOff;
+            float qx = endpoints[e + 2] - xOff, qy = endpoints[e + 3] - yOff;
+            float vx = qx - px, vy = qy - py;
+            float lenSq = vx * vx + vy * vy;
+            data[o + PX] = px;
+            data[o + PY] = py;
+            data[o + QX] = qx;
+            data[o + QY] = qy;
+            data[o + VX] = vx;
+            data[o + VY] = vy;
+            if (lenSq > 0) {
+                float len = (float) Math.sqrt(lenSq);
+                data[o + NX] = -vy / len;
+                data[o + NY] = vx / len;
+                data[o + INV_LEN_SQ] = 1 / lenSq;
+                data[o + LEN_P] = weight.lengthTerm(len);
+                data[o + U_STEP] = vx / lenSq;
+            }
+        }
+    }
+
+    public int getNumLines() {
+        return numLines;
+    }
+}
@@ -0,0 +1,89 @@
+package ca.jason.morphimage;
+
+/**
+ * Parameters of the Beier-Neely line weight (length^p / (a + dist))^b. Common exponents are
+ * recognised up front so the per-pixel weight and the per-line length term use multiplies or a
+ * square root, and Math.pow is only called for other values.
+ */
+
+public final class LineWeight {
+    public static final LineWeight DEFAULT = new LineWeight(FieldWarp.A, FieldWarp.B, FieldWarp.P);
+
+    static final int POW_GENERIC = 0, POW_ZERO = 1, POW_HALF = 2, POW_ONE = 3, POW_TWO = 4;
+
+    public final float a, b, p;
+    final int bKernel, pKernel;
+
+    /**
+     * @param a Smallest distance term, keeping weights finite on the line itself; must be positive
+     * @param b How quickly a line's influence falls off with distance
+     * @param p How strongly longer lines dominate shorter ones
+     */
+    public LineWeight(float a, float b, float p) {
+        if (!(a > 0))
+            throw new IllegalArgumentException("a must be positive: " + a);
+        this.a = a;
+        this.b = b;
+        this.p = p;
+        bKernel = kernel(b);
+        pKernel = kernel(p);
+    }
+
+    private static int kernel(float exponent) {
+        if (exponent == 0f)
+            return POW_ZERO;
+        if (exponent == 0.5f)
+            return POW_HALF;
+        if (exponent == 1f)
+            return POW_ONE;
+        if (exponent == 2f)
+            return POW_TWO;
+        return POW_GENERIC;
+    }
+
+    /**
+     * @param len Length of a line
+     * @return len^p
+     */
+    public float lengthTerm(float len) {
+        switch (pKernel) {
+            case POW_ZERO:
+                return 1;
+            case POW_HALF:
+                return (float) Math.sqrt(len);
+            case POW_ONE:
+                return len;
+            case POW_TWO:
+                return len * len;
+            default:
+                return (float) Math.pow(len, p);
+        }
+    }
+
+    /**
+     * @param lenP Length term of the line, from lengthTerm
+     * @param dist Distance from the pixel to the line
+     * @return Weight of the line at the pixel
+     */
+    public float weight(float lenP, float dist) {
+        float w = lenP / (a + dist);
+        switch (bKernel) {
+            case POW_ZERO:
+                // Degenerate lines have no length term and must still carry no weight
+                return lenP == 0 ? 0 : 1;
+            case POW_HALF:
+                return (float) Math.sqrt(w);
+            case POW_ONE:
+                return w;
+            case POW_TWO:
+                return w * w;
+            default:
+                return (float) Math.pow(w, b);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "a=" + a + ", b=" + b + ", p=" + p;
+    }
+}
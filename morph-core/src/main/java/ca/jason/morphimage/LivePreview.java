@@ -0,0 +1,236 @@
+package ca.jason.morphimage;
+
+import java.util.Arrays;
+
+/**
+ * Re-renders the middle frame of a morph at reduced resolution while lines are being dragged.
+ * Updates coalesce, so the render thread only ever picks up the latest geometry, and a render
+ * whose geometry has been superseded is abandoned between tile rows.
+ *
+ * Each frame keeps its line cull index. A tile whose line list contains none of the lines that
+ * moved, in either the old or the new index, evaluates exactly the same lines as before and is
+ * copied from the previous frame instead of being warped again.
+ */
+
+public class LivePreview {
+    public static final float T = 0.5f;
+    public static final int DEFAULT_SCALE = 4;
+    public static final int MAX_SCALE = 16;
+    public static final long LATENCY_BUDGET_MS = 30;
+    // Much coarser than a full morph; tiles only follow lines within a few dozen pixels
+    public static final float CULL_EPSILON = 1e-3f;
+
+    private final MorphRenderer renderer;
+    private final Listener listener;
+    private final Object lock = new Object();
+    private float[] pendingLeft, pendingRight;
+    private volatile int generation;
+    private boolean stopped;
+
+    // Render thread state: the last finished frame and what it was rendered from
+    private MorphRenderer scaled;
+    private int scale;
+    private PixelImage frame;
+    private float[] frameLeft, frameRight;
+    private LineCullIndex frameIndex;
+    private volatile long lastMillis;
+    private volatile float lastDirtyFraction;
+
+    /**
+     * Receives finished preview frames on the render thread.
+     */
+    public interface Listener {
+        void onPreviewRendered(LivePreview preview, PixelImage image);
+    }
+
+    /**
+     * @param renderer Full-size renderer supplying the images and line offsets
+     * @param scale Initial reduction factor
+     * @param listener Receives each finished frame
+     */
+    public LivePreview(MorphRenderer renderer, int scale, Listener listener) {
+        this.renderer = renderer;
+        this.listener = listener;
+        this.scale = scale;
+        scaled = renderer.scaled(scale);
+    }
+
+    /**
+     * Starts the render thread. The first frame is rendered from the renderer's own lines.
+     */
+    public void start() {
+        update(renderer.getLeftLines(), renderer.getRightLines());
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                float[] l, r;
+                int gen;
+                while (true) {
+                    synchronized (lock) {
+                        while (pendingLeft == null && !stopped) {
+                            try {
+                                lock.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (stopped)
+                            return;
+                        l = pendingLeft;
+                        r = pendingRight;
+                        gen = generation;
+                        pendingLeft = pendingRight = null;
+                    }
+                    PixelImage image = render(l, r, gen);
+                    if (image != null)
+                        listener.onPreviewRendered(LivePreview.this, image);
+                }
+            }
+        }, "morph-live-preview");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Requests a frame for new line geometry, replacing any request not yet picked up and
+     * cancelling the render in progress.
+     *
+     * @param leftLines Lines on the first image in view coordinates
+     * @param rightLines Matching lines on the last image in view coordinates
+     */
+    public void update(float[] leftLines, float[] rightLines) {
+        synchronized (lock) {
+            pendingLeft = leftLines;
+            pendingRight = rightLines;
+            generation++;
+            lock.notify();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            generation++;
+            lock.notify();
+        }
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return Time taken by the last finished frame in milliseconds
+     */
+    public long getLastMillis() {
+        return lastMillis;
+    }
+
+    /**
+     * @return Share of tiles that had to be warped again for the last finished frame
+     */
+    public float getLastDirtyFraction() {
+        return lastDirtyFraction;
+    }
+
+    /**
+     * Renders a frame for the given lines, reusing every tile of the previous frame that the
+     * change cannot reach.
+     *
+     * @param leftLines Lines on the first image in view coordinates
+     * @param rightLines Matching lines on the last image in view coordinates
+     * @param gen Generation the request belongs to
+     * @return Rendered frame, or null if a newer request arrived first
+     */
+    PixelImage render(float[] leftLines, float[] rightLines, int gen) {
+        long start = System.nanoTime();
+        MorphRenderer next = scaled.withLines(leftLines, rightLines);
+        FieldWarp warp = next.createWarp(MorphRenderer.interpolate(leftLines, rightLines, T), 0, CULL_EPSILON);
+        LineCullIndex index = warp.getCullIndex();
+        int width = next.getWidth(), height = next.getHeight();
+        // Without an index (weights that do not fall with distance) the frame is a single tile
+        int tile = index == null ? Math.max(width, height) : index.getTileSize();
+        int tilesX = index == null ? 1 : index.getTilesX(), tilesY = index == null ? 1 : index.getTilesY();
+
+        boolean[] dirty = dirtyTiles(leftLines, rightLines, index);
+        boolean first = frame == null;
+        PixelImage out = new PixelImage(width, height);
+        if (!first)
+            System.arraycopy(frame.pixels, 0, out.pixels, 0, out.pixels.length);
+
+        int dirtyCount = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            if (generation != gen)
+                return null;
+            int from = -1, to = -1;
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (dirty[ty * tilesX + tx]) {
+                    if (from == -1)
+                        from = tx;
+                    to = tx;
+                    dirtyCount++;
+                }
+            }
+            if (from != -1)
+                next.renderRegion(warp, T, out, from * tile, ty * tile,
+                        Math.min(width, (to + 1) * tile), Math.min(height, (ty + 1) * tile));
+        }
+
+        frame = out;
+        frameLeft = leftLines;
+        frameRight = rightLines;
+        frameIndex = index;
+        lastMillis = (System.nanoTime() - start) / 1000000;
+        lastDirtyFraction = (float) dirtyCount / (tilesX * tilesY);
+
+        // Coarsen if updates after the initial frame cannot keep up
+        if (!first && lastMillis > LATENCY_BUDGET_MS && scale < MAX_SCALE) {
+            scale *= 2;
+            scaled = renderer.scaled(scale);
+            frame = null;
+        }
+        return out;
+    }
+
+    /**
+     * Marks the tiles that list a moved line in the previous or the new cull index. Everything
+     * is dirty when there is no previous frame or lines were added or removed.
+     */
+    private boolean[] dirtyTiles(float[] leftLines, float[] rightLines, LineCullIndex index) {
+        if (index == null)
+            return new boolean[]{true};
+        boolean[] dirty = new boolean[index.getTilesX() * index.getTilesY()];
+        if (frame == null || frameIndex == null || frameLeft.length != leftLines.length) {
+            Arrays.fill(dirty, true);
+            return dirty;
+        }
+        int n = leftLines.length / 4;
+        boolean[] moved = new boolean[n];
+        boolean any = false;
+        for (int i = 0; i < n * 4; i++) {
+            if (frameLeft[i] != leftLines[i] || frameRight[i] != rightLines[i]) {
+                moved[i / 4] = true;
+                any = true;
+            }
+        }
+        if (!any)
+            return dirty;
+        markTiles(frameIndex, moved, dirty);
+        markTiles(index, moved, dirty);
+        return dirty;
+    }
+
+    private static void markTiles(LineCullIndex index, boolean[] moved, boolean[] dirty) {
+        int[] lines = index.getLines();
+        int tilesX = index.getTilesX();
+        for (int ty = 0; ty < index.getTilesY(); ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                for (int k = index.getStart(tx, ty); k < index.getEnd(tx, ty); k++) {
+                    if (moved[lines[k]]) {
+                        dirty[ty * tilesX + tx] = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package ca.jason.morphimage;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Command-line batch morphing, for servers without Android. Reads a manifest with one morph per
+ * line:
+ *
+ *   left.png left.lines right.png right.lines frames output
+ *
+ * where each .lines file holds "x1 y1 x2 y2" per line in image pixels, matched by order, and
+ * output is the prefix of the files written (output_0.png, output_1.png, ... or output.png as an
+ * APNG). Relative paths are resolved against the manifest; blank lines and lines starting with
+ * # are skipped.
+ *
+ * Frames of every morph share one scheduler sized to the machine, and the next morph is loaded
+ * while the current one renders, so cores stay busy across morphs. Each morph prints the time
+ * spent in every stage, and emits the same figures as Flight Recorder events where the JVM has
+ * it. Uses javax.imageio to read images, so it runs on a desktop JVM only.
+ */
+
+public class MorphBatch {
+    // Morphs loaded at once; each holds both of its images until its last frame is encoded
+    private static final int MORPHS_IN_FLIGHT = 2;
+    // Built separately from these classes, and only where the JDK has Flight Recorder
+    private static final String JFR_LISTENER = "ca.jason.morphimage.JfrMetrics";
+
+    private int threads = ParallelRows.THREADS;
+    private int level = PngWriter.DEFAULT_LEVEL;
+    private boolean animation;
+    private boolean linearDissolve;
+    private Sampler.Kind sampler = Sampler.Kind.BILINEAR;
+    private LineWeight lineWeight = LineWeight.DEFAULT;
+    private final MorphMetrics.Listener jfr = loadJfr();
+
+    public static void main(String[] args) {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            MorphMetrics.setCpuClock(new MorphMetrics.CpuClock() {
+                public long threadCpuNanos() {
+                    return threadBean.getCurrentThreadCpuTime();
+                }
+            });
+        }
+
+        MorphBatch batch = new MorphBatch();
+        String manifest = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-threads"))
+                    batch.setThreads(Integer.parseInt(args[++i]));
+                else if (args[i].equals("-level"))
+                    batch.setLevel(Integer.parseInt(args[++i]));
+                else if (args[i].equals("-sampler"))
+                    batch.setSampler(Sampler.Kind.valueOf(args[++i].toUpperCase(Locale.US)));
+                else if (args[i].equals("-apng"))
+                    batch.setAnimation(true);
+                else if (args[i].equals("-linear"))
+                    batch.setLinearDissolve(true);
+                else if (manifest == null && !args[i].startsWith("-"))
+                    manifest = args[i];
+                else
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        } catch (RuntimeException e) {
+            // Missing or malformed option values end up here too
+            manifest = null;
+        }
+        if (manifest == null) {
+            System.err.println("Usage: MorphBatch [-threads n] [-level 0-9] [-sampler nearest|bilinear|bicubic]"
+                    + " [-apng] [-linear] manifest");
+            System.exit(2);
+        }
+
+        try {
+            int failed = batch.run(new File(manifest));
+            System.exit(failed == 0 ? 0 : 1);
+        } catch (IOException e) {
+            System.err.println("Couldn't read manifest: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param threads Frames rendered at once, and frames encoded at once
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param level PNG compression level, 0 to 9
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @param animation Write each morph as one APNG instead of a PNG per frame
+     */
+    public void setAnimation(boolean animation) {
+        this.animation = animation;
+    }
+
+    public void setLinearDissolve(boolean linearDissolve) {
+        this.linearDissolve = linearDissolve;
+    }
+
+    public void setSampler(Sampler.Kind sampler) {
+        this.sampler = sampler;
+    }
+
+    public void setLineWeight(LineWeight lineWeight) {
+        this.lineWeight = lineWeight;
+    }
+
+    /**
+     * Runs every morph of a manifest, printing the frame rate of each and of the whole batch.
+     * A morph that can't be read or rendered is reported and skipped.
+     *
+     * @param manifest Manifest file
+     * @return Number of morphs that failed
+     * @throws IOException If the manifest can't be read
+     */
+    public int run(File manifest) throws IOException {
+        ArrayList<String[]> entries = readManifest(manifest);
+        File base = manifest.getAbsoluteFile().getParentFile();
+        MorphScheduler scheduler = new MorphScheduler(threads, threads);
+        ArrayDeque<Morph> running = new ArrayDeque<>();
+        int failed = 0, totalFrames = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                if (running.size() >= MORPHS_IN_FLIGHT) {
+                    Morph done = running.poll();
+                    if (done.finish())
+                        totalFrames += done.job.getFrames();
+                    else
+                        failed++;
+                }
+                Morph m = start(scheduler, base, entries.get(i), i);
+                if (m != null)
+                    running.add(m);
+                else
+                    failed++;
+            }
+            while (!running.isEmpty()) {
+                Morph done = running.poll();
+                if (done.finish())
+                    totalFrames += done.job.getFrames();
+                else
+                    failed++;
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "%d morphs, %d frames in %.2fs (%.1f fps), %d failed, %d threads",
+                entries.size() - failed, totalFrames, seconds, totalFrames / seconds, failed, threads));
+        return failed;
+    }
+
+    /**
+     * A morph whose frames are queued on the scheduler.
+     */
+    private static class Morph {
+        final String name;
+        final long start;
+        final MorphScheduler.Job job;
+        final AnimationExport export;
+
+        Morph(String name, long start, MorphScheduler.Job job, AnimationExport export) {
+            this.name = name;
+            this.start = start;
+            this.job = job;
+            this.export = export;
+        }
+
+        /**
+         * Waits for every frame to be written and reports the morph's frame rate.
+         *
+         * @return Whether every frame was written
+         */
+        boolean finish() {
+            boolean ok = false;
+            try {
+                job.awaitEncoded();
+                ok = true;
+            } catch (ExecutionException e) {
+                System.err.println(name + ": morph failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                job.cancel();
+                Thread.currentThread().interrupt();
+            }
+            if (export != null) {
+                try {
+                    export.close();
+                } catch (IOException e) {
+                    System.err.println(name + ": couldn't finish animation: " + e.getMessage());
+                    ok = false;
+                }
+            }
+            if (ok) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format(Locale.US, "%s: %d frames in %.2fs (%.1f fps), %s",
+                        name, job.getFrames(), seconds, job.getFrames() / seconds, job.getMetrics()));
+            }
+            return ok;
+        }
+    }
+
+    /**
+     * Loads the images and lines of a manifest entry and queues its frames.
+     *
+     * @return The queued morph, or null if its inputs couldn't be read
+     */
+    private Morph start(MorphScheduler scheduler, File base, String[] entry, int index) {
+        String name = entry[5];
+        long start = System.nanoTime();
+        final MorphMetrics metrics = new MorphMetrics(index);
+        if (jfr != null)
+            metrics.addListener(jfr);
+        try {
+            final int frames = Integer.parseInt(entry[4]);
+            if (frames < 0)
+                throw new IOException("Negative frame count " + frames);
+            final MorphRenderer morph = new MorphRenderer(
+                    readImage(resolve(base, entry[0])), readLines(resolve(base, entry[1])), 0, 0,
+                    readImage(resolve(base, entry[2])), readLines(resolve(base, entry[3])), 0, 0);
+            morph.setSampler(sampler);
+            morph.setLineWeight(lineWeight);
+            morph.setLinearDissolve(linearDissolve);
+            morph.setMetrics(metrics);
+
+            MorphScheduler.FrameRenderer renderer = new MorphScheduler.FrameRenderer() {
+                public PixelImage render(int frame) {
+                    return morph.render(frame, frames);
+                }
+            };
+            final File output = resolve(base, name);
+            File dir = output.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Couldn't create " + dir);
+
+            AnimationExport export = null;
+            MorphScheduler.FrameEncoder encoder;
+            if (animation) {
+                export = new AnimationExport(new ApngWriter(new File(output.getPath() + ".png"),
+                        morph.getWidth(), morph.getHeight(), ApngWriter.DEFAULT_DELAY_MS, level));
+                export.setMetrics(metrics);
+                encoder = export;
+            } else {
+                final PngWriter png = new PngWriter(level);
+                encoder = new MorphScheduler.FrameEncoder() {
+                    public String encode(int frame, PixelImage image) throws IOException {
+                        File f = new File(output.getPath() + "_" + frame + ".png");
+                        png.write(image, f, metrics, frame);
+                        return f.getPath();
+                    }
+                };
+            }
+            return new Morph(name, start, scheduler.submit(frames + 2, renderer, encoder, null, metrics), export);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the entries of a manifest, six fields each.
+     *
+     * @throws IOException If the file can't be read or an entry is malformed
+     */
+    static ArrayList<String[]> readManifest(File manifest) throws IOException {
+        ArrayList<String[]> entries = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 6)
+                    throw new IOException(manifest + ":" + number + ": expected 6 fields, got " + fields.length);
+                entries.add(fields);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads lines as packed (x1, y1, x2, y2) values, four numbers per line of the file.
+     *
+     * @throws IOException If the file can't be read or a line doesn't hold four numbers
+     */
+    static float[] readLines(File file) throws IOException {
+        ArrayList<float[]> lines = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("[\\s,]+");
+                if (fields.length != 4)
+                    throw new IOException(file + ": expected x1 y1 x2 y2, got \"" + line + "\"");
+                float[] l = new float[4];
+                for (int i = 0; i < 4; i++)
+                    l[i] = Float.parseFloat(fields[i]);
+                lines.add(l);
+            }
+        } finally {
+            in.close();
+        }
+        float[] packed = new float[lines.size() * 4];
+        for (int i = 0; i < lines.size(); i++)
+            System.arraycopy(lines.get(i), 0, packed, i * 4, 4);
+        return packed;
+    }
+
+    /**
+     * Decodes an image into ARGB pixels.
+     *
+     * @throws IOException If the file can't be read or decoded
+     */
+    static PixelImage readImage(File file) throws IOException {
+        if (!file.isFile())
+            throw new IOException(file + ": not found");
+        BufferedImage b = ImageIO.read(file);
+        if (b == null)
+            throw new IOException(file + ": unsupported image format");
+        int w = b.getWidth(), h = b.getHeight();
+        return new PixelImage(b.getRGB(0, 0, w, h, null, 0, w), w, h);
+    }
+
+    /**
+     * @return Listener emitting Flight Recorder events, or null if the listener or this JVM's
+     * Flight Recorder is missing
+     */
+    private static MorphMetrics.Listener loadJfr() {
+        try {
+            return (MorphMetrics.Listener) Class.forName(JFR_LISTENER).getMethod("create").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static File resolve(File base, String path) {
+        File f = new File(path);
+        return f.isAbsolute() || base == null ? f : new File(base, path);
+    }
+}
@@ -0,0 +1,229 @@
+package ca.jason.morphimage;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Wall and CPU time spent in each stage of one morph job, with bytes written and the largest
+ * backlog of its frames waiting to be rendered and encoded. Stages record themselves as they finish, from whichever thread ran
+ * them, and listeners see every record. Totals tell which stage bounds a morph on a device.
+ *
+ * CPU time is that of the thread that ran the stage, read through the clock set with
+ * setCpuClock, and 0 without one. Row-parallel passes also run on pool threads, so their CPU
+ * time undercounts; their wall time is the figure to compare.
+ */
+
+public class MorphMetrics {
+    /**
+     * Stages of a frame. The warp and dissolve run as one pass unless the field is cached, so
+     * that pass is all counted as WARP; when a displacement cache keeps the field's map, WARP is
+     * evaluating the field and DISSOLVE is sampling and blending through it.
+     */
+    public enum Stage {
+        // Interpolating the frame's lines and building its line fields and cull index
+        INTERPOLATE,
+        WARP,
+        DISSOLVE,
+        // Compressing a frame
+        ENCODE,
+        // Writing a compressed or raw frame out
+        WRITE
+    }
+
+    /**
+     * Notified from the thread that ran each stage.
+     */
+    public interface Listener {
+        /**
+         * Called as a stage starts, before any of its work.
+         *
+         * @param frame Frame the stage runs for, or -1 if not part of a numbered frame
+         */
+        void onStageBegin(MorphMetrics metrics, int frame, Stage stage);
+
+        /**
+         * Called as a stage finishes, on the thread it began on.
+         *
+         * @param frame Frame the stage ran for, or -1 if not part of a numbered frame
+         * @param wallNanos Elapsed time
+         * @param cpuNanos CPU time of the running thread, 0 if unavailable
+         * @param bytes Bytes written by the stage
+         */
+        void onStage(MorphMetrics metrics, int frame, Stage stage, long wallNanos, long cpuNanos, long bytes);
+
+        /**
+         * @param renderQueue Frames of the job not yet rendered
+         * @param encodeQueue Rendered frames of the job not yet encoded
+         */
+        void onQueueDepth(MorphMetrics metrics, int renderQueue, int encodeQueue);
+    }
+
+    /**
+     * Source of the CPU time used by the current thread, which differs between Android and the JVM.
+     */
+    public interface CpuClock {
+        long threadCpuNanos();
+    }
+
+    private static volatile CpuClock cpuClock;
+
+    private final int job;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLongArray wall, cpu, counts;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger maxRenderQueue = new AtomicInteger(), maxEncodeQueue = new AtomicInteger();
+
+    /**
+     * @param job Identifier of the job the metrics belong to
+     */
+    public MorphMetrics(int job) {
+        this.job = job;
+        int stages = Stage.values().length;
+        wall = new AtomicLongArray(stages);
+        cpu = new AtomicLongArray(stages);
+        counts = new AtomicLongArray(stages);
+    }
+
+    /**
+     * Sets the clock every stage reads its CPU time from.
+     *
+     * @param clock Clock of the platform, or null to record no CPU time
+     */
+    public static void setCpuClock(CpuClock clock) {
+        cpuClock = clock;
+    }
+
+    /**
+     * @return CPU time of the current thread, 0 if there is no clock
+     */
+    public static long cpuTime() {
+        CpuClock clock = cpuClock;
+        return clock == null ? 0 : clock.threadCpuNanos();
+    }
+
+    public int getJob() {
+        return job;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Marks the start of a stage on this thread, which record() later completes.
+     *
+     * @param frame Frame the stage runs for, or -1
+     * @param stage Stage that is starting
+     */
+    public void begin(int frame, Stage stage) {
+        for (Listener l : listeners)
+            l.onStageBegin(this, frame, stage);
+    }
+
+    /**
+     * Records a stage that started at the given times and has just finished on this thread.
+     *
+     * @param frame Frame the stage ran for, or -1
+     * @param stage Stage that finished
+     * @param startWall System.nanoTime() when it started
+     * @param startCpu cpuTime() when it started
+     * @param written Bytes it wrote
+     */
+    public void record(int frame, Stage stage, long startWall, long startCpu, long written) {
+        long wallNanos = System.nanoTime() - startWall, cpuNanos = cpuTime() - startCpu;
+        int s = stage.ordinal();
+        wall.addAndGet(s, wallNanos);
+        cpu.addAndGet(s, cpuNanos);
+        counts.incrementAndGet(s);
+        if (written > 0)
+            bytes.addAndGet(written);
+        for (Listener l : listeners)
+            l.onStage(this, frame, stage, wallNanos, cpuNanos, written);
+    }
+
+    /**
+     * Records the job's backlog, counting only its own frames.
+     */
+    public void recordQueues(int renderQueue, int encodeQueue) {
+        raise(maxRenderQueue, renderQueue);
+        raise(maxEncodeQueue, encodeQueue);
+        for (Listener l : listeners)
+            l.onQueueDepth(this, renderQueue, encodeQueue);
+    }
+
+    private static void raise(AtomicInteger max, int value) {
+        int m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    public long getWallNanos(Stage stage) {
+        return wall.get(stage.ordinal());
+    }
+
+    public long getCpuNanos(Stage stage) {
+        return cpu.get(stage.ordinal());
+    }
+
+    /**
+     * @return Number of times the stage has run
+     */
+    public long getCount(Stage stage) {
+        return counts.get(stage.ordinal());
+    }
+
+    public long getBytesWritten() {
+        return bytes.get();
+    }
+
+    public int getMaxRenderQueue() {
+        return maxRenderQueue.get();
+    }
+
+    public int getMaxEncodeQueue() {
+        return maxEncodeQueue.get();
+    }
+
+    /**
+     * @return Stage with the most wall time so far, or null if nothing has been recorded
+     */
+    public Stage getBottleneck() {
+        Stage slowest = null;
+        long most = 0;
+        for (Stage s : Stage.values()) {
+            if (getWallNanos(s) > most) {
+                most = getWallNanos(s);
+                slowest = s;
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * @return One-line summary of each stage's totals, for logs
+     */
+    @Override
+    public String toString() {
+        long total = 0;
+        for (Stage s : Stage.values())
+            total += getWallNanos(s);
+        StringBuilder b = new StringBuilder("job ").append(job).append(':');
+        for (Stage s : Stage.values()) {
+            if (getCount(s) == 0)
+                continue;
+            b.append(String.format(Locale.US, " %s %.1fms wall/%.1fms cpu (%d%%, %dx),",
+                    s.name().toLowerCase(Locale.US), getWallNanos(s) / 1e6, getCpuNanos(s) / 1e6,
+                    total == 0 ? 0 : getWallNanos(s) * 100 / total, getCount(s)));
+        }
+        b.append(String.format(Locale.US, " %.2fMB written, queues %d/%d, bottleneck %s",
+                getBytesWritten() / 1e6, getMaxRenderQueue(), getMaxEncodeQueue(), getBottleneck()));
+        return b.toString();
+    }
+}
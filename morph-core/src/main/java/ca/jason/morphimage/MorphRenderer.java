@@ -0,0 +1,433 @@
+package ca.jason.morphimage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Renders the frames of a morph between two images. Lines are given in view coordinates, where
+ * each image sits at its own offset, and intermediate lines are interpolated per frame. A renderer
+ * can produce a copy of itself at a reduced scale for previews; the lines stay in view coordinates
+ * and are scaled as each frame's line fields are built.
+ */
+
+public class MorphRenderer {
+    public static final int CULL_MIN_LINES = 16;
+    public static final float CULL_EPSILON = 1e-5f;
+    // Raise whenever rendering changes, so results cached by earlier versions are not reused
+    public static final int ENGINE_VERSION = 2;
+
+    private final PixelImage left, right;
+    private final float[] leftLines, rightLines;
+    private final float leftX, leftY, rightX, rightY;
+    private final int scale;
+    private boolean linearDissolve;
+    private int gridCell;
+    private float gridTolerance;
+    private DisplacementCache cache;
+    private MorphMetrics metrics;
+    private Sampler.Kind sampler = Sampler.Kind.NEAREST;
+    // Padded copies of both images for the kernel, made once and read by every frame at once
+    private Sampler[] samplers;
+    private LineWeight lineWeight = LineWeight.DEFAULT;
+
+    /**
+     * @param left First image of the morph
+     * @param leftLines Lines on the first image, (x1, y1, x2, y2) per line in view coordinates
+     * @param leftX Horizontal offset of the first image in view coordinates
+     * @param leftY Vertical offset of the first image in view coordinates
+     * @param right Last image of the morph
+     * @param rightLines Matching lines on the last image in view coordinates
+     * @param rightX Horizontal offset of the last image in view coordinates
+     * @param rightY Vertical offset of the last image in view coordinates
+     */
+    public MorphRenderer(PixelImage left, float[] leftLines, float leftX, float leftY,
+                         PixelImage right, float[] rightLines, float rightX, float rightY) {
+        this(left, leftLines, leftX, leftY, right, rightLines, rightX, rightY, 1);
+    }
+
+    private MorphRenderer(PixelImage left, float[] leftLines, float leftX, float leftY,
+                          PixelImage right, float[] rightLines, float rightX, float rightY, int scale) {
+        if (leftLines.length != rightLines.length)
+            throw new IllegalArgumentException("Line counts differ: " + leftLines.length / 4
+                    + " != " + rightLines.length / 4);
+        this.left = left;
+        this.leftLines = leftLines;
+        this.leftX = leftX;
+        this.leftY = leftY;
+        this.right = right;
+        this.rightLines = rightLines;
+        this.rightX = rightX;
+        this.rightY = rightY;
+        this.scale = scale;
+    }
+
+    /**
+     * Creates a renderer for the same morph with both images reduced by the given factor.
+     *
+     * @param factor Reduction factor, 1 for full size
+     * @return Scaled renderer sharing this renderer's settings
+     */
+    public MorphRenderer scaled(int factor) {
+        MorphRenderer r = factor == 1 ? this : new MorphRenderer(left.downsample(factor), leftLines, leftX, leftY,
+                right.downsample(factor), rightLines, rightX, rightY, scale * factor);
+        if (r != this) {
+            r.linearDissolve = linearDissolve;
+            r.gridCell = gridCell;
+            r.gridTolerance = gridTolerance;
+            r.cache = cache;
+            r.sampler = sampler;
+            r.lineWeight = lineWeight;
+        }
+        return r;
+    }
+
+    public void setLinearDissolve(boolean linearDissolve) {
+        this.linearDissolve = linearDissolve;
+    }
+
+    /**
+     * Uses the approximate grid mode of the warp for every frame.
+     *
+     * @param cellSize Spacing of grid nodes in pixels, or 0 for exact warps
+     * @param tolerance Interpolation tolerance in pixels
+     */
+    public void setGrid(int cellSize, float tolerance) {
+        gridCell = cellSize;
+        gridTolerance = tolerance;
+    }
+
+    /**
+     * Selects the kernel used to read both images, trading quality for speed.
+     *
+     * @param sampler Resampling kernel, nearest by default
+     */
+    public synchronized void setSampler(Sampler.Kind sampler) {
+        if (sampler != this.sampler)
+            samplers = null;
+        this.sampler = sampler;
+    }
+
+    /**
+     * Sets the (a, b, p) parameters of the line weight for every frame.
+     *
+     * @param lineWeight Weight parameters, LineWeight.DEFAULT unless set
+     */
+    public void setLineWeight(LineWeight lineWeight) {
+        this.lineWeight = lineWeight;
+    }
+
+    /**
+     * Reuses evaluated fields from the given cache, and adds new ones to it. A field whose map
+     * would not fit the cache's budget is warped and dissolved in one pass as without a cache.
+     *
+     * @param cache Cache shared between renderers, or null to always evaluate fields
+     */
+    public void setCache(DisplacementCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Records the time spent in each stage of every numbered frame.
+     *
+     * @param metrics Metrics of the job the renderer draws, or null
+     */
+    public void setMetrics(MorphMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public int getNumLines() {
+        return leftLines.length / 4;
+    }
+
+    public int getWidth() {
+        return Math.max(left.width, right.width);
+    }
+
+    public int getHeight() {
+        return Math.max(left.height, right.height);
+    }
+
+    /**
+     * Renders a frame of the morph. Frame 0 and frame frames + 1 are the two images themselves,
+     * centred on white at the size of every other frame; frames in between are warped onto
+     * interpolated lines and cross-dissolved.
+     *
+     * @param frame Frame to render, from 0 to frames + 1
+     * @param frames Number of intermediate frames
+     * @return Rendered frame of getWidth() x getHeight()
+     */
+    public PixelImage render(int frame, int frames) {
+        if (frame == 0)
+            return pad(left);
+        if (frame == frames + 1)
+            return pad(right);
+        if (metrics != null)
+            metrics.begin(frame, MorphMetrics.Stage.INTERPOLATE);
+        long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+        float t = (float) frame / (frames + 1);
+        return render(interpolate(leftLines, rightLines, t), t, frame, startWall, startCpu);
+    }
+
+    /**
+     * Warps both images onto the given lines and cross-dissolves them in a single pass. The frame
+     * is large enough to hold either image, centred, on white.
+     *
+     * @param midLines Intermediate lines in view coordinates
+     * @param t Weight of the last image, from 0 to 1
+     * @return Rendered frame
+     */
+    public PixelImage render(float[] midLines, float t) {
+        if (metrics != null)
+            metrics.begin(-1, MorphMetrics.Stage.INTERPOLATE);
+        return render(midLines, t, -1, System.nanoTime(), MorphMetrics.cpuTime());
+    }
+
+    /**
+     * Renders a frame, recording its stages from the given start of the frame.
+     *
+     * @param frame Frame number for metrics, or -1
+     * @param startWall System.nanoTime() when work on the frame began
+     * @param startCpu MorphMetrics.cpuTime() when work on the frame began
+     */
+    private PixelImage render(float[] midLines, float t, int frame, long startWall, long startCpu) {
+        MorphMetrics m = metrics;
+        PixelImage out = new PixelImage(getWidth(), getHeight());
+        // The field depends only on geometry, so a cached map serves any images of the same sizes
+        DisplacementCache.Key key = cache == null ? null : new DisplacementCache.Key(
+                new float[][]{midLines, leftLines, rightLines, {leftX, leftY, rightX, rightY, gridTolerance,
+                        lineWeight.a, lineWeight.b, lineWeight.p}},
+                new int[]{left.width, left.height, right.width, right.height, scale, gridCell}, t);
+        FieldMap map = key == null ? null : cache.get(key);
+        // A map the cache would drop costs a second pass and 16 bytes a pixel for nothing
+        if (map == null && (key == null || !cache.fits(key, out.width, out.height))) {
+            FieldWarp warp = createWarp(midLines, CULL_MIN_LINES, CULL_EPSILON);
+            if (m != null) {
+                m.record(frame, MorphMetrics.Stage.INTERPOLATE, startWall, startCpu, 0);
+                m.begin(frame, MorphMetrics.Stage.WARP);
+                startWall = System.nanoTime();
+                startCpu = MorphMetrics.cpuTime();
+            }
+            renderRegion(warp, t, out, 0, 0, out.width, out.height);
+            if (m != null)
+                m.record(frame, MorphMetrics.Stage.WARP, startWall, startCpu, 0);
+            return out;
+        }
+
+        if (map == null) {
+            FieldWarp warp = createWarp(midLines, CULL_MIN_LINES, CULL_EPSILON);
+            if (m != null) {
+                m.record(frame, MorphMetrics.Stage.INTERPOLATE, startWall, startCpu, 0);
+                m.begin(frame, MorphMetrics.Stage.WARP);
+                startWall = System.nanoTime();
+                startCpu = MorphMetrics.cpuTime();
+            }
+            map = warp.map(out.width, out.height);
+            cache.put(key, map);
+            if (m != null)
+                m.record(frame, MorphMetrics.Stage.WARP, startWall, startCpu, 0);
+        } else if (m != null) {
+            m.record(frame, MorphMetrics.Stage.INTERPOLATE, startWall, startCpu, 0);
+        }
+        if (m != null) {
+            m.begin(frame, MorphMetrics.Stage.DISSOLVE);
+            startWall = System.nanoTime();
+            startCpu = MorphMetrics.cpuTime();
+        }
+        int lx = (out.width - left.width) / 2, ly = (out.height - left.height) / 2;
+        int rx = (out.width - right.width) / 2, ry = (out.height - right.height) / 2;
+        Sampler[] s = samplers();
+        map.dissolve(s[0], lx, ly, s[1], rx, ry, new CrossDissolve(t, linearDissolve), out);
+        if (m != null)
+            m.record(frame, MorphMetrics.Stage.DISSOLVE, startWall, startCpu, 0);
+        return out;
+    }
+
+    /**
+     * Centres an image on white at the frame size, as the warped frames place it.
+     *
+     * @return The image itself if it already fills the frame
+     */
+    private PixelImage pad(PixelImage img) {
+        int width = getWidth(), height = getHeight();
+        if (img.width == width && img.height == height)
+            return img;
+        PixelImage out = new PixelImage(width, height);
+        Arrays.fill(out.pixels, CrossDissolve.WHITE);
+        int x = (width - img.width) / 2, y = (height - img.height) / 2;
+        for (int row = 0; row < img.height; row++)
+            System.arraycopy(img.pixels, row * img.width, out.pixels, (y + row) * width + x, img.width);
+        return out;
+    }
+
+    /**
+     * Builds the two-sided warp for a frame.
+     *
+     * @param midLines Intermediate lines in view coordinates
+     * @param cullMinLines Smallest number of lines for which a cull index is built
+     * @param cullEpsilon Weight below which a line is culled from a tile
+     * @return Warp from the frame onto both images
+     */
+    FieldWarp createWarp(float[] midLines, int cullMinLines, float cullEpsilon) {
+        int width = getWidth(), height = getHeight();
+        int lx = (width - left.width) / 2, ly = (height - left.height) / 2;
+
+        // Line geometry is packed once per frame so the pixel loop only reads primitive arrays
+        LineField dLines = field(midLines, leftX / scale - lx, leftY / scale - ly);
+        LineField sLines = field(leftLines, leftX / scale, leftY / scale);
+        LineField sLines2 = field(rightLines, rightX / scale, rightY / scale);
+
+        FieldWarp warp = new FieldWarp(dLines, sLines, sLines2);
+        warp.setIncremental(true);
+        warp.setSampler(sampler);
+        warp.setLineWeight(lineWeight);
+        // Culling relies on weights falling with distance
+        if (dLines.getNumLines() >= cullMinLines && lineWeight.b > 0)
+            warp.setCullIndex(new LineCullIndex(dLines, sLines, sLines2, lineWeight, width, height,
+                    LineCullIndex.DEFAULT_TILE_SIZE, cullEpsilon));
+        if (gridCell > 0)
+            warp.setGrid(gridCell, gridTolerance);
+        return warp;
+    }
+
+    /**
+     * Renders the rectangle [x0, x1) x [y0, y1) of a frame into an existing output, centring each
+     * image on white.
+     *
+     * @param warp Warp built by createWarp
+     * @param t Weight of the last image, from 0 to 1
+     * @param out Output image of getWidth() x getHeight()
+     */
+    void renderRegion(FieldWarp warp, float t, PixelImage out, int x0, int y0, int x1, int y1) {
+        int lx = (out.width - left.width) / 2, ly = (out.height - left.height) / 2;
+        int rx = (out.width - right.width) / 2, ry = (out.height - right.height) / 2;
+        Sampler[] s = samplers();
+        warp.warpDissolve(s[0], lx, ly, s[1], rx, ry, new CrossDissolve(t, linearDissolve), out, x0, y0, x1, y1);
+    }
+
+    /**
+     * @return Samplers over the first and last image, built on first use
+     */
+    private synchronized Sampler[] samplers() {
+        if (samplers == null)
+            samplers = new Sampler[]{sampler.create(left), sampler.create(right)};
+        return samplers;
+    }
+
+    /**
+     * Creates a renderer for the same images and settings with new lines.
+     *
+     * @param leftLines Lines on the first image in view coordinates
+     * @param rightLines Matching lines on the last image in view coordinates
+     * @return Renderer sharing this renderer's images
+     */
+    public MorphRenderer withLines(float[] leftLines, float[] rightLines) {
+        MorphRenderer r = new MorphRenderer(left, leftLines, leftX, leftY, right, rightLines, rightX, rightY, scale);
+        r.linearDissolve = linearDissolve;
+        r.gridCell = gridCell;
+        r.gridTolerance = gridTolerance;
+        r.cache = cache;
+        r.sampler = sampler;
+        // Same images, so copies made for live previews share the padded samplers
+        r.samplers = samplers();
+        r.lineWeight = lineWeight;
+        return r;
+    }
+
+    float[] getLeftLines() {
+        return leftLines;
+    }
+
+    float[] getRightLines() {
+        return rightLines;
+    }
+
+    private LineField field(float[] lines, float xOff, float yOff) {
+        if (scale == 1)
+            return new LineField(lines, xOff, yOff, lineWeight);
+        float[] scaled = new float[lines.length];
+        for (int i = 0; i < lines.length; i++)
+            scaled[i] = lines[i] / scale;
+        return new LineField(scaled, xOff, yOff, lineWeight);
+    }
+
+    /**
+     * Hashes everything a rendered frame depends on: both images, the lines and their offsets,
+     * and the engine settings. Two renderers with the same digest produce identical frames.
+     *
+     * @return SHA-1 digest as lowercase hex
+     */
+    public String digest() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buf = new byte[4096];
+        update(md, buf, new int[]{ENGINE_VERSION, scale, gridCell, linearDissolve ? 1 : 0, sampler.ordinal(),
+                CULL_MIN_LINES, left.width, left.height, right.width, right.height});
+        update(md, buf, new float[]{lineWeight.a, lineWeight.b, lineWeight.p, CULL_EPSILON, gridTolerance,
+                leftX, leftY, rightX, rightY});
+        update(md, buf, leftLines);
+        update(md, buf, rightLines);
+        update(md, buf, left.pixels, left.width * left.height);
+        update(md, buf, right.pixels, right.width * right.height);
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest md, byte[] buf, int[] values) {
+        update(md, buf, values, values.length);
+    }
+
+    private static void update(MessageDigest md, byte[] buf, float[] values) {
+        int[] bits = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            bits[i] = Float.floatToIntBits(values[i]);
+        update(md, buf, bits, bits.length);
+    }
+
+    /**
+     * Feeds ints to the digest big-endian, a buffer at a time.
+     */
+    private static void update(MessageDigest md, byte[] buf, int[] values, int count) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int v = values[i];
+            buf[n++] = (byte) (v >>> 24);
+            buf[n++] = (byte) (v >>> 16);
+            buf[n++] = (byte) (v >>> 8);
+            buf[n++] = (byte) v;
+            if (n == buf.length) {
+                md.update(buf, 0, n);
+                n = 0;
+            }
+        }
+        md.update(buf, 0, n);
+        // Length separates consecutive arrays
+        md.update(new byte[]{(byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8), (byte) count});
+    }
+
+    /**
+     * Linearly interpolates two sets of packed line endpoints.
+     *
+     * @param from Lines at t = 0
+     * @param to Lines at t = 1
+     * @param t Position between the two sets
+     * @return Interpolated lines
+     */
+    public static float[] interpolate(float[] from, float[] to, float t) {
+        float[] mid = new float[from.length];
+        for (int i = 0; i < from.length; i++)
+            mid[i] = from[i] + (to[i] - from[i]) * t;
+        return mid;
+    }
+}
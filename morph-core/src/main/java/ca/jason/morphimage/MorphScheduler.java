@@ -0,0 +1,260 @@
+package ca.jason.morphimage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the frames of a morph concurrently on a fixed-size pool and hands each finished frame to a
+ * separate encode pool. Every frame has one future for rendering and one for encoding; the encode
+ * task is queued by the render future as it completes, so nothing ever polls for completion.
+ * A frame's pixels are only held between the end of its render and the start of its encode.
+ */
+
+public class MorphScheduler {
+    private final ThreadPoolExecutor renderPool, encodePool;
+
+    /**
+     * Produces the pixels of a frame.
+     */
+    public interface FrameRenderer {
+        PixelImage render(int frame) throws Exception;
+    }
+
+    /**
+     * Persists a rendered frame, returning where it was written.
+     */
+    public interface FrameEncoder {
+        String encode(int frame, PixelImage image) throws Exception;
+    }
+
+    /**
+     * Notified from pool threads as frames progress.
+     */
+    public interface Listener {
+        void onFrameRendered(Job job, int frame);
+
+        void onFrameEncoded(Job job, int frame);
+    }
+
+    /**
+     * @param renderThreads Number of frames rendered at once
+     * @param encodeThreads Number of frames encoded at once
+     */
+    public MorphScheduler(int renderThreads, int encodeThreads) {
+        renderPool = fixedPool(renderThreads, "morph-render-");
+        encodePool = fixedPool(encodeThreads, "morph-encode-");
+    }
+
+    private static ThreadPoolExecutor fixedPool(int threads, String prefix) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory(prefix));
+    }
+
+    /**
+     * Queues every frame of a morph for rendering and encoding.
+     *
+     * @param frames Number of frames
+     * @param renderer Produces each frame
+     * @param encoder Persists each frame
+     * @param listener Notified as frames complete, may be null
+     * @return Handle to the frame futures
+     */
+    public Job submit(int frames, FrameRenderer renderer, FrameEncoder encoder, Listener listener) {
+        return submit(frames, renderer, encoder, listener, null);
+    }
+
+    /**
+     * Queues every frame of a morph, recording queue depths as its frames complete.
+     *
+     * @param metrics Metrics of the job, or null
+     * @return Handle to the frame futures
+     */
+    public Job submit(int frames, FrameRenderer renderer, FrameEncoder encoder, Listener listener,
+                      MorphMetrics metrics) {
+        Job job = new Job(frames, renderer, encoder, listener, metrics);
+        for (int i = 0; i < frames; i++)
+            renderPool.execute(job.rendered[i]);
+        return job;
+    }
+
+    /**
+     * @return Frames of every job waiting to be rendered
+     */
+    public int getRenderQueueDepth() {
+        return renderPool.getQueue().size();
+    }
+
+    /**
+     * @return Rendered frames of every job waiting to be encoded
+     */
+    public int getEncodeQueueDepth() {
+        return encodePool.getQueue().size();
+    }
+
+    /**
+     * Stops accepting work. Frames already queued still complete.
+     */
+    public void shutdown() {
+        renderPool.shutdown();
+        encodePool.shutdown();
+    }
+
+    public class Job {
+        private final FutureTask<Void>[] rendered;
+        private final FutureTask<String>[] encoded;
+        private final PixelImage[] images;
+        private final AtomicInteger renderedCount = new AtomicInteger();
+        private final AtomicInteger encodedCount = new AtomicInteger();
+        private final Listener listener;
+        private final MorphMetrics metrics;
+
+        // Generic arrays can't be created directly
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Job(int frames, final FrameRenderer renderer, final FrameEncoder encoder, Listener listener,
+                    MorphMetrics metrics) {
+            this.listener = listener;
+            this.metrics = metrics;
+            rendered = new FutureTask[frames];
+            encoded = new FutureTask[frames];
+            images = new PixelImage[frames];
+            for (int i = 0; i < frames; i++) {
+                final int frame = i;
+                encoded[i] = new FutureTask<String>(new Callable<String>() {
+                    public String call() throws Exception {
+                        rendered[frame].get();
+                        PixelImage image = images[frame];
+                        images[frame] = null;
+                        return encoder.encode(frame, image);
+                    }
+                }) {
+                    @Override
+                    protected void done() {
+                        encodedCount.incrementAndGet();
+                        recordQueues();
+                        if (Job.this.listener != null)
+                            Job.this.listener.onFrameEncoded(Job.this, frame);
+                    }
+                };
+                rendered[i] = new FutureTask<Void>(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        images[frame] = renderer.render(frame);
+                        return null;
+                    }
+                }) {
+                    @Override
+                    protected void done() {
+                        renderedCount.incrementAndGet();
+                        if (Job.this.listener != null)
+                            Job.this.listener.onFrameRendered(Job.this, frame);
+                        try {
+                            encodePool.execute(encoded[frame]);
+                        } catch (RejectedExecutionException e) {
+                            // Scheduler was shut down after this frame was queued
+                            encoded[frame].run();
+                        }
+                        recordQueues();
+                    }
+                };
+            }
+        }
+
+        /**
+         * Records this job's own backlog. The pools' queues also hold other jobs' frames.
+         */
+        private void recordQueues() {
+            if (metrics != null) {
+                int done = renderedCount.get();
+                metrics.recordQueues(rendered.length - done, done - encodedCount.get());
+            }
+        }
+
+        public int getFrames() {
+            return rendered.length;
+        }
+
+        /**
+         * @return Metrics the job records queue depths to, or null
+         */
+        public MorphMetrics getMetrics() {
+            return metrics;
+        }
+
+        public Future<?> getRendered(int frame) {
+            return rendered[frame];
+        }
+
+        public Future<String> getEncoded(int frame) {
+            return encoded[frame];
+        }
+
+        public int getRenderedCount() {
+            return renderedCount.get();
+        }
+
+        public int getEncodedCount() {
+            return encodedCount.get();
+        }
+
+        public boolean isDone() {
+            for (FutureTask<String> f : encoded)
+                if (!f.isDone())
+                    return false;
+            return true;
+        }
+
+        /**
+         * Blocks until every frame is rendered. Encoding may still be in progress.
+         *
+         * @throws ExecutionException If any frame failed to render
+         * @throws InterruptedException If interrupted while waiting
+         */
+        public void awaitRendered() throws ExecutionException, InterruptedException {
+            for (FutureTask<Void> f : rendered)
+                f.get();
+        }
+
+        /**
+         * Blocks until every frame is encoded.
+         *
+         * @return Result of each frame's encoder, in frame order
+         * @throws ExecutionException If any frame failed to render or encode
+         * @throws InterruptedException If interrupted while waiting
+         */
+        public String[] awaitEncoded() throws ExecutionException, InterruptedException {
+            String[] results = new String[encoded.length];
+            for (int i = 0; i < encoded.length; i++)
+                results[i] = encoded[i].get();
+            return results;
+        }
+
+        /**
+         * Cancels every frame that has not started yet.
+         */
+        public void cancel() {
+            for (int i = 0; i < rendered.length; i++) {
+                rendered[i].cancel(false);
+                encoded[i].cancel(false);
+            }
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
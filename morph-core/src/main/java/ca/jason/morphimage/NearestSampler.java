@@ -0,0 +1,17 @@
+package ca.jason.morphimage;
+
+/**
+ * Samples the pixel nearest to a coordinate.
+ */
+
+public class NearestSampler extends PaddedSampler {
+    private static final int HALF = ONE / 2;
+
+    public NearestSampler(PixelImage image) {
+        super(image, 0, 0);
+    }
+
+    public int sample(int fx, int fy) {
+        return padded[index((fx + HALF) >> FRACTION_BITS, (fy + HALF) >> FRACTION_BITS)];
+    }
+}
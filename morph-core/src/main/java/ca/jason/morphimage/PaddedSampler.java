@@ -0,0 +1,61 @@
+package ca.jason.morphimage;
+
+/**
+ * Base of samplers that read from a copy of the image with its edge pixels repeated into a border.
+ * The integer part of a coordinate is clamped once, with min and max rather than branches, to a
+ * range where every tap of the kernel lands in the border or the image. Taps themselves never
+ * need clamping, and a coordinate clamped from far outside reads only edge pixels.
+ */
+
+abstract class PaddedSampler implements Sampler {
+    protected final int[] padded;
+    protected final int stride;
+    private final int width, height;
+    private final int pad, minX, maxX, minY, maxY;
+
+    /**
+     * @param image Image to copy
+     * @param lo Offset of the kernel's first tap from the base pixel (zero or negative)
+     * @param hi Offset of the kernel's last tap from the base pixel (zero or positive)
+     */
+    protected PaddedSampler(PixelImage image, int lo, int hi) {
+        int w = width = image.width, h = height = image.height;
+        pad = hi - lo;
+        stride = w + pad * 2;
+        if (pad == 0) {
+            padded = image.pixels;
+        } else {
+            padded = new int[stride * (h + pad * 2)];
+            for (int y = 0; y < h + pad * 2; y++) {
+                int sy = Math.min(h - 1, Math.max(0, y - pad)) * w, row = y * stride;
+                for (int x = 0; x < pad; x++) {
+                    padded[row + x] = image.pixels[sy];
+                    padded[row + pad + w + x] = image.pixels[sy + w - 1];
+                }
+                System.arraycopy(image.pixels, sy, padded, row + pad, w);
+            }
+        }
+        // At these bounds every tap already reads an edge pixel, so clamping cannot change a sample
+        minX = -hi;
+        maxX = w - 1 - lo;
+        minY = -hi;
+        maxY = h - 1 - lo;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Index in the padded buffer of the base pixel (ix, iy), clamped so all taps are in range.
+     */
+    protected final int index(int ix, int iy) {
+        ix = Math.min(maxX, Math.max(minX, ix));
+        iy = Math.min(maxY, Math.max(minY, iy));
+        return (iy + pad) * stride + ix + pad;
+    }
+}
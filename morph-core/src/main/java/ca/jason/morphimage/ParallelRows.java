@@ -0,0 +1,104 @@
+package ca.jason.morphimage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits the rows of an image into bands and runs them on a shared pool sized to the number of
+ * cores. The calling thread claims bands as well, so a call made from inside the pool can never
+ * wait on work that nobody is able to pick up.
+ */
+
+public class ParallelRows {
+    public static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "morph-rows-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Work performed on a band of rows.
+     */
+    public interface Rows {
+        /**
+         * @param from First row of the band (inclusive)
+         * @param to Last row of the band (exclusive)
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the given work over rows [0, height) using every core, returning once all rows are done.
+     *
+     * @param height Number of rows
+     * @param rows Work to perform per band
+     */
+    public static void forRows(int height, Rows rows) {
+        forRows(height, 1, rows);
+    }
+
+    /**
+     * Runs the given work over rows [0, height) using every core, with band boundaries aligned to
+     * multiples of the given row step.
+     *
+     * @param height Number of rows
+     * @param step Row alignment of each band
+     * @param rows Work to perform per band
+     */
+    public static void forRows(final int height, int step, final Rows rows) {
+        int units = (height + step - 1) / step;
+        int bands = Math.min(units, THREADS * BANDS_PER_THREAD);
+        if (bands <= 1 || THREADS == 1) {
+            rows.run(0, height);
+            return;
+        }
+        final int bandRows = (units + bands - 1) / bands * step;
+        final int bandCount = (height + bandRows - 1) / bandRows;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(bandCount);
+
+        Runnable worker = new Runnable() {
+            public void run() {
+                int b;
+                while ((b = next.getAndIncrement()) < bandCount) {
+                    try {
+                        if (failure.get() == null)
+                            rows.run(b * bandRows, Math.min(height, (b + 1) * bandRows));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(THREADS, bandCount); i++)
+            pool.execute(worker);
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for rows", e);
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+    }
+}
@@ -0,0 +1,55 @@
+package ca.jason.morphimage;
+
+/**
+ * ARGB pixels of an image, stored row by row without padding.
+ */
+
+public class PixelImage {
+    public final int[] pixels;
+    public final int width, height;
+
+    public PixelImage(int width, int height) {
+        this(new int[width * height], width, height);
+    }
+
+    public PixelImage(int[] pixels, int width, int height) {
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + pixels.length);
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reduces the image by an integer factor, averaging each block of factor x factor pixels.
+     *
+     * @param factor Reduction factor
+     * @return Reduced image, at least 1 x 1
+     */
+    public PixelImage downsample(int factor) {
+        if (factor == 1)
+            return this;
+        int w = Math.max(1, width / factor), h = Math.max(1, height / factor);
+        PixelImage out = new PixelImage(w, h);
+        for (int y = 0; y < h; y++) {
+            int y0 = y * factor, y1 = Math.min(height, y0 + factor);
+            for (int x = 0; x < w; x++) {
+                int x0 = x * factor, x1 = Math.min(width, x0 + factor);
+                int a = 0, r = 0, g = 0, b = 0, n = (x1 - x0) * (y1 - y0);
+                for (int sy = y0; sy < y1; sy++) {
+                    for (int sx = x0; sx < x1; sx++) {
+                        int c = pixels[sy * width + sx];
+                        a += c >>> 24;
+                        r += (c >> 16) & 0xFF;
+                        g += (c >> 8) & 0xFF;
+                        b += c & 0xFF;
+                    }
+                }
+                int half = n / 2;
+                out.pixels[y * w + x] = ((a + half) / n << 24) | ((r + half) / n << 16)
+                        | ((g + half) / n << 8) | ((b + half) / n);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,526 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that compresses on every core. Scanlines are filtered in parallel, then the
+ * filtered data is cut into pieces that are deflated independently, pigz style: each piece is
+ * primed with the last 32 KB of the data before it as a preset dictionary, so matches can still
+ * reach back across the cut, and ends on a sync flush so the raw deflate streams join into one.
+ * Every piece becomes its own IDAT chunk and carries its own checksums; the Adler-32 values of
+ * the pieces are combined for the zlib trailer.
+ *
+ * Images that are fully opaque are written as RGB, others as RGBA.
+ */
+
+public class PngWriter {
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int PIECE_SIZE = 128 * 1024;
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int ADLER_BASE = 65521;
+
+    private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+
+    private final int level;
+
+    /**
+     * @param level Deflate level, from Deflater.NO_COMPRESSION (0) to Deflater.BEST_COMPRESSION (9)
+     */
+    public PngWriter(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Compression level must be 0 to 9: " + level);
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Encodes an image and writes it to a file, replacing any existing file.
+     *
+     * @param image Image to encode
+     * @param file File to write
+     */
+    public void write(PixelImage image, File file) throws IOException {
+        write(image, file, null, -1);
+    }
+
+    /**
+     * Encodes an image and writes it to a file, recording compression as ENCODE and the file
+     * write as WRITE.
+     *
+     * @param image Image to encode
+     * @param file File to write
+     * @param metrics Metrics of the job the image belongs to, or null
+     * @param frame Frame number for metrics
+     */
+    public void write(PixelImage image, File file, MorphMetrics metrics, int frame) throws IOException {
+        if (metrics != null)
+            metrics.begin(frame, MorphMetrics.Stage.ENCODE);
+        long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+        boolean alpha = hasAlpha(image);
+        Stream stream = deflate(image, alpha);
+        if (metrics != null) {
+            metrics.record(frame, MorphMetrics.Stage.ENCODE, startWall, startCpu, 0);
+            metrics.begin(frame, MorphMetrics.Stage.WRITE);
+            startWall = System.nanoTime();
+            startCpu = MorphMetrics.cpuTime();
+        }
+
+        FileOutputStream fo = new FileOutputStream(file);
+        try {
+            ChunkWriter out = new ChunkWriter(fo.getChannel());
+            out.put(SIGNATURE, 0, SIGNATURE.length);
+            out.chunk("IHDR", header(image.width, image.height, alpha), 0, 13);
+            out.chunk("IDAT", zlibHeader(level), 0, 2);
+            for (int i = 0; i < stream.pieces.length; i++)
+                out.chunk("IDAT", stream.pieces[i], 0, stream.lengths[i]);
+            byte[] trailer = new byte[4];
+            putInt(trailer, 0, (int) stream.adler);
+            out.chunk("IDAT", trailer, 0, 4);
+            out.chunk("IEND", new byte[0], 0, 0);
+            out.flush();
+        } finally {
+            fo.close();
+        }
+        if (metrics != null)
+            metrics.record(frame, MorphMetrics.Stage.WRITE, startWall, startCpu, file.length());
+    }
+
+    /**
+     * Compresses an image to a complete zlib stream of filtered scanlines, the contents of a PNG's
+     * image data.
+     *
+     * @param image Image to compress
+     * @param alpha Whether to store RGBA rather than RGB
+     * @return zlib stream
+     */
+    public byte[] compress(PixelImage image, boolean alpha) {
+        Stream stream = deflate(image, alpha);
+        int total = 2 + 4;
+        for (int n : stream.lengths)
+            total += n;
+        byte[] out = new byte[total];
+        System.arraycopy(zlibHeader(level), 0, out, 0, 2);
+        int o = 2;
+        for (int i = 0; i < stream.pieces.length; i++) {
+            System.arraycopy(stream.pieces[i], 0, out, o, stream.lengths[i]);
+            o += stream.lengths[i];
+        }
+        putInt(out, o, (int) stream.adler);
+        return out;
+    }
+
+    /**
+     * Starts a PNG written a band of rows at a time, for images too large to hold whole. Each band
+     * is filtered and deflated in parallel like a whole image; bands continue one deflate stream.
+     *
+     * @param file File to write, replaced if it exists
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param alpha Whether to store RGBA rather than RGB
+     * @return Output taking the rows, which must be closed
+     */
+    public Output open(File file, int width, int height, boolean alpha) throws IOException {
+        return new Output(file, width, height, alpha);
+    }
+
+    /**
+     * Rows of an image being streamed to a file, top to bottom.
+     */
+    public class Output implements TiledMorph.BandSink {
+        private final FileOutputStream fo;
+        private final ChunkWriter out;
+        private final int width, height;
+        private final boolean alpha;
+        private byte[] above, history = new byte[0];
+        private long adler = 1;
+        private int rows;
+        private MorphMetrics metrics;
+        private int frame;
+
+        private Output(File file, int width, int height, boolean alpha) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            fo = new FileOutputStream(file);
+            out = new ChunkWriter(fo.getChannel());
+            try {
+                out.put(SIGNATURE, 0, SIGNATURE.length);
+                out.chunk("IHDR", header(width, height, alpha), 0, 13);
+                out.chunk("IDAT", zlibHeader(level), 0, 2);
+            } catch (IOException e) {
+                fo.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Records compressing each band as ENCODE, along with writing out its chunks, and finishing
+         * the file as WRITE with the file's size.
+         *
+         * @param metrics Metrics of the job the image belongs to, or null
+         * @param frame Frame number for metrics
+         */
+        public void setMetrics(MorphMetrics metrics, int frame) {
+            this.metrics = metrics;
+            this.frame = frame;
+        }
+
+        /**
+         * Appends the next rows of the image.
+         *
+         * @param band Rows as wide as the image
+         */
+        public void writeRows(PixelImage band) throws IOException {
+            if (band.width != width || rows + band.height > height)
+                throw new IllegalArgumentException("Band of " + band.width + "x" + band.height + " doesn't fit "
+                        + width + "x" + height + " after " + rows + " rows");
+            MorphMetrics m = metrics;
+            if (m != null)
+                m.begin(frame, MorphMetrics.Stage.ENCODE);
+            long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+            byte[] filtered = filter(band, alpha, above);
+            Stream stream = deflate(filtered, history, false);
+            for (int i = 0; i < stream.pieces.length; i++)
+                out.chunk("IDAT", stream.pieces[i], 0, stream.lengths[i]);
+            adler = combineAdler(adler, stream.adler, filtered.length);
+            rows += band.height;
+
+            // Keep what the next band needs: the last row and the end of the data for its dictionary
+            above = new byte[width * (alpha ? 4 : 3)];
+            unpack(band.pixels, band.height - 1, width, alpha, above);
+            int keep = Math.min(DICTIONARY_SIZE, history.length + filtered.length);
+            byte[] tail = new byte[keep];
+            int fromFiltered = Math.min(keep, filtered.length);
+            System.arraycopy(history, history.length - (keep - fromFiltered), tail, 0, keep - fromFiltered);
+            System.arraycopy(filtered, filtered.length - fromFiltered, tail, keep - fromFiltered, fromFiltered);
+            history = tail;
+            if (m != null)
+                m.record(frame, MorphMetrics.Stage.ENCODE, startWall, startCpu, 0);
+        }
+
+        /**
+         * Ends the deflate stream and the file. Every row must have been written.
+         */
+        public void close() throws IOException {
+            MorphMetrics m = metrics;
+            if (m != null)
+                m.begin(frame, MorphMetrics.Stage.WRITE);
+            long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+            try {
+                if (rows != height)
+                    throw new IOException("Image has " + height + " rows, " + rows + " written");
+                Stream end = deflate(new byte[0], null, true);
+                out.chunk("IDAT", end.pieces[0], 0, end.lengths[0]);
+                byte[] trailer = new byte[4];
+                putInt(trailer, 0, (int) adler);
+                out.chunk("IDAT", trailer, 0, 4);
+                out.chunk("IEND", new byte[0], 0, 0);
+                out.flush();
+                if (m != null)
+                    m.record(frame, MorphMetrics.Stage.WRITE, startWall, startCpu, fo.getChannel().position());
+            } finally {
+                fo.close();
+            }
+        }
+    }
+
+    /**
+     * Body of an IHDR chunk for 8-bit RGB or RGBA.
+     */
+    static byte[] header(int width, int height, boolean alpha) {
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (alpha ? 6 : 2);
+        return header;
+    }
+
+    /**
+     * Filtered and deflated pieces of an image, without the zlib header and trailer.
+     */
+    private static class Stream {
+        byte[][] pieces;
+        int[] lengths;
+        long adler;
+    }
+
+    private Stream deflate(PixelImage image, boolean alpha) {
+        return deflate(filter(image, alpha, null), null, true);
+    }
+
+    /**
+     * Filters every scanline of an image; each row only needs the unfiltered row above it.
+     *
+     * @param above Unfiltered row above the image when it continues earlier rows, or null
+     * @return Filter type and filtered bytes of every row
+     */
+    private static byte[] filter(PixelImage image, final boolean alpha, final byte[] above) {
+        final int width = image.width;
+        final int bpp = alpha ? 4 : 3, stride = width * bpp + 1;
+        final byte[] filtered = new byte[stride * image.height];
+        final int[] pixels = image.pixels;
+        ParallelRows.forRows(image.height, new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                byte[] prev = new byte[width * bpp], cur = new byte[width * bpp];
+                if (from > 0)
+                    unpack(pixels, from - 1, width, alpha, prev);
+                else if (above != null)
+                    System.arraycopy(above, 0, prev, 0, prev.length);
+                for (int y = from; y < to; y++) {
+                    unpack(pixels, y, width, alpha, cur);
+                    filter(cur, y > 0 || above != null ? prev : null, bpp, filtered, y * stride);
+                    byte[] t = prev;
+                    prev = cur;
+                    cur = t;
+                }
+            }
+        });
+        return filtered;
+    }
+
+    /**
+     * Deflates filtered data in pieces in parallel, each primed with the data before it.
+     *
+     * @param filtered Data to deflate
+     * @param history Data deflated earlier in the same stream, or null at its start
+     * @param finish Whether the data ends the stream
+     */
+    private Stream deflate(final byte[] filtered, final byte[] history, final boolean finish) {
+        final int pieces = Math.max(1, (filtered.length + PIECE_SIZE - 1) / PIECE_SIZE);
+        final Stream stream = new Stream();
+        stream.pieces = new byte[pieces][];
+        stream.lengths = new int[pieces];
+        final long[] adlers = new long[pieces];
+        ParallelRows.forRows(pieces, new ParallelRows.Rows() {
+            public void run(int from, int to) {
+                Deflater deflater = new Deflater(level, true);
+                Adler32 adler = new Adler32();
+                for (int i = from; i < to; i++) {
+                    int start = i * PIECE_SIZE, end = Math.min(filtered.length, start + PIECE_SIZE);
+                    deflater.reset();
+                    if (start > 0) {
+                        int dict = Math.min(DICTIONARY_SIZE, start);
+                        deflater.setDictionary(filtered, start - dict, dict);
+                    } else if (history != null && history.length > 0) {
+                        int dict = Math.min(DICTIONARY_SIZE, history.length);
+                        deflater.setDictionary(history, history.length - dict, dict);
+                    }
+                    stream.pieces[i] = deflate(deflater, filtered, start, end, finish && i == pieces - 1,
+                            stream.lengths, i);
+                    adler.reset();
+                    adler.update(filtered, start, end - start);
+                    adlers[i] = adler.getValue();
+                }
+                deflater.end();
+            }
+        });
+
+        stream.adler = adlers[0];
+        for (int i = 1; i < pieces; i++) {
+            int start = i * PIECE_SIZE, len = Math.min(filtered.length, start + PIECE_SIZE) - start;
+            stream.adler = combineAdler(stream.adler, adlers[i], len);
+        }
+        return stream;
+    }
+
+    /**
+     * Deflates one piece. All but the last piece end on a sync flush, leaving the stream byte
+     * aligned and open for the next piece; the last one finishes the stream.
+     *
+     * @return Compressed bytes, of which lengths[index] are used
+     */
+    private static byte[] deflate(Deflater deflater, byte[] data, int start, int end, boolean last,
+                                  int[] lengths, int index) {
+        byte[] out = new byte[Math.max(64, (end - start) / 2)];
+        int n = 0;
+        deflater.setInput(data, start, end - start);
+        if (last)
+            deflater.finish();
+        while (true) {
+            if (n == out.length) {
+                byte[] grown = new byte[out.length * 2];
+                System.arraycopy(out, 0, grown, 0, n);
+                out = grown;
+            }
+            n += deflater.deflate(out, n, out.length - n, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            // A flush that leaves output space unused has written everything
+            if (last ? deflater.finished() : n < out.length)
+                break;
+        }
+        lengths[index] = n;
+        return out;
+    }
+
+    private static boolean hasAlpha(PixelImage image) {
+        int n = image.width * image.height;
+        for (int i = 0; i < n; i++)
+            if ((image.pixels[i] >>> 24) != 0xFF)
+                return true;
+        return false;
+    }
+
+    /**
+     * Converts one row of ARGB pixels to PNG byte order (RGB or RGBA).
+     */
+    private static void unpack(int[] pixels, int y, int width, boolean alpha, byte[] row) {
+        int p = y * width, o = 0;
+        for (int x = 0; x < width; x++) {
+            int c = pixels[p + x];
+            row[o++] = (byte) (c >> 16);
+            row[o++] = (byte) (c >> 8);
+            row[o++] = (byte) c;
+            if (alpha)
+                row[o++] = (byte) (c >>> 24);
+        }
+    }
+
+    /**
+     * Filters a row with each PNG filter and keeps the one with the smallest sum of absolute
+     * signed residuals, the usual heuristic for photographic content.
+     *
+     * @param cur Row to filter
+     * @param prev Row above, or null for the first row
+     * @param bpp Bytes per pixel
+     * @param out Receives the filter type byte followed by the filtered row
+     * @param offset Position of the row in out
+     */
+    private static void filter(byte[] cur, byte[] prev, int bpp, byte[] out, int offset) {
+        int n = cur.length, best = FILTER_NONE;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            if (prev == null && (type == FILTER_UP || type == FILTER_PAETH))
+                continue;
+            long sum = 0;
+            for (int i = 0; i < n && sum < bestSum; i++)
+                sum += Math.abs((byte) residual(type, cur, prev, bpp, i));
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        out[offset] = (byte) best;
+        for (int i = 0; i < n; i++)
+            out[offset + 1 + i] = (byte) residual(best, cur, prev, bpp, i);
+    }
+
+    private static int residual(int type, byte[] cur, byte[] prev, int bpp, int i) {
+        int x = cur[i] & 0xFF;
+        int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+        int b = prev != null ? prev[i] & 0xFF : 0;
+        switch (type) {
+            case FILTER_SUB:
+                return x - a;
+            case FILTER_UP:
+                return x - b;
+            case FILTER_AVERAGE:
+                return x - ((a + b) >> 1);
+            case FILTER_PAETH:
+                int c = i >= bpp && prev != null ? prev[i - bpp] & 0xFF : 0;
+                int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                return x - (pa <= pb && pa <= pc ? a : (pb <= pc ? b : c));
+            default:
+                return x;
+        }
+    }
+
+    /**
+     * Adler-32 of two concatenated blocks from the checksums of each, as zlib's adler32_combine.
+     *
+     * @param adler1 Checksum of the first block
+     * @param adler2 Checksum of the second block
+     * @param len2 Length of the second block
+     * @return Checksum of both blocks
+     */
+    static long combineAdler(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= ADLER_BASE * 2)
+            sum2 -= ADLER_BASE * 2;
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * zlib stream header for deflate with a 32 KB window and the level hint matching the level.
+     */
+    private static byte[] zlibHeader(int level) {
+        int hint = level <= 1 ? 0 : (level <= 5 ? 1 : (level == 6 ? 2 : 3));
+        int header = (0x78 << 8) | (hint << 6);
+        header += 31 - header % 31;
+        return new byte[]{(byte) (header >> 8), (byte) header};
+    }
+
+    static void putInt(byte[] b, int o, int v) {
+        b[o] = (byte) (v >>> 24);
+        b[o + 1] = (byte) (v >>> 16);
+        b[o + 2] = (byte) (v >>> 8);
+        b[o + 3] = (byte) v;
+    }
+
+    /**
+     * Writes PNG chunks, each followed by its CRC.
+     */
+    static class ChunkWriter extends ChannelWriter {
+        private final CRC32 crc = new CRC32();
+
+        ChunkWriter(FileChannel channel) {
+            super(channel);
+        }
+
+        void chunk(String type, byte[] data, int offset, int length) throws IOException {
+            byte[] head = head(type, length), tail = tail(head, data, offset, length);
+            put(head, 0, 8);
+            put(data, offset, length);
+            put(tail, 0, 4);
+        }
+
+        /**
+         * Rewrites a chunk already written with new contents of the same length.
+         *
+         * @param position Offset of the chunk in the file
+         */
+        void patchChunk(long position, String type, byte[] data, int offset, int length) throws IOException {
+            byte[] head = head(type, length), tail = tail(head, data, offset, length);
+            patch(position, head, 0, 8);
+            patch(position + 8, data, offset, length);
+            patch(position + 8 + length, tail, 0, 4);
+        }
+
+        private static byte[] head(String type, int length) {
+            byte[] head = new byte[8];
+            putInt(head, 0, length);
+            for (int i = 0; i < 4; i++)
+                head[4 + i] = (byte) type.charAt(i);
+            return head;
+        }
+
+        private byte[] tail(byte[] head, byte[] data, int offset, int length) {
+            crc.reset();
+            crc.update(head, 4, 4);
+            crc.update(data, offset, length);
+            byte[] tail = new byte[4];
+            putInt(tail, 0, (int) crc.getValue());
+            return tail;
+        }
+    }
+}
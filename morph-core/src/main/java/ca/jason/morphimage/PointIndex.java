@@ -0,0 +1,187 @@
+package ca.jason.morphimage;
+
+/**
+ * Uniform grid of the line endpoints drawn on a view, for finding the point closest to a touch.
+ * Point i * 2 + j is endpoint j of line i. Points are bucketed by the cell they fall in, clamped to
+ * the grid, and kept up to date as they move, so a query only visits cells near the touch and
+ * allocates nothing.
+ */
+
+public class PointIndex {
+    public static final int DEFAULT_CELL_SIZE = 32;
+
+    private final int cellSize;
+    private int cellsX = 1, cellsY = 1;
+    private int[][] cells;
+    private int[] counts;
+    private int[] xs = new int[16], ys = new int[16];
+    private int size;
+
+    /**
+     * @param cellSize Width and height of each grid cell in pixels
+     */
+    public PointIndex(int cellSize) {
+        this.cellSize = cellSize;
+        cells = new int[1][];
+        counts = new int[1];
+    }
+
+    /**
+     * @return Number of points in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sizes the grid to cover an area, re-bucketing every point. Points outside it still count,
+     * they are kept in the nearest border cell.
+     *
+     * @param width Width of the area in pixels
+     * @param height Height of the area in pixels
+     */
+    public void resize(int width, int height) {
+        cellsX = Math.max(1, (width + cellSize - 1) / cellSize);
+        cellsY = Math.max(1, (height + cellSize - 1) / cellSize);
+        cells = new int[cellsX * cellsY][];
+        counts = new int[cellsX * cellsY];
+        for (int i = 0; i < size; i++)
+            insert(cellOf(xs[i], ys[i]), i);
+    }
+
+    /**
+     * Adds both endpoints of a new last line.
+     */
+    public void addLine(int x0, int y0, int x1, int y1) {
+        if (size + 2 > xs.length) {
+            int[] x = new int[xs.length * 2], y = new int[ys.length * 2];
+            System.arraycopy(xs, 0, x, 0, size);
+            System.arraycopy(ys, 0, y, 0, size);
+            xs = x;
+            ys = y;
+        }
+        add(x0, y0);
+        add(x1, y1);
+    }
+
+    private void add(int x, int y) {
+        xs[size] = x;
+        ys[size] = y;
+        insert(cellOf(x, y), size++);
+    }
+
+    /**
+     * Moves one point, changing its cell only if it crosses into another.
+     *
+     * @param point Point number, line * 2 + endpoint
+     */
+    public void move(int point, int x, int y) {
+        int from = cellOf(xs[point], ys[point]), to = cellOf(x, y);
+        xs[point] = x;
+        ys[point] = y;
+        if (from != to) {
+            remove(from, point);
+            insert(to, point);
+        }
+    }
+
+    /**
+     * Removes both endpoints of a line. Points of the lines after it are renumbered down, as the
+     * lines themselves are.
+     */
+    public void removeLine(int line) {
+        int p = line * 2;
+        remove(cellOf(xs[p], ys[p]), p);
+        remove(cellOf(xs[p + 1], ys[p + 1]), p + 1);
+        System.arraycopy(xs, p + 2, xs, p, size - p - 2);
+        System.arraycopy(ys, p + 2, ys, p, size - p - 2);
+        size -= 2;
+        for (int c = 0; c < counts.length; c++) {
+            int[] cell = cells[c];
+            for (int i = 0; i < counts[c]; i++)
+                if (cell[i] > p)
+                    cell[i] -= 2;
+        }
+    }
+
+    /**
+     * Removes every point.
+     */
+    public void clear() {
+        size = 0;
+        for (int c = 0; c < counts.length; c++)
+            counts[c] = 0;
+    }
+
+    /**
+     * Finds the point closest to a position. Cells are searched in rings around the position's
+     * cell until no closer point can lie further out; ties go to the lowest point number.
+     *
+     * @return Point number, line * 2 + endpoint, or -1 if the index is empty
+     */
+    public int closest(int x, int y) {
+        if (size == 0)
+            return -1;
+        int cx = clamp(x / cellSize, cellsX), cy = clamp(y / cellSize, cellsY);
+        int maxRing = Math.max(Math.max(cx, cellsX - 1 - cx), Math.max(cy, cellsY - 1 - cy));
+        int best = -1;
+        long bestD = Long.MAX_VALUE;
+        for (int r = 0; r <= maxRing; r++) {
+            // Anything in ring r is at least (r - 1) cells away, clamping only brings cells closer
+            long reach = (long) (r - 1) * cellSize;
+            if (r > 1 && reach * reach > bestD)
+                break;
+            for (int gy = cy - r; gy <= cy + r; gy++) {
+                if (gy < 0 || gy >= cellsY)
+                    continue;
+                boolean edge = gy == cy - r || gy == cy + r;
+                int step = edge ? 1 : 2 * r;
+                for (int gx = cx - r; gx <= cx + r; gx += step) {
+                    if (gx < 0 || gx >= cellsX)
+                        continue;
+                    int c = gy * cellsX + gx;
+                    int[] cell = cells[c];
+                    for (int i = 0; i < counts[c]; i++) {
+                        int p = cell[i];
+                        long dx = xs[p] - x, dy = ys[p] - y, d = dx * dx + dy * dy;
+                        if (d < bestD || d == bestD && p < best) {
+                            bestD = d;
+                            best = p;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int cellOf(int x, int y) {
+        return clamp(y / cellSize, cellsY) * cellsX + clamp(x / cellSize, cellsX);
+    }
+
+    private static int clamp(int v, int n) {
+        return v < 0 ? 0 : v >= n ? n - 1 : v;
+    }
+
+    private void insert(int c, int point) {
+        int[] cell = cells[c];
+        if (cell == null)
+            cell = cells[c] = new int[4];
+        else if (counts[c] == cell.length) {
+            int[] grown = new int[cell.length * 2];
+            System.arraycopy(cell, 0, grown, 0, cell.length);
+            cell = cells[c] = grown;
+        }
+        cell[counts[c]++] = point;
+    }
+
+    private void remove(int c, int point) {
+        int[] cell = cells[c];
+        for (int i = 0; i < counts[c]; i++) {
+            if (cell[i] == point) {
+                cell[i] = cell[--counts[c]];
+                return;
+            }
+        }
+    }
+}
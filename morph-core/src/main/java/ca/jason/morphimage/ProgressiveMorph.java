@@ -0,0 +1,166 @@
+package ca.jason.morphimage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders every frame of a morph at 1/8 scale first, then refines all of them at 1/4, 1/2 and full
+ * scale on a background thread. Listeners are told each time a frame improves, so a display can
+ * show the coarse sequence almost immediately and swap in sharper frames as they arrive.
+ *
+ * Running morphs are registered by ID so an activity started with that ID can attach to them.
+ * A morph stays registered while it refines and while any holder is attached, and is forgotten
+ * once both are over, so its frames and images can be collected.
+ */
+
+public class ProgressiveMorph {
+    public static final int[] SCALES = {8, 4, 2, 1};
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final Map<Integer, ProgressiveMorph> running = new HashMap<>();
+
+    private final int id, frames;
+    private final MorphRenderer renderer;
+    private final PixelImage[] images;
+    private final int[] imageScales;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+    // Guarded by running
+    private int holders;
+    private boolean finished;
+
+    /**
+     * Notified from the render thread whenever a frame is replaced by a sharper version.
+     */
+    public interface Listener {
+        void onFrameUpdated(ProgressiveMorph morph, int frame, PixelImage image, int scale);
+    }
+
+    /**
+     * @param renderer Full-size renderer for the morph
+     * @param frames Number of intermediate frames
+     */
+    public ProgressiveMorph(MorphRenderer renderer, int frames) {
+        this.id = nextId.incrementAndGet();
+        this.renderer = renderer;
+        this.frames = frames;
+        images = new PixelImage[frames + 2];
+        imageScales = new int[frames + 2];
+    }
+
+    /**
+     * @return The morph registered under an ID, or null if it is not running or held
+     */
+    public static ProgressiveMorph find(int id) {
+        synchronized (running) {
+            return running.get(id);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Number of frames including both end images
+     */
+    public int getFrameCount() {
+        return frames + 2;
+    }
+
+    /**
+     * Latest version of a frame, or null if none has been rendered yet.
+     */
+    public synchronized PixelImage getFrame(int frame) {
+        return images[frame];
+    }
+
+    /**
+     * Scale of the latest version of a frame, or 0 if none has been rendered yet.
+     */
+    public synchronized int getFrameScale(int frame) {
+        return imageScales[frame];
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Keeps the morph registered after refinement ends, until release() is called. Attach before
+     * start() when another component will find the morph by ID, since a short morph can finish
+     * before it looks; the hold can then be passed on to that component to release.
+     */
+    public void attach() {
+        synchronized (running) {
+            holders++;
+        }
+    }
+
+    /**
+     * Detaches a holder, forgetting the morph if it has finished and no other holder is left.
+     */
+    public void release() {
+        synchronized (running) {
+            if (holders > 0)
+                holders--;
+            if (holders == 0 && finished)
+                running.remove(id);
+        }
+    }
+
+    /**
+     * Registers the morph and starts rendering on a background thread.
+     */
+    public void start() {
+        synchronized (running) {
+            running.put(id, this);
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int scale : SCALES) {
+                        MorphRenderer level = renderer.scaled(scale);
+                        for (int frame = 0; frame < frames + 2 && !cancelled; frame++) {
+                            PixelImage image = level.render(frame, frames);
+                            synchronized (ProgressiveMorph.this) {
+                                images[frame] = image;
+                                imageScales[frame] = scale;
+                            }
+                            for (Listener l : listeners)
+                                l.onFrameUpdated(ProgressiveMorph.this, frame, image, scale);
+                        }
+                    }
+                } finally {
+                    synchronized (running) {
+                        finished = true;
+                        if (cancelled || holders == 0)
+                            running.remove(id);
+                    }
+                }
+            }
+        }, "morph-progressive-" + id);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops refining and forgets the morph. Frames already rendered stay available to holders.
+     */
+    public void cancel() {
+        cancelled = true;
+        unregister();
+    }
+
+    private void unregister() {
+        synchronized (running) {
+            running.remove(id);
+        }
+    }
+}
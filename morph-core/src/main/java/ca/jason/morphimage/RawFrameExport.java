@@ -0,0 +1,73 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the frames of a morph into a raw frame store, for playback without decoding.
+ */
+
+public class RawFrameExport implements MorphScheduler.FrameEncoder {
+    private final RawFrameStore store;
+    private final AtomicInteger written = new AtomicInteger();
+    private MorphMetrics metrics;
+
+    /**
+     * @param file File to write
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @param frames Number of frames
+     */
+    public RawFrameExport(File file, int width, int height, int frames) throws IOException {
+        store = RawFrameStore.create(file, width, height, frames);
+    }
+
+    /**
+     * Records copying each frame into the store as WRITE.
+     *
+     * @param metrics Metrics of the job, or null
+     */
+    public void setMetrics(MorphMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Path of the store, the same for every frame
+     */
+    public String encode(int frame, PixelImage image) throws IOException {
+        // Frames served from the result cache have no pixels and leave their slot empty
+        if (image != null) {
+            if (metrics != null)
+                metrics.begin(frame, MorphMetrics.Stage.WRITE);
+            long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+            store.write(frame, image);
+            written.incrementAndGet();
+            if (metrics != null)
+                metrics.record(frame, MorphMetrics.Stage.WRITE, startWall, startCpu, image.width * image.height * 4L);
+        }
+        return store.getFile().getAbsolutePath();
+    }
+
+    /**
+     * @return Whether every slot has been written
+     */
+    public boolean isComplete() {
+        return written.get() == store.getFrameCount();
+    }
+
+    public File getFile() {
+        return store.getFile();
+    }
+
+    /**
+     * Closes the store. Safe to call more than once.
+     */
+    public void close() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Couldn't close file: " + store.getFile().getAbsolutePath());
+        }
+    }
+}
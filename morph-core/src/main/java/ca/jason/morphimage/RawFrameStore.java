@@ -0,0 +1,190 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Uncompressed frames in one file: a 32 byte header followed by a fixed-size slot per frame.
+ * Frames are stored in the memory layout of an ARGB_8888 bitmap, premultiplied RGBA bytes, so a
+ * display copies a mapped slot straight into a bitmap without decoding anything.
+ *
+ * Slots are written with positional writes, so frames may arrive in any order and from several
+ * threads at once. Reading maps each slot the first time it is asked for.
+ */
+
+public class RawFrameStore {
+    public static final String EXTENSION = ".raw";
+    public static final int HEADER_SIZE = 32;
+
+    private static final int MAGIC = 0x4D524157; // "MRAW"
+    private static final int VERSION = 1;
+
+    private final File path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int width, height, frames;
+    private final MappedByteBuffer[] slots;
+
+    private RawFrameStore(File path, RandomAccessFile file, int width, int height, int frames) {
+        this.path = path;
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        channel = file.getChannel();
+        slots = new MappedByteBuffer[frames];
+    }
+
+    /**
+     * Creates a store with room for every frame, replacing any existing file.
+     *
+     * @param f File to write
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @param frames Number of frame slots
+     */
+    public static RawFrameStore create(File f, int width, int height, int frames) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        RawFrameStore store = new RawFrameStore(f, file, width, height, frames);
+        try {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) frames * store.getFrameBytes());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(frames);
+            header.flip();
+            store.write(header, 0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Opens an existing store for reading.
+     */
+    public static RawFrameStore open(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            file.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a raw frame store: " + f.getAbsolutePath());
+            int width = header.getInt(), height = header.getInt(), frames = header.getInt();
+            RawFrameStore store = new RawFrameStore(f, file, width, height, frames);
+            if (file.length() < HEADER_SIZE + (long) frames * store.getFrameBytes())
+                throw new IOException("Raw frame store is truncated: " + f.getAbsolutePath());
+            return store;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return path;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return Size of one frame slot in bytes
+     */
+    public int getFrameBytes() {
+        return width * height * 4;
+    }
+
+    /**
+     * Stores a frame in its slot. Safe to call from several threads at once.
+     *
+     * @param frame Index of the frame
+     * @param image Frame of the store's size
+     */
+    public void write(int frame, PixelImage image) throws IOException {
+        if (image.width != width || image.height != height)
+            throw new IllegalArgumentException("Frame is " + image.width + "x" + image.height
+                    + ", store is " + width + "x" + height);
+        byte[] bytes = new byte[getFrameBytes()];
+        int[] px = image.pixels;
+        for (int i = 0, o = 0; i < px.length; i++, o += 4) {
+            int c = px[i], a = c >>> 24;
+            int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
+            if (a != 0xFF) {
+                r = (r * a + 127) / 255;
+                g = (g * a + 127) / 255;
+                b = (b * a + 127) / 255;
+            }
+            bytes[o] = (byte) r;
+            bytes[o + 1] = (byte) g;
+            bytes[o + 2] = (byte) b;
+            bytes[o + 3] = (byte) a;
+        }
+        write(ByteBuffer.wrap(bytes), offset(frame));
+    }
+
+    /**
+     * Maps a frame for reading, in the layout Bitmap.copyPixelsFromBuffer expects.
+     *
+     * @param frame Index of the frame
+     * @return Buffer positioned at the start of the frame, independent of other callers
+     */
+    public ByteBuffer frame(int frame) throws IOException {
+        MappedByteBuffer slot;
+        synchronized (slots) {
+            slot = slots[frame];
+            if (slot == null)
+                slot = slots[frame] = channel.map(FileChannel.MapMode.READ_ONLY, offset(frame), getFrameBytes());
+        }
+        return slot.duplicate();
+    }
+
+    /**
+     * Reads a frame back as ARGB pixels. Colours of translucent pixels are rounded by the
+     * premultiplication.
+     */
+    public PixelImage read(int frame) throws IOException {
+        ByteBuffer buf = frame(frame);
+        PixelImage image = new PixelImage(width, height);
+        int[] px = image.pixels;
+        for (int i = 0; i < px.length; i++) {
+            int r = buf.get() & 0xFF, g = buf.get() & 0xFF, b = buf.get() & 0xFF, a = buf.get() & 0xFF;
+            if (a != 0xFF && a != 0) {
+                r = Math.min(255, (r * 255 + a / 2) / a);
+                g = Math.min(255, (g * 255 + a / 2) / a);
+                b = Math.min(255, (b * 255 + a / 2) / a);
+            }
+            px[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+        return image;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long offset(int frame) {
+        if (frame < 0 || frame >= frames)
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + frames);
+        return HEADER_SIZE + (long) frame * getFrameBytes();
+    }
+
+    private void write(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+    }
+}
@@ -0,0 +1,166 @@
+package ca.jason.morphimage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store of encoded frames on disk. Each frame is saved under a key derived from
+ * everything that produced it, so a repeated morph finds its frames by hashing the inputs alone.
+ * The total size of the store is capped, evicting the files accessed longest ago first.
+ *
+ * Access times are taken from the file's modification time, which is touched on every hit. Some
+ * storage does not allow setting it, so times of this session's accesses are also kept in memory.
+ */
+
+public class ResultCache {
+    public static final String DIRECTORY = "cache";
+    public static final String EXTENSION = ".png";
+    public static final long DEFAULT_BUDGET = 256L << 20;
+
+    private final File dir;
+    private final long budget;
+    private final Map<String, Long> accessed = new HashMap<>();
+    private long lastTouch;
+
+    /**
+     * @param dir Directory holding the cached files, created if missing
+     * @param budget Largest total size of cached files in bytes
+     */
+    public ResultCache(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+        if (!dir.exists() && !dir.mkdirs())
+            System.out.println("Couldn't create cache directory: " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Finds a cached file and marks it as just used.
+     *
+     * @param key Key of the frame
+     * @return Cached file, or null if the key is not present
+     */
+    public synchronized File lookup(String key) {
+        return lookup(key, EXTENSION);
+    }
+
+    /**
+     * Finds a cached file of another type and marks it as just used.
+     *
+     * @param key Key of the file
+     * @param extension File name extension, including the dot
+     * @return Cached file, or null if the key is not present
+     */
+    public synchronized File lookup(String key, String extension) {
+        File f = file(key, extension);
+        if (!f.isFile())
+            return null;
+        touch(f);
+        return f;
+    }
+
+    /**
+     * Moves a freshly written file into the cache under the given key and trims the cache to
+     * its budget.
+     *
+     * @param key Key of the frame
+     * @param written File to take over
+     * @return The cached file, or the written file if it could not be moved
+     */
+    public synchronized File store(String key, File written) {
+        return store(key, EXTENSION, written);
+    }
+
+    /**
+     * Moves a freshly written file of another type into the cache. A file larger than the whole
+     * budget is left where it is, since keeping it would evict every other entry and then itself.
+     *
+     * @param key Key of the file
+     * @param extension File name extension, including the dot
+     * @param written File to take over
+     * @return The cached file, or the written file if it could not be moved or is over budget
+     */
+    public synchronized File store(String key, String extension, File written) {
+        if (written.length() > budget)
+            return written;
+        File f = file(key, extension);
+        if (f.exists())
+            f.delete();
+        if (!written.renameTo(f)) {
+            System.out.println("Couldn't cache file: " + written.getAbsolutePath());
+            return written;
+        }
+        touch(f);
+        trim();
+        return f;
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits its budget.
+     */
+    public synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f : files)
+            total += f.length();
+        if (total <= budget)
+            return;
+
+        final Map<File, Long> times = new HashMap<>();
+        for (File f : files)
+            times.put(f, lastAccess(f));
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = times.get(a), tb = times.get(b);
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > budget; i++) {
+            long size = files[i].length();
+            if (files[i].delete()) {
+                total -= size;
+                accessed.remove(files[i].getName());
+            }
+        }
+    }
+
+    /**
+     * @return Total size of the cached files in bytes
+     */
+    public synchronized long getBytes() {
+        File[] files = dir.listFiles();
+        long total = 0;
+        if (files != null)
+            for (File f : files)
+                total += f.length();
+        return total;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    private File file(String key, String extension) {
+        return new File(dir, key + extension);
+    }
+
+    private void touch(File f) {
+        // Strictly increasing, so accesses within the same millisecond keep their order
+        long now = lastTouch = Math.max(System.currentTimeMillis(), lastTouch + 1);
+        f.setLastModified(now);
+        accessed.put(f.getName(), now);
+    }
+
+    private long lastAccess(File f) {
+        Long t = accessed.get(f.getName());
+        return t == null ? f.lastModified() : Math.max(t, f.lastModified());
+    }
+}
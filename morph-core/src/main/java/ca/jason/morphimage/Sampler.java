@@ -0,0 +1,51 @@
+package ca.jason.morphimage;
+
+/**
+ * Reads an image at fractional coordinates. Coordinates are 24.8 fixed-point integers and may lie
+ * anywhere, including far outside the image; edges extend outwards. Samplers never change the
+ * image they read, so one may be shared by any number of threads and frames.
+ */
+
+public interface Sampler {
+    int FRACTION_BITS = 8;
+    int ONE = 1 << FRACTION_BITS;
+
+    /**
+     * @param fx Source x in 24.8 fixed point
+     * @param fy Source y in 24.8 fixed point
+     * @return ARGB colour at (fx, fy)
+     */
+    int sample(int fx, int fy);
+
+    /**
+     * @return Width of the image read
+     */
+    int getWidth();
+
+    /**
+     * @return Height of the image read
+     */
+    int getHeight();
+
+    /**
+     * Available resampling kernels, from fastest to smoothest.
+     */
+    enum Kind {
+        NEAREST, BILINEAR, BICUBIC;
+
+        /**
+         * @param image Image to read from
+         * @return Sampler of this kind over the image
+         */
+        public Sampler create(PixelImage image) {
+            switch (this) {
+                case BILINEAR:
+                    return new BilinearSampler(image);
+                case BICUBIC:
+                    return new BicubicSampler(image);
+                default:
+                    return new NearestSampler(image);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package ca.jason.morphimage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Renders morph frames at the full resolution of the original photos without holding either
+ * photo in memory. The frame is produced one band of tiles at a time. For each tile the field is
+ * evaluated first, which gives the part of each photo the tile reads from. Only that region is
+ * loaded, so the working set is a band of output plus a few source regions, whatever the size
+ * of the photos. Bands are handed to a sink in order, ready to be streamed to an encoder.
+ *
+ * Lines are given in view coordinates as for MorphRenderer, together with the offset and scale
+ * that map each view onto its photo, and frames are laid out the same way: as large as either
+ * photo, each centred on white.
+ */
+
+public class TiledMorph {
+    public static final int TILE_SIZE = 256;
+    // Largest source region read for one tile; tiles reading more are split
+    public static final int MAX_REGION_PIXELS = 2048 * 2048;
+    private static final int MIN_TILE_SIZE = 64;
+    // Taps of the widest kernel around the base pixel, plus one for rounding
+    private static final int KERNEL_MARGIN = 3;
+
+    private final Source left, right;
+    private final float[] leftLines, rightLines;
+    // Lines mapped onto each photo
+    private final float[] leftPhotoLines, rightPhotoLines;
+    private final float leftX, leftY, leftScale;
+    private final int width, height;
+    private Sampler.Kind sampler = Sampler.Kind.NEAREST;
+    private LineWeight lineWeight = LineWeight.DEFAULT;
+    private boolean linearDissolve;
+    private MorphMetrics metrics;
+
+    /**
+     * Reads rectangles of a photo too large to load whole.
+     */
+    public interface Source {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Reads the rectangle [left, right) x [top, bottom), which lies within the photo. Called from
+         * several threads at once.
+         */
+        PixelImage read(int left, int top, int right, int bottom) throws IOException;
+    }
+
+    /**
+     * Receives a frame band by band, top to bottom.
+     */
+    public interface BandSink {
+        /**
+         * @param band Rows of the frame, as wide as the frame; reused for the next band
+         */
+        void writeRows(PixelImage band) throws IOException;
+    }
+
+    /**
+     * @param left First photo of the morph
+     * @param leftLines Lines on the first photo in view coordinates
+     * @param leftX Horizontal offset of the first photo in view coordinates
+     * @param leftY Vertical offset of the first photo in view coordinates
+     * @param leftScale Photo pixels per view pixel of the first photo
+     * @param right Last photo of the morph
+     * @param rightLines Matching lines on the last photo in view coordinates
+     * @param rightX Horizontal offset of the last photo in view coordinates
+     * @param rightY Vertical offset of the last photo in view coordinates
+     * @param rightScale Photo pixels per view pixel of the last photo
+     */
+    public TiledMorph(Source left, float[] leftLines, float leftX, float leftY, float leftScale,
+                      Source right, float[] rightLines, float rightX, float rightY, float rightScale) {
+        if (leftLines.length != rightLines.length)
+            throw new IllegalArgumentException("Line counts differ: " + leftLines.length / 4
+                    + " != " + rightLines.length / 4);
+        this.left = left;
+        this.right = right;
+        this.leftX = leftX;
+        this.leftY = leftY;
+        this.leftScale = leftScale;
+        this.leftLines = leftLines;
+        this.rightLines = rightLines;
+        leftPhotoLines = toPhoto(leftLines, leftX, leftY, leftScale);
+        rightPhotoLines = toPhoto(rightLines, rightX, rightY, rightScale);
+        width = Math.max(left.getWidth(), right.getWidth());
+        height = Math.max(left.getHeight(), right.getHeight());
+    }
+
+    public void setSampler(Sampler.Kind sampler) {
+        this.sampler = sampler;
+    }
+
+    public void setLineWeight(LineWeight lineWeight) {
+        this.lineWeight = lineWeight;
+    }
+
+    public void setLinearDissolve(boolean linearDissolve) {
+        this.linearDissolve = linearDissolve;
+    }
+
+    /**
+     * Records building each frame's warp as INTERPOLATE, and warping each band as WARP.
+     *
+     * @param metrics Metrics of the job, or null
+     */
+    public void setMetrics(MorphMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Renders one frame of the morph band by band. Frame 0 and frame frames + 1 are the photos
+     * themselves.
+     *
+     * @param frame Frame to render, from 0 to frames + 1
+     * @param frames Number of intermediate frames
+     * @param sink Receives the frame's bands in order
+     */
+    public void render(int frame, int frames, BandSink sink) throws IOException {
+        if (frame == 0 || frame == frames + 1) {
+            copy(frame == 0 ? left : right, sink);
+            return;
+        }
+        float t = (float) frame / (frames + 1);
+        render(MorphRenderer.interpolate(leftLines, rightLines, t), t, frame, sink);
+    }
+
+    /**
+     * Warps both photos onto the given lines and cross-dissolves them, band by band.
+     *
+     * @param midLines Intermediate lines in view coordinates
+     * @param t Weight of the last photo, from 0 to 1
+     * @param sink Receives the frame's bands in order
+     */
+    public void render(float[] midLines, float t, BandSink sink) throws IOException {
+        render(midLines, t, -1, sink);
+    }
+
+    /**
+     * @param frame Frame number for metrics, or -1
+     */
+    private void render(float[] midLines, final float t, int frame, BandSink sink) throws IOException {
+        MorphMetrics m = metrics;
+        if (m != null)
+            m.begin(frame, MorphMetrics.Stage.INTERPOLATE);
+        long startWall = System.nanoTime(), startCpu = MorphMetrics.cpuTime();
+        final int lx = (width - left.getWidth()) / 2, ly = (height - left.getHeight()) / 2;
+        final int rx = (width - right.getWidth()) / 2, ry = (height - right.getHeight()) / 2;
+        // Intermediate lines follow the first photo's mapping, as in MorphRenderer
+        float[] mid = toPhoto(midLines, leftX, leftY, leftScale);
+        LineField dLines = new LineField(mid, -lx, -ly, lineWeight);
+        LineField sLines = new LineField(leftPhotoLines, 0, 0, lineWeight);
+        LineField sLines2 = new LineField(rightPhotoLines, 0, 0, lineWeight);
+        final FieldWarp warp = new FieldWarp(dLines, sLines, sLines2);
+        warp.setIncremental(true);
+        warp.setLineWeight(lineWeight);
+        if (dLines.getNumLines() >= MorphRenderer.CULL_MIN_LINES && lineWeight.b > 0)
+            warp.setCullIndex(new LineCullIndex(dLines, sLines, sLines2, lineWeight, width, height,
+                    LineCullIndex.DEFAULT_TILE_SIZE, MorphRenderer.CULL_EPSILON));
+        final CrossDissolve dissolve = new CrossDissolve(t, linearDissolve);
+        if (m != null)
+            m.record(frame, MorphMetrics.Stage.INTERPOLATE, startWall, startCpu, 0);
+
+        final PixelImage band = new PixelImage(width, TILE_SIZE);
+        final IOException[] failure = new IOException[1];
+        for (int top = 0; top < height; top += TILE_SIZE) {
+            final int y0 = top, y1 = Math.min(height, top + TILE_SIZE);
+            final int tiles = (width + TILE_SIZE - 1) / TILE_SIZE;
+            if (m != null)
+                m.begin(frame, MorphMetrics.Stage.WARP);
+            startWall = System.nanoTime();
+            startCpu = MorphMetrics.cpuTime();
+            ParallelRows.forRows(tiles, new ParallelRows.Rows() {
+                public void run(int from, int to) {
+                    try {
+                        for (int i = from; i < to; i++)
+                            renderTile(warp, dissolve, band, i * TILE_SIZE, y0,
+                                    Math.min(width, (i + 1) * TILE_SIZE), y1, lx, ly, rx, ry);
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            if (failure[0] != null)
+                throw failure[0];
+            if (m != null)
+                m.record(frame, MorphMetrics.Stage.WARP, startWall, startCpu, 0);
+            sink.writeRows(y1 - y0 == TILE_SIZE ? band : new PixelImage(band.pixels, width, y1 - y0));
+        }
+    }
+
+    /**
+     * Renders the output rectangle [x0, x1) x [y0, y1) into the band, splitting it while the
+     * source regions it reads are too large.
+     */
+    private void renderTile(FieldWarp warp, CrossDissolve dissolve, PixelImage band,
+                            int x0, int y0, int x1, int y1, int lx, int ly, int rx, int ry) throws IOException {
+        FieldMap map = warp.mapRegion(width, x0, y0, x1, y1);
+        int[] r1 = region(map, 0, left, x0, y0, lx, ly), r2 = region(map, 2, right, x0, y0, rx, ry);
+        if ((area(r1) > MAX_REGION_PIXELS || area(r2) > MAX_REGION_PIXELS)
+                && x1 - x0 >= MIN_TILE_SIZE * 2 && y1 - y0 >= MIN_TILE_SIZE * 2) {
+            int mx = x0 + (x1 - x0) / 2, my = y0 + (y1 - y0) / 2;
+            renderTile(warp, dissolve, band, x0, y0, mx, my, lx, ly, rx, ry);
+            renderTile(warp, dissolve, band, mx, y0, x1, my, lx, ly, rx, ry);
+            renderTile(warp, dissolve, band, x0, my, mx, y1, lx, ly, rx, ry);
+            renderTile(warp, dissolve, band, mx, my, x1, y1, lx, ly, rx, ry);
+            return;
+        }
+
+        PixelImage in = r1 == null ? null : left.read(r1[0], r1[1], r1[2], r1[3]);
+        PixelImage in2 = r2 == null ? null : right.read(r2[0], r2[1], r2[2], r2[3]);
+        Sampler s1 = in == null ? null : sampler.create(in), s2 = in2 == null ? null : sampler.create(in2);
+        // Source coordinates are shifted to the regions that were read
+        int ox1 = r1 == null ? 0 : r1[0] << Sampler.FRACTION_BITS, oy1 = r1 == null ? 0 : r1[1] << Sampler.FRACTION_BITS;
+        int ox2 = r2 == null ? 0 : r2[0] << Sampler.FRACTION_BITS, oy2 = r2 == null ? 0 : r2[1] << Sampler.FRACTION_BITS;
+        int w1 = left.getWidth(), h1 = left.getHeight(), w2 = right.getWidth(), h2 = right.getHeight();
+        int[] coords = map.coords, px = band.pixels;
+        int top = y0 - y0 % TILE_SIZE, o = 0;
+        for (int y = y0; y < y1; y++) {
+            boolean row1 = y >= ly && y < ly + h1, row2 = y >= ry && y < ry + h2;
+            int row = (y - top) * width;
+            for (int x = x0; x < x1; x++, o += 4) {
+                int c1 = s1 != null && row1 && x >= lx && x < lx + w1 ?
+                        s1.sample(coords[o] - ox1, coords[o + 1] - oy1) : CrossDissolve.WHITE;
+                int c2 = s2 != null && row2 && x >= rx && x < rx + w2 ?
+                        s2.sample(coords[o + 2] - ox2, coords[o + 3] - oy2) : CrossDissolve.WHITE;
+                px[row + x] = dissolve.blend(c1, c2);
+            }
+        }
+    }
+
+    /**
+     * Bounding rectangle of the source pixels a tile reads from one photo, widened by the kernel
+     * and clipped to the photo. Coordinates beyond the photo clamp to its edge, which the
+     * rectangle then includes, so sampling the region gives the same result as the whole photo.
+     *
+     * @param map Field of the tile
+     * @param c Index of the photo's x coordinate in each pixel's entry of the map
+     * @return Rectangle (left, top, right, bottom), or null if no pixel of the tile shows the photo
+     */
+    private int[] region(FieldMap map, int c, Source src, int x0, int y0, int ox, int oy) {
+        int w = src.getWidth(), h = src.getHeight();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        int[] coords = map.coords;
+        for (int y = 0, o = c; y < map.height; y++) {
+            boolean rowIn = y0 + y >= oy && y0 + y < oy + h;
+            for (int x = 0; x < map.width; x++, o += 4) {
+                if (!rowIn || x0 + x < ox || x0 + x >= ox + w)
+                    continue;
+                int sx = coords[o] >> Sampler.FRACTION_BITS, sy = coords[o + 1] >> Sampler.FRACTION_BITS;
+                minX = Math.min(minX, sx);
+                maxX = Math.max(maxX, sx);
+                minY = Math.min(minY, sy);
+                maxY = Math.max(maxY, sy);
+            }
+        }
+        if (minX > maxX)
+            return null;
+        return new int[]{
+                Math.max(0, Math.min(w - 1, minX - KERNEL_MARGIN)),
+                Math.max(0, Math.min(h - 1, minY - KERNEL_MARGIN)),
+                Math.min(w, Math.max(1, maxX + KERNEL_MARGIN + 1)),
+                Math.min(h, Math.max(1, maxY + KERNEL_MARGIN + 1))};
+    }
+
+    private static long area(int[] r) {
+        return r == null ? 0 : (long) (r[2] - r[0]) * (r[3] - r[1]);
+    }
+
+    /**
+     * Passes a photo through unwarped, centred on white.
+     */
+    private void copy(Source src, BandSink sink) throws IOException {
+        int ox = (width - src.getWidth()) / 2, oy = (height - src.getHeight()) / 2;
+        PixelImage band = new PixelImage(width, TILE_SIZE);
+        for (int top = 0; top < height; top += TILE_SIZE) {
+            int bottom = Math.min(height, top + TILE_SIZE);
+            Arrays.fill(band.pixels, CrossDissolve.WHITE);
+            int sy0 = Math.max(0, top - oy), sy1 = Math.min(src.getHeight(), bottom - oy);
+            if (sy0 < sy1) {
+                PixelImage rows = src.read(0, sy0, src.getWidth(), sy1);
+                for (int sy = sy0; sy < sy1; sy++)
+                    System.arraycopy(rows.pixels, (sy - sy0) * rows.width, band.pixels,
+                            (sy + oy - top) * width + ox, rows.width);
+            }
+            sink.writeRows(bottom - top == TILE_SIZE ? band : new PixelImage(band.pixels, width, bottom - top));
+        }
+    }
+
+    /**
+     * Maps lines from view coordinates onto a photo.
+     */
+    private static float[] toPhoto(float[] lines, float x, float y, float scale) {
+        float[] out = new float[lines.length];
+        for (int i = 0; i < lines.length; i += 2) {
+            out[i] = (lines[i] - x) * scale;
+            out[i + 1] = (lines[i + 1] - y) * scale;
+        }
+        return out;
+    }
+}
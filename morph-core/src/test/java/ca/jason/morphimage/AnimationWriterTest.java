@@ -0,0 +1,90 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the streaming animation writers, read back through AnimationReader.
+ */
+public class AnimationWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int[] decode(byte[] data) throws IOException {
+        BufferedImage b = ImageIO.read(new ByteArrayInputStream(data));
+        return b.getRGB(0, 0, b.getWidth(), b.getHeight(), null, 0, b.getWidth());
+    }
+
+    @Test
+    public void apng_framesOutOfOrder_readBackInOrder() throws IOException {
+        File f = tmp.newFile("morph.png");
+        PixelImage[] frames = new PixelImage[5];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = TestImages.noise(120, 90, i);
+
+        AnimationExport export = new AnimationExport(new ApngWriter(f, 120, 90, 100, PngWriter.DEFAULT_LEVEL));
+        int[] order = {1, 0, 3, 4, 2};
+        for (int i : order)
+            assertEquals(f.getAbsolutePath(), export.encode(i, frames[i]));
+        assertEquals(5, export.getAppended());
+        export.close();
+
+        AnimationReader reader = new AnimationReader(f);
+        assertEquals(5, reader.getFrameCount());
+        assertEquals(100, reader.getDelay());
+        for (int i = 0; i < frames.length; i++)
+            assertArrayEquals(frames[i].pixels, decode(reader.readFrame(i)));
+        reader.close();
+
+        // Viewers without APNG support still see the first frame
+        BufferedImage still = ImageIO.read(f);
+        assertArrayEquals(frames[0].pixels, still.getRGB(0, 0, 120, 90, null, 0, 120));
+    }
+
+    @Test
+    public void avi_indexesEveryFrame() throws IOException {
+        File f = tmp.newFile("morph.avi");
+        AviWriter writer = new AviWriter(f, 64, 48, AviWriter.DEFAULT_FPS, new AviWriter.Compressor() {
+            public byte[] compress(PixelImage image) throws IOException {
+                BufferedImage b = new BufferedImage(image.width, image.height, BufferedImage.TYPE_INT_RGB);
+                b.setRGB(0, 0, image.width, image.height, image.pixels, 0, image.width);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(b, "jpg", out);
+                return out.toByteArray();
+            }
+        });
+        byte[][] jpegs = new byte[3][];
+        for (int i = 0; i < jpegs.length; i++) {
+            jpegs[i] = writer.compress(TestImages.noise(64, 48, i));
+            writer.append(jpegs[i]);
+        }
+        writer.close();
+
+        AnimationReader reader = new AnimationReader(f);
+        assertEquals(3, reader.getFrameCount());
+        assertEquals(1000 / AviWriter.DEFAULT_FPS, reader.getDelay());
+        for (int i = 0; i < jpegs.length; i++)
+            assertArrayEquals(jpegs[i], reader.readFrame(i));
+        reader.close();
+
+        // RIFF size covers the whole file
+        byte[] head = new byte[8];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.readFully(head);
+        raf.close();
+        int size = (head[4] & 0xFF) | (head[5] & 0xFF) << 8 | (head[6] & 0xFF) << 16 | (head[7] & 0xFF) << 24;
+        assertEquals(f.length() - 8, size);
+    }
+}
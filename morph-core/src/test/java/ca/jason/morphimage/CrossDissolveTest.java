@@ -0,0 +1,48 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the fixed-point cross-dissolve.
+ */
+public class CrossDissolveTest {
+    private static int channel(int c, int shift) {
+        return (c >>> shift) & 0xFF;
+    }
+
+    @Test
+    public void blend_matchesFloatBlendPerChannel() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            int c1 = random.nextInt(), c2 = random.nextInt(), w = random.nextInt(CrossDissolve.ONE + 1);
+            int blended = CrossDissolve.blend(c1, c2, w);
+            for (int shift = 0; shift < 32; shift += 8) {
+                float expected = (channel(c1, shift) * (256 - w) + channel(c2, shift) * w) / 256f;
+                assertEquals(expected, channel(blended, shift), 0.51f);
+            }
+        }
+    }
+
+    @Test
+    public void endpointWeights_returnInputs() {
+        int c1 = 0x80FF1020, c2 = 0xFF00EE7F;
+        assertEquals(c1, new CrossDissolve(0, false).blend(c1, c2));
+        assertEquals(c2, new CrossDissolve(1, false).blend(c1, c2));
+        assertEquals(c1, new CrossDissolve(0, true).blend(c1, c2));
+        assertEquals(c2, new CrossDissolve(1, true).blend(c1, c2));
+    }
+
+    @Test
+    public void linearBlend_isBrighterThanGammaBlend() {
+        int black = 0xFF000000, white = 0xFFFFFFFF;
+        int gamma = new CrossDissolve(0.5f, false).blend(black, white);
+        int linear = new CrossDissolve(0.5f, true).blend(black, white);
+        assertEquals(128, channel(gamma, 8));
+        assertEquals(188, channel(linear, 8), 1);
+        assertEquals(0xFF, linear >>> 24);
+    }
+}
@@ -0,0 +1,72 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the displacement-field cache.
+ */
+public class DisplacementCacheTest {
+    private static DisplacementCache.Key key(float t) {
+        return new DisplacementCache.Key(new float[][]{{0, 0, 10, 10}}, new int[]{8, 8}, t);
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedOverBudget() {
+        long entry = new FieldMap(8, 8).getBytes() + 4 * 4 + 2 * 4;
+        DisplacementCache cache = new DisplacementCache(entry * 2);
+        cache.put(key(0.25f), new FieldMap(8, 8));
+        cache.put(key(0.5f), new FieldMap(8, 8));
+        assertNotNull(cache.get(key(0.25f)));
+        cache.put(key(0.75f), new FieldMap(8, 8));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(key(0.25f)));
+        assertNull(cache.get(key(0.5f)));
+        assertTrue(cache.getBytes() <= cache.getBudget());
+    }
+
+    @Test
+    public void keysWithEqualContents_match() {
+        assertEquals(key(0.5f), key(0.5f));
+        assertEquals(key(0.5f).hashCode(), key(0.5f).hashCode());
+        assertNotEquals(key(0.5f), key(0.25f));
+    }
+
+    @Test
+    public void cachedRender_matchesFirstRenderAndSkipsEvaluation() {
+        float[] left = {10, 10, 50, 20, 30, 40, 30, 60}, right = {12, 14, 52, 18, 28, 44, 34, 58};
+        MorphRenderer renderer = new MorphRenderer(TestImages.noise(64, 64, 1), left, 0, 0, TestImages.noise(64, 64, 2), right, 0, 0);
+        DisplacementCache cache = new DisplacementCache(1 << 20);
+        renderer.setCache(cache);
+
+        PixelImage first = renderer.render(2, 3);
+        renderer.setLinearDissolve(true);
+        renderer.render(2, 3);
+        renderer.setLinearDissolve(false);
+        PixelImage again = renderer.render(2, 3);
+
+        assertArrayEquals(first.pixels, again.pixels);
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void mapOverBudget_rendersInOnePassWithoutCaching() {
+        float[] left = {10, 10, 50, 20}, right = {12, 14, 52, 18};
+        MorphRenderer renderer = new MorphRenderer(TestImages.noise(64, 64, 1), left, 0, 0, TestImages.noise(64, 64, 2), right, 0, 0);
+        PixelImage uncached = renderer.render(1, 1);
+        MorphMetrics metrics = new MorphMetrics(1);
+        renderer.setMetrics(metrics);
+        DisplacementCache cache = new DisplacementCache(FieldMap.bytes(64, 64) - 1);
+        renderer.setCache(cache);
+
+        assertArrayEquals(uncached.pixels, renderer.render(1, 1).pixels);
+        assertEquals(0, cache.size());
+        // Fused, so there is no separate dissolve
+        assertEquals(1, metrics.getCount(MorphMetrics.Stage.WARP));
+        assertEquals(0, metrics.getCount(MorphMetrics.Stage.DISSOLVE));
+    }
+}
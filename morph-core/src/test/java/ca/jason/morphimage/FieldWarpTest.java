@@ -0,0 +1,167 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the pure Java field warp.
+ */
+public class FieldWarpTest {
+    private static final int W = 64, H = 48;
+
+    private static int[] gradient() {
+        int[] px = new int[W * H];
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+                px[y * W + x] = 0xFF000000 | (x << 16) | (y << 8);
+        return px;
+    }
+
+    private static FieldWarp warpFor(float[] dst, float[] src) {
+        return new FieldWarp(new LineField(dst, 0, 0, FieldWarp.P), new LineField(src, 0, 0, FieldWarp.P));
+    }
+
+    @Test
+    public void identicalLines_copyImage() {
+        float[] lines = {5, 5, 40, 10, 10, 40, 50, 30};
+        int[] in = gradient(), out = new int[W * H];
+        warpFor(lines, lines).warp(in, out, W, H);
+        assertArrayEquals(in, out);
+    }
+
+    @Test
+    public void translatedLine_shiftsImage() {
+        float[] dst = {10, 10, 30, 10};
+        float[] src = {13, 12, 33, 12};
+        int[] in = gradient(), out = new int[W * H];
+        warpFor(dst, src).warp(in, out, W, H);
+        assertEquals(in[22 * W + 23], out[20 * W + 20]);
+    }
+
+    @Test
+    public void viewOffset_isRemoved() {
+        float[] dst = {10, 10, 30, 10};
+        float[] src = {13, 12, 33, 12};
+        float[] dstView = {17, 14, 37, 14};
+        float[] srcView = {20, 16, 40, 16};
+        int[] in = gradient(), out = new int[W * H], outView = new int[W * H];
+        warpFor(dst, src).warp(in, out, W, H);
+        new FieldWarp(new LineField(dstView, 7, 4, FieldWarp.P), new LineField(srcView, 7, 4, FieldWarp.P))
+                .warp(in, outView, W, H);
+        assertArrayEquals(out, outView);
+    }
+
+    @Test
+    public void degenerateLine_isIgnored() {
+        float[] dst = {10, 10, 30, 10, 40, 40, 40, 40};
+        float[] src = {13, 12, 33, 12, 0, 0, 0, 0};
+        int[] in = gradient(), out = new int[W * H], expected = new int[W * H];
+        warpFor(dst, src).warp(in, out, W, H);
+        warpFor(new float[]{10, 10, 30, 10}, new float[]{13, 12, 33, 12}).warp(in, expected, W, H);
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void incremental_matchesExact() {
+        float[] dst = {5, 5, 40, 10, 10, 40, 50, 30, 60, 2, 61, 45};
+        float[] src = {8, 3, 44, 12, 9, 38, 52, 33, 58, 5, 60, 40};
+        FieldWarp exact = warpFor(dst, src), incremental = warpFor(dst, src);
+        incremental.setIncremental(true);
+        FieldWarp.Row e = exact.new Row(W), i = incremental.new Row(W);
+        for (int y = 0; y < H; y++) {
+            exact.mapRow(y, W, H, e);
+            incremental.mapRow(y, W, H, i);
+            for (int x = 0; x < W; x++) {
+                assertEquals(e.mapX[x], i.mapX[x], 1e-2f);
+                assertEquals(e.mapY[x], i.mapY[x], 1e-2f);
+            }
+        }
+    }
+
+    @Test
+    public void cullIndex_staysWithinErrorBound() {
+        int w = 256, h = 192, n = 60;
+        Random random = new Random(42);
+        float[] dst = new float[n * 4], src = new float[n * 4];
+        for (int i = 0; i < n * 4; i += 2) {
+            dst[i] = random.nextFloat() * w;
+            dst[i + 1] = random.nextFloat() * h;
+            src[i] = dst[i] + random.nextFloat() * 10 - 5;
+            src[i + 1] = dst[i + 1] + random.nextFloat() * 10 - 5;
+        }
+        FieldWarp exact = warpFor(dst, src), culled = warpFor(dst, src);
+        LineField d = new LineField(dst, 0, 0, FieldWarp.P), s = new LineField(src, 0, 0, FieldWarp.P);
+        LineCullIndex index = new LineCullIndex(d, s, w, h, LineCullIndex.DEFAULT_TILE_SIZE, 1e-4f);
+        culled.setCullIndex(index);
+        assertTrue(index.getAverageLines() < n);
+
+        FieldWarp.Row e = exact.new Row(w), c = culled.new Row(w);
+        float worst = 0;
+        for (int y = 0; y < h; y++) {
+            exact.mapRow(y, w, h, e);
+            culled.mapRow(y, w, h, c);
+            for (int x = 0; x < w; x++)
+                worst = Math.max(worst, (float) Math.hypot(e.mapX[x] - c.mapX[x], e.mapY[x] - c.mapY[x]));
+        }
+        assertTrue(worst <= index.getErrorBound() + 1e-3f);
+    }
+
+    @Test
+    public void warpDissolve_matchesSeparateWarps() {
+        float[] mid = {10, 10, 30, 12, 20, 30, 50, 35};
+        float[] left = {8, 9, 29, 10, 18, 33, 47, 36};
+        float[] right = {13, 12, 33, 15, 22, 28, 52, 33};
+        LineField m = new LineField(mid, 0, 0, FieldWarp.P);
+        LineField l = new LineField(left, 0, 0, FieldWarp.P), r = new LineField(right, 0, 0, FieldWarp.P);
+        int[] in = gradient(), in2 = new int[W * H];
+        for (int i = 0; i < in2.length; i++)
+            in2[i] = in[in.length - 1 - i];
+
+        int[] warped = new int[W * H], warped2 = new int[W * H];
+        new FieldWarp(m, l).warp(in, warped, W, H);
+        new FieldWarp(m, r).warp(in2, warped2, W, H);
+        PixelImage out = new PixelImage(W, H);
+        CrossDissolve dissolve = new CrossDissolve(0.25f, false);
+        new FieldWarp(m, l, r).warpDissolve(new PixelImage(in, W, H), 0, 0, new PixelImage(in2, W, H), 0, 0,
+                dissolve, out);
+        for (int i = 0; i < out.pixels.length; i++)
+            assertEquals(dissolve.blend(warped[i], warped2[i]), out.pixels[i]);
+    }
+
+    @Test
+    public void warpDissolve_padsSmallerImageWithWhite() {
+        float[] lines = {5, 5, 20, 5};
+        LineField f = new LineField(lines, 0, 0, FieldWarp.P);
+        PixelImage small = new PixelImage(new int[16 * 16], 16, 16), big = new PixelImage(gradient(), W, H);
+        PixelImage out = new PixelImage(W, H);
+        new FieldWarp(f, f, f).warpDissolve(small, 4, 2, big, 0, 0, new CrossDissolve(0, false), out);
+        assertEquals(0, out.pixels[2 * W + 4]);
+        assertEquals(CrossDissolve.WHITE, out.pixels[30 * W + 40]);
+    }
+
+    @Test
+    public void grid_staysCloseToExact() {
+        int w = 203, h = 150;
+        float[] dst = {20, 20, 120, 30, 40, 100, 180, 120, 150, 10, 160, 140};
+        float[] src = {25, 18, 118, 40, 35, 95, 185, 118, 140, 12, 165, 135};
+        FieldWarp exact = warpFor(dst, src), grid = warpFor(dst, src);
+        grid.setGrid(8, 0.25f);
+
+        int[] in = new int[w * h], out = new int[w * h];
+        grid.warp(in, out, w, h);
+        assertTrue(grid.getMaxError() <= 0.25f);
+
+        FieldWarp.Row e = exact.new Row(w), g = grid.new Row(w);
+        float worst = 0;
+        for (int y = 0; y < h; y++) {
+            exact.mapRow(y, w, h, e);
+            grid.mapRow(y, w, h, g);
+            for (int x = 0; x < w; x++)
+                worst = Math.max(worst, (float) Math.hypot(e.mapX[x] - g.mapX[x], e.mapY[x] - g.mapY[x]));
+        }
+        assertTrue("worst error " + worst, worst < 1f);
+    }
+}
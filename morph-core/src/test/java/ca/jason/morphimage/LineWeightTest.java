@@ -0,0 +1,55 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the specialised line weight kernels.
+ */
+public class LineWeightTest {
+    private static final float[] EXPONENTS = {0f, 0.5f, 1f, 2f, 1.7f};
+
+    @Test
+    public void specialisedKernels_matchPow() {
+        for (float b : EXPONENTS) {
+            for (float p : EXPONENTS) {
+                LineWeight lw = new LineWeight(0.5f, b, p);
+                for (float len = 1; len < 200; len *= 1.7f) {
+                    float lenP = lw.lengthTerm(len);
+                    assertEquals(Math.pow(len, p), lenP, 1e-4 * lenP);
+                    for (float dist = 0; dist < 300; dist = dist * 2 + 0.3f) {
+                        double expected = Math.pow(lenP / (0.5f + dist), b);
+                        assertEquals(lw.toString(), expected, lw.weight(lenP, dist), 1e-4 * expected);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void degenerateLines_carryNoWeight() {
+        for (float b : EXPONENTS)
+            assertEquals(0f, new LineWeight(0.01f, b, 1f).weight(0, 3), 0f);
+    }
+
+    @Test
+    public void renderer_honoursParameters() {
+        float[] left = {10, 10, 50, 20, 30, 40, 30, 60}, right = {14, 12, 48, 26, 26, 40, 36, 58};
+        PixelImage l = new PixelImage(64, 64), r = new PixelImage(64, 64);
+        Random random = new Random(1);
+        for (int i = 0; i < l.pixels.length; i++) {
+            l.pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+            r.pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        MorphRenderer renderer = new MorphRenderer(l, left, 0, 0, r, right, 0, 0);
+        PixelImage standard = renderer.render(1, 1);
+        renderer.setLineWeight(new LineWeight(0.01f, 1f, 1f));
+        assertFalse(Arrays.equals(standard.pixels, renderer.render(1, 1).pixels));
+        renderer.setLineWeight(new LineWeight(FieldWarp.A, FieldWarp.B, FieldWarp.P));
+        assertArrayEquals(standard.pixels, renderer.render(1, 1).pixels);
+    }
+}
@@ -0,0 +1,51 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the incremental live preview.
+ */
+public class LivePreviewTest {
+    private static final LivePreview.Listener IGNORE = new LivePreview.Listener() {
+        public void onPreviewRendered(LivePreview preview, PixelImage image) {
+        }
+    };
+
+    private static float[] lines(int count, long seed) {
+        Random random = new Random(seed);
+        float[] lines = new float[count * 4];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = random.nextFloat() * 256;
+        return lines;
+    }
+
+    @Test
+    public void movedLine_matchesFullRender() {
+        float[] left = lines(20, 1), right = lines(20, 2);
+        MorphRenderer renderer = new MorphRenderer(TestImages.noise(256, 256, 3), left, 0, 0, TestImages.noise(256, 256, 4), right, 0, 0);
+        LivePreview preview = new LivePreview(renderer, 1, IGNORE);
+        assertNotNull(preview.render(left, right, 0));
+
+        float[] moved = left.clone();
+        moved[8] += 5;
+        moved[9] -= 3;
+        PixelImage partial = preview.render(moved, right, 0);
+        assertTrue(preview.getLastDirtyFraction() < 1);
+
+        PixelImage full = new LivePreview(renderer, 1, IGNORE).render(moved, right, 0);
+        assertArrayEquals(full.pixels, partial.pixels);
+    }
+
+    @Test
+    public void supersededRender_isAbandoned() {
+        float[] left = lines(4, 5), right = lines(4, 6);
+        MorphRenderer renderer = new MorphRenderer(TestImages.noise(64, 64, 7), left, 0, 0, TestImages.noise(64, 64, 8), right, 0, 0);
+        LivePreview preview = new LivePreview(renderer, 1, IGNORE);
+        preview.update(left, right);
+        assertNull(preview.render(left, right, 0));
+    }
+}
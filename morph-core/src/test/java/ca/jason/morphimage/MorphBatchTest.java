@@ -0,0 +1,79 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the command-line batch morph.
+ */
+public class MorphBatchTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private void writeImage(File f, int width, int height, int seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                b.setRGB(x, y, random.nextInt());
+        ImageIO.write(b, "png", f);
+    }
+
+    private void writeText(File f, String text) throws IOException {
+        FileWriter out = new FileWriter(f);
+        out.write(text);
+        out.close();
+    }
+
+    @Test
+    public void manifest_writesEveryFrameAndSkipsBadEntries() throws IOException {
+        File dir = tmp.getRoot();
+        writeImage(new File(dir, "a.png"), 40, 30, 1);
+        writeImage(new File(dir, "b.png"), 40, 30, 2);
+        writeText(new File(dir, "a.lines"), "# eyes\n5 5 20 5\n10,25,30,25\n");
+        writeText(new File(dir, "b.lines"), "8 6 22 4\n12 20 33 28\n");
+        writeText(new File(dir, "batch.txt"), "# left lines right lines frames output\n"
+                + "a.png a.lines b.png b.lines 3 out/ab\n"
+                + "\n"
+                + "a.png a.lines missing.png b.lines 3 out/missing\n"
+                + "b.png b.lines a.png a.lines 2 out/ba\n");
+
+        MorphBatch batch = new MorphBatch();
+        batch.setThreads(2);
+        assertEquals(1, batch.run(new File(dir, "batch.txt")));
+
+        for (int i = 0; i < 5; i++) {
+            BufferedImage frame = ImageIO.read(new File(dir, "out/ab_" + i + ".png"));
+            assertEquals(40, frame.getWidth());
+        }
+        assertTrue(new File(dir, "out/ba_3.png").isFile());
+        assertFalse(new File(dir, "out/ba_4.png").exists());
+        assertFalse(new File(dir, "out/missing_0.png").exists());
+    }
+
+    @Test
+    public void lines_arePacked() throws IOException {
+        File f = tmp.newFile();
+        writeText(f, "1 2 3 4\n  \n5.5, 6, 7, 8\n");
+        assertArrayEquals(new float[]{1, 2, 3, 4, 5.5f, 6, 7, 8}, MorphBatch.readLines(f), 0f);
+
+        writeText(f, "1 2 3\n");
+        try {
+            MorphBatch.readLines(f);
+            fail("Expected a malformed line to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for per-stage morph metrics.
+ */
+public class MorphMetricsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void job_recordsEveryStageOfEveryFrame() throws Exception {
+        final MorphMetrics metrics = new MorphMetrics(7);
+        final CopyOnWriteArrayList<String> begun = new CopyOnWriteArrayList<>();
+        final CopyOnWriteArrayList<String> stages = new CopyOnWriteArrayList<>();
+        final AtomicLong queueReports = new AtomicLong();
+        metrics.addListener(new MorphMetrics.Listener() {
+            public void onStageBegin(MorphMetrics m, int frame, MorphMetrics.Stage stage) {
+                begun.add(stage + " " + frame);
+            }
+
+            public void onStage(MorphMetrics m, int frame, MorphMetrics.Stage stage,
+                                long wallNanos, long cpuNanos, long bytes) {
+                assertSame(metrics, m);
+                assertTrue(wallNanos >= 0);
+                stages.add(stage + " " + frame);
+            }
+
+            public void onQueueDepth(MorphMetrics m, int renderQueue, int encodeQueue) {
+                queueReports.incrementAndGet();
+            }
+        });
+
+        float[] lines = {10, 10, 30, 20, 5, 25, 35, 25};
+        final MorphRenderer morph = new MorphRenderer(TestImages.solid(40, 30, 0xFF000000), lines, 0, 0,
+                TestImages.solid(40, 30, 0xFFFFFFFF), lines, 0, 0);
+        morph.setMetrics(metrics);
+        final PngWriter png = new PngWriter(PngWriter.DEFAULT_LEVEL);
+        final File dir = tmp.getRoot();
+
+        MorphScheduler scheduler = new MorphScheduler(2, 2);
+        MorphScheduler.Job job = scheduler.submit(5, new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                return morph.render(frame, 3);
+            }
+        }, new MorphScheduler.FrameEncoder() {
+            public String encode(int frame, PixelImage image) throws Exception {
+                File f = new File(dir, frame + ".png");
+                png.write(image, f, metrics, frame);
+                return f.getPath();
+            }
+        }, null, metrics);
+        job.awaitEncoded();
+        scheduler.shutdown();
+
+        // End frames are the images themselves, so only the three in between interpolate and warp
+        assertEquals(3, metrics.getCount(MorphMetrics.Stage.INTERPOLATE));
+        assertEquals(3, metrics.getCount(MorphMetrics.Stage.WARP));
+        assertEquals(0, metrics.getCount(MorphMetrics.Stage.DISSOLVE));
+        assertEquals(5, metrics.getCount(MorphMetrics.Stage.ENCODE));
+        assertEquals(5, metrics.getCount(MorphMetrics.Stage.WRITE));
+        assertTrue(stages.contains("WARP 2"));
+        assertTrue(stages.contains("WRITE 4"));
+        // Every stage that finished was announced as it started
+        assertEquals(stages.size(), begun.size());
+        assertTrue(begun.containsAll(stages));
+        // Reported as futures complete, which may be just after awaitEncoded returns
+        assertTrue(queueReports.get() > 0);
+        // Backlogs count only this job's frames
+        assertTrue(metrics.getMaxRenderQueue() <= 5);
+        assertTrue(metrics.getMaxEncodeQueue() <= 5);
+
+        long bytes = 0;
+        for (int i = 0; i < 5; i++)
+            bytes += new File(dir, i + ".png").length();
+        assertEquals(bytes, metrics.getBytesWritten());
+        assertNotNull(metrics.getBottleneck());
+        assertTrue(metrics.toString().startsWith("job 7:"));
+    }
+
+    @Test
+    public void cachedFields_recordDissolveSeparately() {
+        MorphMetrics metrics = new MorphMetrics(1);
+        float[] lines = {10, 10, 30, 20};
+        MorphRenderer morph = new MorphRenderer(TestImages.solid(40, 30, 0xFF000000), lines, 0, 0,
+                TestImages.solid(40, 30, 0xFFFFFFFF), lines, 0, 0);
+        morph.setCache(new DisplacementCache(1 << 20));
+        morph.setMetrics(metrics);
+        morph.render(1, 1);
+        morph.render(1, 1);
+        assertEquals(2, metrics.getCount(MorphMetrics.Stage.INTERPOLATE));
+        // The second render reuses the field
+        assertEquals(1, metrics.getCount(MorphMetrics.Stage.WARP));
+        assertEquals(2, metrics.getCount(MorphMetrics.Stage.DISSOLVE));
+    }
+
+    @Test
+    public void cpuClock_isReadPerStage() {
+        MorphMetrics metrics = new MorphMetrics(1);
+        final AtomicLong now = new AtomicLong(100);
+        MorphMetrics.setCpuClock(new MorphMetrics.CpuClock() {
+            public long threadCpuNanos() {
+                return now.get();
+            }
+        });
+        try {
+            long start = MorphMetrics.cpuTime();
+            now.set(350);
+            metrics.record(0, MorphMetrics.Stage.ENCODE, System.nanoTime(), start, 10);
+            assertEquals(250, metrics.getCpuNanos(MorphMetrics.Stage.ENCODE));
+            assertEquals(10, metrics.getBytesWritten());
+        } finally {
+            MorphMetrics.setCpuClock(null);
+        }
+        assertEquals(0, MorphMetrics.cpuTime());
+    }
+}
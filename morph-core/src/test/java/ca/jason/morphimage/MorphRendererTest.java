@@ -0,0 +1,108 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for reduced-scale morph rendering.
+ */
+public class MorphRendererTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void downsample_averagesBlocks() {
+        PixelImage img = new PixelImage(new int[]{
+                0xFF000000, 0xFF0000FF, 0xFF000000, 0xFF000000,
+                0xFF0000FF, 0xFF0000FF, 0xFF000000, 0xFF000000}, 4, 2);
+        PixelImage small = img.downsample(2);
+        assertEquals(2, small.width);
+        assertEquals(1, small.height);
+        assertEquals(0xFF0000BF, small.pixels[0]);
+        assertEquals(0xFF000000, small.pixels[1]);
+    }
+
+    @Test
+    public void scaledRenderer_keepsLinesInViewCoordinates() {
+        float[] lines = {10, 20, 50, 20};
+        MorphRenderer full = new MorphRenderer(TestImages.solid(64, 48, 0xFF000000), lines, 8, 16,
+                TestImages.solid(64, 48, 0xFFFFFFFF), lines, 8, 16);
+        MorphRenderer quarter = full.scaled(4);
+        assertEquals(4, quarter.getScale());
+        assertEquals(16, quarter.getWidth());
+        assertEquals(12, quarter.getHeight());
+
+        PixelImage frame = quarter.render(1, 1);
+        assertEquals(16, frame.width);
+        assertEquals(12, frame.height);
+        // Identical lines leave both images in place, so every pixel is an even blend
+        for (int c : frame.pixels)
+            assertEquals(0xFF808080, c);
+    }
+
+    @Test
+    public void endFrames_areTheSourceImages() {
+        PixelImage left = TestImages.solid(8, 8, 0xFF102030), right = TestImages.solid(8, 8, 0xFF405060);
+        MorphRenderer renderer = new MorphRenderer(left, new float[0], 0, 0, right, new float[0], 0, 0);
+        assertSame(left, renderer.render(0, 3));
+        assertSame(right, renderer.render(4, 3));
+    }
+
+    @Test
+    public void endFrames_ofDifferentSizes_fillTheAnimation() throws IOException {
+        PixelImage left = TestImages.solid(40, 20, 0xFF000000), right = TestImages.solid(20, 30, 0xFF0000FF);
+        float[] lines = {5, 5, 15, 10};
+        MorphRenderer renderer = new MorphRenderer(left, lines, 0, 0, right, lines, 0, 0);
+        assertEquals(40, renderer.getWidth());
+        assertEquals(30, renderer.getHeight());
+
+        PixelImage first = renderer.render(0, 2);
+        assertEquals(40, first.width);
+        assertEquals(30, first.height);
+        // Centred vertically on white
+        assertEquals(CrossDissolve.WHITE, first.pixels[0]);
+        assertEquals(0xFF000000, first.pixels[5 * 40]);
+        assertEquals(0xFF000000, first.pixels[24 * 40 + 39]);
+        assertEquals(CrossDissolve.WHITE, first.pixels[25 * 40]);
+        PixelImage last = renderer.render(3, 2);
+        assertEquals(CrossDissolve.WHITE, last.pixels[9]);
+        assertEquals(0xFF0000FF, last.pixels[10]);
+        assertEquals(CrossDissolve.WHITE, last.pixels[30]);
+
+        File f = tmp.newFile("morph.png");
+        AnimationExport export = new AnimationExport(new ApngWriter(f, renderer.getWidth(), renderer.getHeight(),
+                ApngWriter.DEFAULT_DELAY_MS, PngWriter.DEFAULT_LEVEL));
+        for (int i = 0; i < 4; i++)
+            export.encode(i, renderer.render(i, 2));
+        export.close();
+        AnimationReader reader = new AnimationReader(f);
+        assertEquals(4, reader.getFrameCount());
+        reader.close();
+    }
+
+    @Test
+    public void samplerChange_afterRendering_takesEffect() {
+        Random random = new Random(3);
+        PixelImage left = new PixelImage(30, 20), right = new PixelImage(30, 20);
+        for (int i = 0; i < left.pixels.length; i++) {
+            left.pixels[i] = random.nextInt() | 0xFF000000;
+            right.pixels[i] = random.nextInt() | 0xFF000000;
+        }
+        float[] from = {5, 5, 25, 8}, to = {6, 9, 22, 12};
+        MorphRenderer reused = new MorphRenderer(left, from, 0, 0, right, to, 0, 0);
+        reused.render(1, 2);
+        reused.setSampler(Sampler.Kind.BICUBIC);
+        MorphRenderer fresh = new MorphRenderer(left, from, 0, 0, right, to, 0, 0);
+        fresh.setSampler(Sampler.Kind.BICUBIC);
+        assertArrayEquals(fresh.render(1, 2).pixels, reused.render(1, 2).pixels);
+        // Copies with new lines read through the same samplers
+        assertArrayEquals(fresh.withLines(to, from).render(2, 2).pixels, reused.withLines(to, from).render(2, 2).pixels);
+    }
+}
@@ -0,0 +1,85 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the frame scheduler.
+ */
+public class MorphSchedulerTest {
+    @Test
+    public void frames_areEncodedInOrder() throws Exception {
+        MorphScheduler scheduler = new MorphScheduler(4, 2);
+        MorphScheduler.Job job = scheduler.submit(12, new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                return new PixelImage(new int[]{frame}, 1, 1);
+            }
+        }, new MorphScheduler.FrameEncoder() {
+            public String encode(int frame, PixelImage image) {
+                return "frame_" + image.pixels[0];
+            }
+        }, null);
+
+        String[] results = job.awaitEncoded();
+        for (int i = 0; i < results.length; i++)
+            assertEquals("frame_" + i, results[i]);
+        assertTrue(job.isDone());
+        scheduler.shutdown();
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void renderFailure_failsEncode() throws Exception {
+        MorphScheduler scheduler = new MorphScheduler(2, 2);
+        MorphScheduler.Job job = scheduler.submit(3, new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                if (frame == 1)
+                    throw new IllegalStateException("bad frame");
+                return new PixelImage(1, 1);
+            }
+        }, new MorphScheduler.FrameEncoder() {
+            public String encode(int frame, PixelImage image) {
+                return "ok";
+            }
+        }, null);
+        try {
+            job.awaitEncoded();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void awaitRendered_doesNotWaitForEncode() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final FrameRepository repository = FrameRepository.create(5);
+        MorphScheduler scheduler = new MorphScheduler(2, 1);
+        MorphScheduler.Job job = scheduler.submit(5, new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                PixelImage image = new PixelImage(new int[]{frame}, 1, 1);
+                repository.put(frame, image);
+                return image;
+            }
+        }, new MorphScheduler.FrameEncoder() {
+            public String encode(int frame, PixelImage image) throws InterruptedException {
+                release.await();
+                return "ok";
+            }
+        }, null);
+
+        job.awaitRendered();
+        assertTrue(repository.isComplete());
+        assertEquals(0, job.getEncodedCount());
+        assertSame(repository, FrameRepository.find(repository.getId()));
+        assertEquals(3, repository.get(3).pixels[0]);
+
+        release.countDown();
+        job.awaitEncoded();
+        FrameRepository.release(repository.getId());
+        assertNull(FrameRepository.find(repository.getId()));
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,78 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the parallel PNG encoder, decoded with the JDK's own PNG reader.
+ */
+public class PngWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Smooth gradient with noise, large enough to be split into several pieces.
+     */
+    private static PixelImage gradient(int width, int height, boolean alpha) {
+        Random random = new Random(1);
+        PixelImage img = new PixelImage(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = alpha ? (x * 255 / width) : 0xFF;
+                int r = (x + random.nextInt(8)) & 0xFF, g = (y + random.nextInt(8)) & 0xFF, b = (x ^ y) & 0xFF;
+                img.pixels[y * width + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return img;
+    }
+
+    private void assertRoundTrip(PixelImage img, int level) throws IOException {
+        File f = tmp.newFile();
+        new PngWriter(level).write(img, f);
+        BufferedImage decoded = ImageIO.read(f);
+        assertEquals(img.width, decoded.getWidth());
+        assertEquals(img.height, decoded.getHeight());
+        int[] pixels = decoded.getRGB(0, 0, img.width, img.height, null, 0, img.width);
+        assertArrayEquals(img.pixels, pixels);
+    }
+
+    @Test
+    public void opaqueImage_roundTrips() throws IOException {
+        assertRoundTrip(gradient(400, 300, false), PngWriter.DEFAULT_LEVEL);
+    }
+
+    @Test
+    public void translucentImage_roundTripsAtEveryLevel() throws IOException {
+        PixelImage img = gradient(300, 200, true);
+        for (int level = 0; level <= 9; level += 3)
+            assertRoundTrip(img, level);
+    }
+
+    @Test
+    public void tinyImage_roundTrips() throws IOException {
+        assertRoundTrip(new PixelImage(new int[]{0xFF102030}, 1, 1), 9);
+    }
+
+    @Test
+    public void combineAdler_matchesSequentialChecksum() {
+        byte[] data = new byte[300000];
+        new Random(2).nextBytes(data);
+        Adler32 whole = new Adler32(), first = new Adler32(), second = new Adler32();
+        whole.update(data, 0, data.length);
+        first.update(data, 0, 123457);
+        second.update(data, 123457, data.length - 123457);
+        assertEquals(whole.getValue(),
+                PngWriter.combineAdler(first.getValue(), second.getValue(), data.length - 123457));
+    }
+}
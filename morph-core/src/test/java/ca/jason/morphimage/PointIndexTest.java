@@ -0,0 +1,76 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the endpoint hit-testing grid.
+ */
+public class PointIndexTest {
+    private static final int WIDTH = 720, HEIGHT = 960;
+
+    @Test
+    public void empty_findsNothing() {
+        PointIndex index = new PointIndex(PointIndex.DEFAULT_CELL_SIZE);
+        assertEquals(-1, index.closest(10, 10));
+        index.resize(WIDTH, HEIGHT);
+        assertEquals(-1, index.closest(10, 10));
+        index.addLine(5, 5, 50, 50);
+        index.removeLine(0);
+        assertEquals(-1, index.closest(10, 10));
+    }
+
+    @Test
+    public void closest_matchesLinearScan() {
+        Random r = new Random(7);
+        PointIndex index = new PointIndex(PointIndex.DEFAULT_CELL_SIZE);
+        index.resize(WIDTH, HEIGHT);
+        ArrayList<int[]> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int[] l = {r.nextInt(WIDTH), r.nextInt(HEIGHT), r.nextInt(WIDTH), r.nextInt(HEIGHT)};
+            index.addLine(l[0], l[1], l[2], l[3]);
+            points.add(new int[]{l[0], l[1]});
+            points.add(new int[]{l[2], l[3]});
+        }
+
+        for (int step = 0; step < 2000; step++) {
+            // Points may be dragged past the edges of the view
+            int p = r.nextInt(points.size()), x = r.nextInt(WIDTH + 200) - 100, y = r.nextInt(HEIGHT + 200) - 100;
+            index.move(p, x, y);
+            points.set(p, new int[]{x, y});
+            if (step % 50 == 0) {
+                int line = r.nextInt(points.size() / 2);
+                index.removeLine(line);
+                points.remove(line * 2);
+                points.remove(line * 2);
+            }
+            if (step % 10 == 0)
+                index.resize(WIDTH + step % 3, HEIGHT);
+
+            int qx = r.nextInt(WIDTH + 400) - 200, qy = r.nextInt(HEIGHT + 400) - 200;
+            int found = index.closest(qx, qy);
+            assertEquals(points.size(), index.size());
+            assertEquals(nearest(points, qx, qy), found);
+        }
+    }
+
+    /**
+     * Closest point by squared distance, lowest number first on ties.
+     */
+    private static int nearest(ArrayList<int[]> points, int x, int y) {
+        int best = -1;
+        long bestD = Long.MAX_VALUE;
+        for (int i = 0; i < points.size(); i++) {
+            long dx = points.get(i)[0] - x, dy = points.get(i)[1] - y, d = dx * dx + dy * dy;
+            if (d < bestD) {
+                bestD = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
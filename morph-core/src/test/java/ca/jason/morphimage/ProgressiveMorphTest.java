@@ -0,0 +1,67 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for registering progressive previews.
+ */
+public class ProgressiveMorphTest {
+    private static ProgressiveMorph morph() {
+        PixelImage left = new PixelImage(16, 16), right = new PixelImage(16, 16);
+        Arrays.fill(left.pixels, 0xFF000000);
+        Arrays.fill(right.pixels, 0xFFFFFFFF);
+        float[] lines = {2, 2, 12, 10};
+        return new ProgressiveMorph(new MorphRenderer(left, lines, 0, 0, right, lines, 0, 0), 2);
+    }
+
+    /**
+     * Waits until a morph is no longer registered.
+     *
+     * @return Whether it was forgotten in time
+     */
+    private static boolean forgotten(int id) throws InterruptedException {
+        for (int i = 0; i < 500 && ProgressiveMorph.find(id) != null; i++)
+            Thread.sleep(10);
+        return ProgressiveMorph.find(id) == null;
+    }
+
+    /**
+     * Starts a morph and waits for its last refinement.
+     */
+    private static void run(ProgressiveMorph morph) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(ProgressiveMorph.SCALES.length * morph.getFrameCount());
+        morph.addListener(new ProgressiveMorph.Listener() {
+            public void onFrameUpdated(ProgressiveMorph m, int frame, PixelImage image, int scale) {
+                done.countDown();
+            }
+        });
+        morph.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void finishedWithoutHolder_isForgotten() throws InterruptedException {
+        ProgressiveMorph morph = morph();
+        run(morph);
+        assertTrue(forgotten(morph.getId()));
+        // Frames stay available to anyone still holding the morph
+        assertEquals(1, morph.getFrameScale(1));
+    }
+
+    @Test
+    public void finishedWithHolder_isForgottenOnRelease() throws InterruptedException {
+        ProgressiveMorph morph = morph();
+        morph.attach();
+        run(morph);
+        Thread.sleep(50);
+        assertSame(morph, ProgressiveMorph.find(morph.getId()));
+        morph.release();
+        assertTrue(forgotten(morph.getId()));
+    }
+}
@@ -0,0 +1,70 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the raw frame store.
+ */
+public class RawFrameStoreTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void morphOfDifferentSizes_fillsEverySlot() throws IOException {
+        float[] lines = {5, 5, 15, 10};
+        MorphRenderer morph = new MorphRenderer(TestImages.noise(40, 20, 0), lines, 0, 0, TestImages.noise(20, 30, 1), lines, 0, 0);
+        RawFrameExport export = new RawFrameExport(tmp.newFile(), morph.getWidth(), morph.getHeight(), 4);
+        for (int i = 0; i < 4; i++)
+            export.encode(i, morph.render(i, 2));
+        assertTrue(export.isComplete());
+        export.close();
+    }
+
+    @Test
+    public void framesWrittenOutOfOrder_readBack() throws IOException {
+        File f = tmp.newFile();
+        PixelImage[] frames = {TestImages.noise(40, 30, 0), TestImages.noise(40, 30, 1), TestImages.noise(40, 30, 2)};
+        RawFrameExport export = new RawFrameExport(f, 40, 30, frames.length);
+        export.encode(2, frames[2]);
+        export.encode(0, frames[0]);
+        assertFalse(export.isComplete());
+        export.encode(1, frames[1]);
+        assertTrue(export.isComplete());
+        export.close();
+
+        RawFrameStore store = RawFrameStore.open(f);
+        assertEquals(3, store.getFrameCount());
+        assertEquals(40, store.getWidth());
+        assertEquals(30, store.getHeight());
+        for (int i = 0; i < frames.length; i++)
+            assertArrayEquals(frames[i].pixels, store.read(i).pixels);
+        store.close();
+    }
+
+    @Test
+    public void frame_isPremultipliedRgba() throws IOException {
+        File f = tmp.newFile();
+        RawFrameStore store = RawFrameStore.create(f, 2, 1, 1);
+        store.write(0, new PixelImage(new int[]{0xFF102030, 0x80FF8000}, 2, 1));
+        ByteBuffer b = store.frame(0);
+        byte[] bytes = new byte[8];
+        b.get(bytes);
+        assertArrayEquals(new byte[]{0x10, 0x20, 0x30, (byte) 0xFF, (byte) 0x80, 0x40, 0, (byte) 0x80}, bytes);
+        store.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsOtherFiles() throws IOException {
+        File f = tmp.newFile();
+        new PngWriter(PngWriter.DEFAULT_LEVEL).write(TestImages.noise(4, 4, 0), f);
+        RawFrameStore.open(f);
+    }
+}
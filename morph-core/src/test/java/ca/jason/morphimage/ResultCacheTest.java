@@ -0,0 +1,98 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the on-disk result cache.
+ */
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File write(String name, int size) throws IOException {
+        File f = new File(tmp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+        return f;
+    }
+
+    @Test
+    public void trim_evictsLeastRecentlyAccessed() throws IOException {
+        ResultCache cache = new ResultCache(new File(tmp.getRoot(), ResultCache.DIRECTORY), 250);
+        cache.store("a", write("a", 100));
+        cache.store("b", write("b", 100));
+        assertNotNull(cache.lookup("a"));
+        cache.store("c", write("c", 100));
+
+        assertNotNull(cache.lookup("a"));
+        assertNull(cache.lookup("b"));
+        assertNotNull(cache.lookup("c"));
+        assertTrue(cache.getBytes() <= 250);
+    }
+
+    @Test
+    public void store_overBudget_leavesCacheAlone() throws IOException {
+        ResultCache cache = new ResultCache(new File(tmp.getRoot(), ResultCache.DIRECTORY), 250);
+        cache.store("a", write("a", 100));
+        File big = write("big", 300);
+        assertEquals(big, cache.store("big", RawFrameStore.EXTENSION, big));
+        assertTrue(big.isFile());
+        assertNull(cache.lookup("big", RawFrameStore.EXTENSION));
+        assertNotNull(cache.lookup("a"));
+    }
+
+    @Test
+    public void cachedFrames_skipRenderAndEncode() throws Exception {
+        final ResultCache cache = new ResultCache(new File(tmp.getRoot(), ResultCache.DIRECTORY), 1 << 20);
+        final AtomicInteger renders = new AtomicInteger(), encodes = new AtomicInteger();
+        MorphScheduler.FrameRenderer renderer = new MorphScheduler.FrameRenderer() {
+            public PixelImage render(int frame) {
+                renders.incrementAndGet();
+                return new PixelImage(1, 1);
+            }
+        };
+        MorphScheduler.FrameEncoder encoder = new MorphScheduler.FrameEncoder() {
+            public String encode(int frame, PixelImage image) throws IOException {
+                encodes.incrementAndGet();
+                return write("frame" + frame, 10).getAbsolutePath();
+            }
+        };
+
+        String[] keys = CachedExport.keys("digest", 1);
+        CachedExport first = new CachedExport(cache, keys, renderer, encoder);
+        for (int i = 0; i < keys.length; i++)
+            first.encode(i, first.render(i));
+
+        // Three frames with one intermediate share t = 0, 0.5 and 1 with three intermediates
+        String[] more = CachedExport.keys("digest", 3);
+        CachedExport second = new CachedExport(cache, more, renderer, encoder);
+        for (int i = 0; i < more.length; i++)
+            assertTrue(new File(second.encode(i, second.render(i))).isFile());
+        assertEquals(3, second.getHits());
+        assertEquals(5, renders.get());
+        assertEquals(5, encodes.get());
+    }
+
+    @Test
+    public void digest_changesWithPixelsAndLines() {
+        float[] lines = {0, 0, 10, 10};
+        PixelImage a = new PixelImage(4, 4), b = new PixelImage(4, 4);
+        String base = new MorphRenderer(a, lines, 0, 0, b, lines, 0, 0).digest();
+        assertEquals(base, new MorphRenderer(new PixelImage(4, 4), lines, 0, 0, b, lines, 0, 0).digest());
+
+        PixelImage c = new PixelImage(4, 4);
+        c.pixels[5] = 1;
+        assertNotEquals(base, new MorphRenderer(c, lines, 0, 0, b, lines, 0, 0).digest());
+        assertNotEquals(base, new MorphRenderer(a, new float[]{0, 0, 10, 11}, 0, 0, b, lines, 0, 0).digest());
+    }
+}
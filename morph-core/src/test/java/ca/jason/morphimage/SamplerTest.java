@@ -0,0 +1,54 @@
+package ca.jason.morphimage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the resampling kernels.
+ */
+public class SamplerTest {
+    private static final int ONE = Sampler.ONE;
+
+    @Test
+    public void integerCoordinates_returnPixels() {
+        PixelImage img = TestImages.noise(7, 5, 1);
+        for (Sampler.Kind kind : Sampler.Kind.values()) {
+            Sampler s = kind.create(img);
+            for (int y = 0; y < img.height; y++)
+                for (int x = 0; x < img.width; x++)
+                    assertEquals(kind.name(), img.pixels[y * img.width + x], s.sample(x * ONE, y * ONE));
+        }
+    }
+
+    @Test
+    public void farOutside_returnsEdgePixels() {
+        PixelImage img = TestImages.noise(6, 4, 2);
+        for (Sampler.Kind kind : Sampler.Kind.values()) {
+            Sampler s = kind.create(img);
+            assertEquals(kind.name(), img.pixels[0], s.sample(-1000 * ONE + 77, -50 * ONE + 3));
+            assertEquals(kind.name(), img.pixels[img.pixels.length - 1], s.sample(900 * ONE + 130, 40 * ONE + 200));
+            assertEquals(kind.name(), img.pixels[img.width - 1], s.sample(100 * ONE, -3 * ONE + 128));
+        }
+    }
+
+    @Test
+    public void bilinear_interpolatesBetweenPixels() {
+        PixelImage img = new PixelImage(new int[]{0xFF000000, 0xFFFFFFFF, 0xFF000000, 0xFFFFFFFF}, 2, 2);
+        int c = Sampler.Kind.BILINEAR.create(img).sample(ONE / 4, ONE / 2);
+        assertEquals(0xFF404040, c);
+    }
+
+    @Test
+    public void bicubic_keepsFlatRegionsFlat() {
+        PixelImage img = new PixelImage(8, 8);
+        Arrays.fill(img.pixels, 0x80C0A040);
+        Sampler s = Sampler.Kind.BICUBIC.create(img);
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(0x80C0A040, s.sample(random.nextInt(10 * ONE) - ONE, random.nextInt(10 * ONE) - ONE));
+    }
+}
@@ -0,0 +1,32 @@
+package ca.jason.morphimage;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Images shared by the local unit tests.
+ */
+class TestImages {
+    private TestImages() {
+    }
+
+    /**
+     * @return Opaque pixels of random colours, the same for the same seed
+     */
+    static PixelImage noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelImage img = new PixelImage(width, height);
+        for (int i = 0; i < img.pixels.length; i++)
+            img.pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        return img;
+    }
+
+    /**
+     * @return Pixels all of one colour
+     */
+    static PixelImage solid(int width, int height, int colour) {
+        PixelImage img = new PixelImage(width, height);
+        Arrays.fill(img.pixels, colour);
+        return img;
+    }
+}
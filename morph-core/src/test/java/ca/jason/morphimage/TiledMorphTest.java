@@ -0,0 +1,129 @@
+package ca.jason.morphimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the tiled full-resolution renderer and the streaming PNG output.
+ */
+public class TiledMorphTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Source backed by an image in memory, counting the pixels read.
+     */
+    private static class ImageSource implements TiledMorph.Source {
+        final PixelImage image;
+        long read;
+
+        ImageSource(PixelImage image) {
+            this.image = image;
+        }
+
+        public int getWidth() {
+            return image.width;
+        }
+
+        public int getHeight() {
+            return image.height;
+        }
+
+        public synchronized PixelImage read(int left, int top, int right, int bottom) {
+            PixelImage out = new PixelImage(right - left, bottom - top);
+            for (int y = top; y < bottom; y++)
+                System.arraycopy(image.pixels, y * image.width + left, out.pixels, (y - top) * out.width, out.width);
+            read += out.width * out.height;
+            return out;
+        }
+    }
+
+    /**
+     * Collects bands into a whole frame.
+     */
+    private static class FrameSink implements TiledMorph.BandSink {
+        final PixelImage frame;
+        int rows;
+
+        FrameSink(int width, int height) {
+            frame = new PixelImage(width, height);
+        }
+
+        public void writeRows(PixelImage band) {
+            System.arraycopy(band.pixels, 0, frame.pixels, rows * frame.width, band.width * band.height);
+            rows += band.height;
+        }
+    }
+
+    @Test
+    public void tiledFrames_matchWholeImageRenderer() throws IOException {
+        PixelImage left = TestImages.noise(600, 290, 1), right = TestImages.noise(560, 310, 2);
+        float[] leftLines = {110, 40, 400, 90, 200, 250, 500, 200, 60, 60, 80, 280};
+        float[] rightLines = {130, 60, 380, 70, 180, 230, 520, 220, 70, 50, 90, 300};
+        for (Sampler.Kind kind : new Sampler.Kind[]{Sampler.Kind.NEAREST, Sampler.Kind.BICUBIC}) {
+            MorphRenderer renderer = new MorphRenderer(left, leftLines, 10, 20, right, rightLines, 30, 5);
+            renderer.setSampler(kind);
+            TiledMorph tiled = new TiledMorph(new ImageSource(left), leftLines, 10, 20, 1,
+                    new ImageSource(right), rightLines, 30, 5, 1);
+            tiled.setSampler(kind);
+            assertEquals(renderer.getWidth(), tiled.getWidth());
+            assertEquals(renderer.getHeight(), tiled.getHeight());
+
+            for (int frame = 0; frame < 4; frame++) {
+                FrameSink sink = new FrameSink(tiled.getWidth(), tiled.getHeight());
+                tiled.render(frame, 2, sink);
+                assertEquals(tiled.getHeight(), sink.rows);
+                PixelImage expected = renderer.render(frame, 2);
+                if (frame == 0 || frame == 3) {
+                    // End frames are the photos centred on white
+                    PixelImage src = frame == 0 ? left : right;
+                    int ox = (tiled.getWidth() - src.width) / 2, oy = (tiled.getHeight() - src.height) / 2;
+                    assertEquals(src.pixels[0], sink.frame.pixels[oy * tiled.getWidth() + ox]);
+                    continue;
+                }
+                assertArrayEquals(kind + " frame " + frame, expected.pixels, sink.frame.pixels);
+            }
+        }
+    }
+
+    @Test
+    public void scaledPhotos_readOnlyRegionsNearTheLines() throws IOException {
+        // A photo four times the view's resolution, with lines that barely move it
+        ImageSource left = new ImageSource(TestImages.noise(1200, 900, 3)), right = new ImageSource(TestImages.noise(1200, 900, 4));
+        float[] lines = {20, 20, 280, 20, 20, 200, 280, 200};
+        float[] moved = {22, 20, 282, 20, 20, 202, 280, 202};
+        TiledMorph tiled = new TiledMorph(left, lines, 0, 0, 4, right, moved, 0, 0, 4);
+        FrameSink sink = new FrameSink(1200, 900);
+        tiled.render(1, 1, sink);
+        assertEquals(900, sink.rows);
+        // Each tile reads only a little more than its own area from each photo
+        assertTrue(left.read < 1200L * 900 * 2);
+        assertTrue(right.read < 1200L * 900 * 2);
+    }
+
+    @Test
+    public void streamedPng_decodesToAllBands() throws IOException {
+        PixelImage img = TestImages.noise(700, 530, 5);
+        File f = tmp.newFile();
+        PngWriter.Output out = new PngWriter(PngWriter.DEFAULT_LEVEL).open(f, img.width, img.height, false);
+        for (int top = 0; top < img.height; top += 200) {
+            int rows = Math.min(200, img.height - top);
+            int[] band = new int[img.width * rows];
+            System.arraycopy(img.pixels, top * img.width, band, 0, band.length);
+            out.writeRows(new PixelImage(band, img.width, rows));
+        }
+        out.close();
+
+        BufferedImage decoded = ImageIO.read(f);
+        assertArrayEquals(img.pixels, decoded.getRGB(0, 0, img.width, img.height, null, 0, img.width));
+    }
+}